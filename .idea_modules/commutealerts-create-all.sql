@@ -36,10 +36,32 @@ create table agency_alerts.alerts (
 );
 create sequence alert_id_seq increment by 1;
 
+create table agency_alerts.alert_history (
+  id                            bigint not null,
+  agency_id                     varchar(255) not null,
+  route_id                      varchar(255) not null,
+  alert_identity                varchar(64) not null,
+  type                          varchar(255),
+  message_title                 text,
+  message_subtitle              text,
+  message_body                  text,
+  external_uri                  text,
+  high_priority                 boolean default false,
+  last_updated                  timestamp without time zone,
+  started_at                    timestamp without time zone not null,
+  ended_at                      timestamp without time zone
+) partition by range (started_at);
+create sequence alert_history_id_seq increment by 1;
+
+create view agency_alerts.active_alert_history as
+  select * from agency_alerts.alert_history where ended_at is null;
+
 create table device_information.devices (
   id                            bigint not null,
   device_id                     TEXT,
   token                         TEXT,
+  device_id_digest              bigint,
+  token_digest                  bigint,
   app_key                       varchar(255),
   user_key                      varchar(255),
   account_id                    bigint,
@@ -89,6 +111,20 @@ create table agency_alerts.routes (
 );
 create sequence route_id_seq increment by 1;
 
+create table device_information.resubscribe_jobs (
+  id                            bigint not null,
+  api_key                       varchar(255),
+  status                        varchar(9),
+  last_device_id                bigint,
+  sent_count                    bigint not null,
+  device_count                  bigint not null,
+  time_started                  timestamp without time zone,
+  time_updated                  timestamp without time zone,
+  constraint ck_resubscribe_jobs_status check ( status in ('RUNNING','COMPLETED','FAILED')),
+  constraint pk_resubscribe_jobs primary key (id)
+);
+create sequence resubscribe_job_id_seq increment by 1;
+
 create table device_information.subscriptions (
   id                            bigint not null,
   device_id                     bigint not null,
@@ -98,11 +134,16 @@ create table device_information.subscriptions (
 );
 create sequence subscriptions_id_seq increment by 1;
 
+create index ix_accounts_api_key on api_accounts.accounts (api_key);
+
 alter table agency_alerts.alerts add constraint fk_alerts_route_id foreign key (route_id) references agency_alerts.routes (id) on delete restrict on update restrict;
 create index ix_alerts_route_id on agency_alerts.alerts (route_id);
 
 alter table device_information.devices add constraint fk_devices_account_id foreign key (account_id) references api_accounts.accounts (id) on delete restrict on update restrict;
 create index ix_devices_account_id on device_information.devices (account_id);
+create index ix_devices_account_id_id on device_information.devices (account_id, id);
+create index ix_devices_device_id_digest on device_information.devices (device_id_digest);
+create index ix_devices_token_digest on device_information.devices (token_digest);
 
 alter table agency_alerts.locations add constraint fk_locations_alert_id foreign key (alert_id) references agency_alerts.alerts (id) on delete restrict on update restrict;
 create index ix_locations_alert_id on agency_alerts.locations (alert_id);
@@ -118,4 +159,5 @@ create index ix_subscriptions_device_id on device_information.subscriptions (dev
 
 alter table device_information.subscriptions add constraint fk_subscriptions_route_id foreign key (route_id) references agency_alerts.routes (id) on delete restrict on update restrict;
 create index ix_subscriptions_route_id on device_information.subscriptions (route_id);
+create index ix_subscriptions_route_id_device_id on device_information.subscriptions (route_id, device_id);
 
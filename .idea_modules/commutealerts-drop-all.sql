@@ -27,9 +27,16 @@ drop table if exists agency_alerts.agencies cascade;
 drop table if exists agency_alerts.alerts cascade;
 drop sequence if exists alert_id_seq;
 
+drop view if exists agency_alerts.active_alert_history;
+drop table if exists agency_alerts.alert_history cascade;
+drop sequence if exists alert_history_id_seq;
+
 drop table if exists device_information.devices cascade;
 drop sequence if exists device_id_seq;
 
+drop table if exists device_information.resubscribe_jobs cascade;
+drop sequence if exists resubscribe_job_id_seq;
+
 drop table if exists agency_alerts.locations cascade;
 drop sequence if exists location_id_seq;
 
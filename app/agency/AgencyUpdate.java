@@ -59,7 +59,7 @@ public abstract class AgencyUpdate {
             AlertHelper.parseHtml(updatedAgency);
 
             // Get existing alerts for the agency.
-            Agency existingAgency = mAgencyManager.getSavedAgency(updatedAgency.getId(), false);
+            Agency existingAgency = mAgencyManager.getSavedAgency(updatedAgency.getId());
             if (existingAgency == null) {
                 Logger.info(String.format("No existing agency found for %s. Saving but not dispatching.", updatedAgency.getName()));
                 mAgencyManager.saveAgency(updatedAgency);
@@ -86,7 +86,11 @@ public abstract class AgencyUpdate {
             Logger.info(String.format("[%d] stale messages.", staleMessagesCount));
 
             if (modifications.hasChangedAlerts()) {
-                mAgencyManager.saveAgency(updatedAgency);
+                // Unsaved modifications are found again by the next update, so only send them once saved.
+                if (!mAgencyManager.saveAgencyModifications(existingAgency, updatedAgency, modifications)) {
+                    Logger.error(String.format("Updated %s Agency Alerts could not be persisted. Not sending to subscribers.", updatedAgency.getName()));
+                    return;
+                }
 
                 Logger.info(String.format("Updated %s Agency Alerts persisted. Sending to subscribers.", updatedAgency.getName()));
                 mPushMessageManager.dispatchAlerts(modifications);
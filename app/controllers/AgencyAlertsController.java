@@ -1,45 +1,73 @@
 package controllers;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.inject.Inject;
 
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
-import agency.InAppMessageUpdate;
-import agency.SeptaAgencyUpdate;
-import dao.AgencyDao;
-import main.Constants;
+import akka.stream.Materializer;
+import akka.util.ByteString;
+import dao.AlertHistoryDao;
+import helpers.RequestHelper;
+import helpers.RouteQuery;
 import models.alerts.Agency;
-import models.alerts.Route;
+import models.alerts.AlertHistory;
+import models.snapshots.AgencySnapshot;
+import models.snapshots.RouteSnapshot;
+import play.Logger;
+import play.http.HttpEntity;
 import play.libs.Json;
-import play.libs.ws.WSClient;
-import play.libs.ws.WSResponse;
 import play.mvc.Controller;
+import play.mvc.Http;
 import play.mvc.Result;
+import serializers.AgencyCborCodec;
+import serializers.AgencyJsonWriter;
+import serializers.RouteBatchEncoder;
 import services.AgencyManager;
+import services.ExecutionPools;
+import services.RawFeedProxy;
+import services.ResponseCache;
 
 public class AgencyAlertsController extends Controller {
-    // TODO Remove
-    // private static final String SEPTA_RAW_JSON_FEED = "http://localhost:8181/alerts/v1/agency/1/raw";
-    private static final String SEPTA_RAW_JSON_FEED = "http://www3.septa.org/hackathon/Alerts/get_alert_data.php";
-    private static final String INAPP_RAW_JSON_FEED = String.format(Locale.US,
-            "%s/alerts/inapp", Constants.PROD_API_SERVER_HOST);
-
-    private AgencyDao mAgencyDao;
-    private WSClient mWSClient;
+    private static final String ROUTE_LIST_KEY = "routes";
+    private static final int MAX_BATCH_ROUTES = 50;
+    private static final long DEFAULT_HISTORY_RANGE_MS = TimeUnit.DAYS.toMillis(30);
+    private static final int DEFAULT_HISTORY_LIMIT = 50;
+    private static final int MAX_HISTORY_LIMIT = 200;
+
+    private AlertHistoryDao mAlertHistoryDao;
+    private RawFeedProxy mRawFeedProxy;
     private AgencyManager mAgencyManager;
+    private ExecutionPools mExecutionPools;
+    private Materializer mMaterializer;
 
     @Inject
-    public AgencyAlertsController(AgencyDao mAgencyDao, WSClient mWSClient, AgencyManager mAgencyManager) {
-        this.mAgencyDao = mAgencyDao;
-        this.mWSClient = mWSClient;
+    public AgencyAlertsController(AlertHistoryDao mAlertHistoryDao, RawFeedProxy mRawFeedProxy,
+                                  AgencyManager mAgencyManager, ExecutionPools mExecutionPools,
+                                  Materializer mMaterializer) {
+        this.mAlertHistoryDao = mAlertHistoryDao;
+        this.mRawFeedProxy = mRawFeedProxy;
         this.mAgencyManager = mAgencyManager;
+        this.mExecutionPools = mExecutionPools;
+        this.mMaterializer = mMaterializer;
     }
 
     public Result index() {
@@ -47,39 +75,21 @@ public class AgencyAlertsController extends Controller {
     }
 
     /**
-     * Get raw alerts by proxying the SEPTA alerts feed. Always makes a live query without
-     * hitting cache. Should be a private API.
+     * Get raw alerts by proxying the SEPTA alerts feed. Feed bodies are briefly held in memory
+     * and shared between concurrent requests, so the upstream server sees a fixed request rate.
+     * Should be a private API.
      *
      * @return Raw Agency alerts feed (json, xml, etc) wrapped in a CompletionStage.
      */
     public CompletionStage<Result> fetchRawAgencyAlerts(@Nullable String agencyId) {
-        if (agencyId == null) {
-            return CompletableFuture.completedFuture(badRequest());
-        }
-
-        CompletionStage<WSResponse> agencyDownloadStage = null;
-        if (SeptaAgencyUpdate.AGENCY_ID.equals(agencyId)) {
-            String route = request().getQueryString("req1");
-            agencyDownloadStage = mWSClient
-                    .url(SEPTA_RAW_JSON_FEED)
-                    .setFollowRedirects(true)
-                    .setQueryString(route != null ? String.format(Locale.US, "req1=%s", route) : "all")
-                    .get();
-
-        } else if (InAppMessageUpdate.AGENCY_ID.equals(agencyId)) {
-                agencyDownloadStage = mWSClient
-                        .url(INAPP_RAW_JSON_FEED)
-                        .setFollowRedirects(true)
-                        .get();
-        }
-
-        if (agencyDownloadStage == null) {
+        if (agencyId == null || !mRawFeedProxy.hasFeed(agencyId)) {
             return CompletableFuture.completedFuture(badRequest());
         }
 
-        return agencyDownloadStage.thenApply(response -> {
-            if (response.getStatus() == 200 && response.getBody() != null) {
-                return ok(response.getBody()).as("application/json");
+        String route = request().getQueryString("req1");
+        return mRawFeedProxy.getFeed(agencyId, route).thenApply(feed -> {
+            if (feed != null) {
+                return ok().sendEntity(new HttpEntity.Strict(feed.getBody(), Optional.of("application/json")));
             }
             return badRequest();
         });
@@ -88,22 +98,57 @@ public class AgencyAlertsController extends Controller {
     /**
      * Fetches an {@link Agency} and all subsequent Routes, Alerts, and Locations for that Agency.
      * 1) Checks agency cache to try and quickly retrieve the data.
-     * 2) If the cache misses, Make a request to the database to retrieve Agencies.
+     * 2) If the cache misses, join the single shared database load for the agency.
+     * <p>
+     * Clients which accept "application/cbor" (and not JSON) are sent the compact CBOR encoding.
+     * If the agency was not pre-encoded, JSON is streamed to a chunked response instead.
+     * <p>
+     * Routes can be filtered with "type", "transit" and "highPriority", and reduced to the
+     * comma separated "fields" (see {@link RouteQuery}).
      *
      * @param agencyId id of the agency to return.
-     * @return Entire agency in json format.
+     * @return Entire agency in json or cbor format.
      */
     public CompletionStage<Result> getAgencyAlerts(String agencyId) {
-        return CompletableFuture.supplyAsync(() -> {
-            Agency agency = mAgencyManager.getCachedAgency(agencyId);
+        RouteQuery routeQuery;
+        try {
+            routeQuery = RouteQuery.from(request());
+
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(badRequest(Json.newObject()));
+        }
+
+        boolean cbor = RequestHelper.prefersCbor(request());
+        return mAgencyManager.getAgency(agencyId).thenApply(agency -> {
             if (agency == null) {
-                agency = mAgencyDao.getAgency(agencyId);
+                return ok(Json.newObject());
+            }
+
+            // Projected and filtered queries are always JSON.
+            if (routeQuery != null) {
+                return ok(routeQuery.apply(agency)).withHeader(VARY, ACCEPT);
             }
-            return agency;
 
-        }).thenApply(agency -> agency != null
-                ? ok(Json.toJson(agency))
-                : ok(Json.newObject()));
+            // Use the bodies encoded when the snapshot was published, if there are any.
+            ByteString body = cbor ? agency.getCbor() : agency.getJson();
+            if (body == null && !cbor) {
+                return ok()
+                        .chunked(AgencyJsonWriter.stream(agency, mExecutionPools.getStreamExecutor(), mMaterializer))
+                        .as(Http.MimeTypes.JSON)
+                        .withHeader(VARY, ACCEPT);
+            }
+
+            try {
+                if (body == null) {
+                    body = ByteString.fromArray(AgencyCborCodec.encode(agency));
+                }
+                return encodedResult(body, cbor);
+
+            } catch (IOException e) {
+                Logger.error(String.format("Error encoding agency %s.", agencyId), e);
+                return internalServerError();
+            }
+        }).thenApply(result -> result.withHeader(ResponseCache.SURROGATE_KEY_HEADER, ResponseCache.agencyKey(agencyId)));
     }
 
     /**
@@ -112,8 +157,19 @@ public class AgencyAlertsController extends Controller {
      * @return collection of {@link Agency}'s.
      */
     public CompletableFuture<Result> getAgencies() {
+        boolean cbor = RequestHelper.prefersCbor(request());
         return CompletableFuture.supplyAsync(() -> {
-            List<Agency> agencies = mAgencyManager.getCachedAgencyMetadata();
+            List<AgencySnapshot> agencies = mAgencyManager.getCachedAgencyMetadata();
+            if (cbor) {
+                try {
+                    return encodedResult(ByteString.fromArray(AgencyCborCodec.encodeMetadata(agencies)), true);
+
+                } catch (IOException e) {
+                    Logger.error("Error encoding agencies.", e);
+                    return internalServerError();
+                }
+            }
+
             JsonNode jsonAgencies = Json.toJson(agencies);
 
             // Delete all nodes with children (it will just delete "routes" from the agencies
@@ -128,8 +184,8 @@ public class AgencyAlertsController extends Controller {
                 }
             }
 
-            return ok(jsonAgencies.toString());
-        });
+            return ok(jsonAgencies.toString()).withHeader(VARY, ACCEPT);
+        }, mExecutionPools.getCpuExecutor()).thenApply(result -> result.withHeader(ResponseCache.SURROGATE_KEY_HEADER, ResponseCache.AGENCIES_KEY));
     }
 
     /**
@@ -140,25 +196,223 @@ public class AgencyAlertsController extends Controller {
      * @param routeId  routeName for route.
      * @return Collection of matched alerts.
      */
-    public CompletableFuture<Result> getRouteAlerts(String agencyId, String routeId) {
+    public CompletionStage<Result> getRouteAlerts(String agencyId, String routeId) {
+        if (agencyId == null || routeId == null) {
+            return CompletableFuture.completedFuture(badRequest(Json.newObject()));
+        }
+
+        // Find the route within the cached (or single shared load of the) agency.
+        boolean cbor = RequestHelper.prefersCbor(request());
+        return mAgencyManager.getAgency(agencyId).thenApply(agency -> {
+            RouteSnapshot route = agency != null ? agency.getRoute(routeId) : null;
+            if (route == null) {
+                return ok(Json.newObject());
+            }
+
+            if (cbor) {
+                try {
+                    return encodedResult(ByteString.fromArray(AgencyCborCodec.encode(route)), true);
+
+                } catch (IOException e) {
+                    Logger.error(String.format("Error encoding route %s.", routeId), e);
+                    return internalServerError();
+                }
+            }
+            return ok(Json.toJson(route)).withHeader(VARY, ACCEPT);
+        }).thenApply(result -> result.withHeader(ResponseCache.SURROGATE_KEY_HEADER, ResponseCache.routeKey(agencyId, routeId)));
+    }
+
+    /**
+     * Get a page of the alerts a route published at any time within a range, newest first.
+     * <p>
+     * The range is set with "from" and "to" (ISO-8601 instants or dates), and defaults to the
+     * last 30 days. Up to "limit" alerts are returned; the next page is fetched by passing the
+     * returned "nextBefore" as "before". History changes on every agency update, so it is not
+     * response cached.
+     *
+     * @param agencyId agencyId for route.
+     * @param routeId  routeId for route.
+     * @return page of the route's alert history.
+     */
+    public CompletionStage<Result> getRouteHistory(String agencyId, String routeId) {
+        Http.Request request = request();
+        Date to;
+        Date from;
+        Long beforeId;
+        int limit;
+        try {
+            String toParam = request.getQueryString("to");
+            String fromParam = request.getQueryString("from");
+            String beforeParam = request.getQueryString("before");
+            String limitParam = request.getQueryString("limit");
+
+            to = toParam != null ? parseHistoryTime(toParam) : new Date();
+            from = fromParam != null ? parseHistoryTime(fromParam) : new Date(to.getTime() - DEFAULT_HISTORY_RANGE_MS);
+            beforeId = beforeParam != null ? Long.valueOf(beforeParam) : null;
+            limit = limitParam != null ? Integer.parseInt(limitParam) : DEFAULT_HISTORY_LIMIT;
+
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            return CompletableFuture.completedFuture(badRequest(Json.newObject()));
+        }
+
+        if (agencyId == null || routeId == null || !from.before(to) || limit < 1 || limit > MAX_HISTORY_LIMIT) {
+            return CompletableFuture.completedFuture(badRequest(Json.newObject()));
+        }
+
         return CompletableFuture.supplyAsync(() -> {
-            if (agencyId != null && routeId != null) {
-
-                // Check the agency cache for a valid route.
-                Agency agency = mAgencyManager.getCachedAgency(agencyId);
-                if (agency != null && agency.getRoutes() != null) {
-                    for (Route agencyRoute : agency.getRoutes()) {
-                        if (agencyRoute.getRouteId().equals(routeId)) {
-                            return ok(Json.toJson(agencyRoute));
-                        }
-                    }
+            List<AlertHistory> alerts = mAlertHistoryDao.getRouteHistory(agencyId, routeId, from, to, beforeId, limit);
+
+            ObjectNode history = Json.newObject();
+            history.put("agencyId", agencyId);
+            history.put("routeId", routeId);
+            history.put("from", from.getTime());
+            history.put("to", to.getTime());
+
+            ArrayNode jsonAlerts = history.putArray("alerts");
+            for (AlertHistory alert : alerts) {
+                ObjectNode jsonAlert = jsonAlerts.addObject();
+                jsonAlert.put("type", alert.getType() != null ? alert.getType().name() : null);
+                jsonAlert.put("messageTitle", alert.getMessageTitle());
+                jsonAlert.put("messageSubtitle", alert.getMessageSubtitle());
+                jsonAlert.put("messageBody", alert.getMessageBody());
+                jsonAlert.put("externalUri", alert.getExternalUri());
+                jsonAlert.put("highPriority", alert.getHighPriority());
+                jsonAlert.put("lastUpdated", alert.getLastUpdated() != null ? alert.getLastUpdated().getTimeInMillis() : null);
+                jsonAlert.put("startedAt", alert.getStartedAt().getTime());
+                jsonAlert.put("endedAt", alert.getEndedAt() != null ? alert.getEndedAt().getTime() : null);
+            }
+
+            if (alerts.size() == limit) {
+                history.put("nextBefore", alerts.get(alerts.size() - 1).getId());
+            } else {
+                history.putNull("nextBefore");
+            }
+            return ok(history);
+        }, mExecutionPools.getDatabaseExecutor());
+    }
+
+    /**
+     * Get the alerts for a batch of routes (such as a device's subscriptions) in one response.
+     * The routeIds are sent as a space or comma separated "routes" query parameter or form field,
+     * or as a JSON array (optionally as the "routes" member of an object) in a POST body.
+     * <p>
+     * The response is a JSON array assembled from each route's pre-encoded JSON, and is tagged
+     * with an ETag combined from the route digests, so unchanged batches are answered with 304.
+     *
+     * @param agencyId agencyId for the routes.
+     * @return JSON array of the matched routes.
+     */
+    public CompletionStage<Result> getRoutesAlerts(String agencyId) {
+        Http.Request request = request();
+        Set<String> routeIds = getBatchRouteIds(request);
+        if (agencyId == null || routeIds.isEmpty() || routeIds.size() > MAX_BATCH_ROUTES) {
+            return CompletableFuture.completedFuture(badRequest(Json.newObject()));
+        }
+
+        Optional<String> ifNoneMatch = request.header(IF_NONE_MATCH);
+        return mAgencyManager.getAgency(agencyId).thenApply(agency -> {
+            if (agency == null) {
+                return ok(Json.newArray());
+            }
+
+            try {
+                RouteBatchEncoder.RouteBatch routeBatch = RouteBatchEncoder.encode(agency, routeIds);
+                if (ifNoneMatch.isPresent() && ifNoneMatch.get().equals(routeBatch.getETag())) {
+                    return status(NOT_MODIFIED).withHeader(ETAG, routeBatch.getETag());
                 }
 
-                Route route = mAgencyDao.getRoute(agencyId, routeId);
-                return ok(Json.toJson(route));
+                return ok()
+                        .sendEntity(new HttpEntity.Strict(routeBatch.getBody(), Optional.of(Http.MimeTypes.JSON)))
+                        .withHeader(ETAG, routeBatch.getETag());
+
+            } catch (IOException e) {
+                Logger.error(String.format("Error encoding route batch for agency %s.", agencyId), e);
+                return internalServerError();
             }
+        }).thenApply(result -> result.withHeader(ResponseCache.SURROGATE_KEY_HEADER, getSurrogateKeys(agencyId, routeIds)));
+    }
 
-            return badRequest(Json.newObject());
-        });
+    /**
+     * Read the distinct routeIds of a batch request from its query string or body.
+     *
+     * @param request batch request.
+     * @return ordered set of routeIds, which is empty if none were sent.
+     */
+    private static Set<String> getBatchRouteIds(Http.Request request) {
+        Set<String> routeIds = new LinkedHashSet<>();
+
+        String[] queryRoutes = request.queryString().get(ROUTE_LIST_KEY);
+        if (queryRoutes != null) {
+            for (String queryRoute : queryRoutes) {
+                addRouteIds(routeIds, queryRoute);
+            }
+        }
+
+        Map<String, String[]> formEncodedMap = request.body().asFormUrlEncoded();
+        if (formEncodedMap != null && formEncodedMap.get(ROUTE_LIST_KEY) != null) {
+            for (String formRoute : formEncodedMap.get(ROUTE_LIST_KEY)) {
+                addRouteIds(routeIds, formRoute);
+            }
+        }
+
+        JsonNode jsonBody = request.body().asJson();
+        if (jsonBody != null) {
+            JsonNode jsonRoutes = jsonBody.isArray() ? jsonBody : jsonBody.get(ROUTE_LIST_KEY);
+            if (jsonRoutes != null && jsonRoutes.isArray()) {
+                for (JsonNode jsonRoute : jsonRoutes) {
+                    addRouteIds(routeIds, jsonRoute.asText());
+                }
+            }
+        }
+        return routeIds;
+    }
+
+    private static String getSurrogateKeys(String agencyId, Set<String> routeIds) {
+        StringBuilder surrogateKeys = new StringBuilder();
+        for (String routeId : routeIds) {
+            if (surrogateKeys.length() > 0) {
+                surrogateKeys.append(' ');
+            }
+            surrogateKeys.append(ResponseCache.routeKey(agencyId, routeId));
+        }
+        return surrogateKeys.toString();
+    }
+
+    private static void addRouteIds(Set<String> routeIds, String routeList) {
+        if (routeList != null) {
+            for (String routeId : routeList.trim().split("[\\s,]+")) {
+                if (!routeId.isEmpty()) {
+                    routeIds.add(routeId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parse a history range bound, either an ISO-8601 instant or a date (from the start of the
+     * day in the server's time zone).
+     *
+     * @param value instant or date.
+     * @return parsed time.
+     */
+    private static Date parseHistoryTime(String value) {
+        if (value.length() == 10) {
+            return Date.from(LocalDate.parse(value).atStartOfDay(ZoneId.systemDefault()).toInstant());
+        }
+        return Date.from(Instant.parse(value));
+    }
+
+    /**
+     * Send an already encoded agency response body.
+     *
+     * @param body encoded response body.
+     * @param cbor true if the body is cbor, false if it is json.
+     * @return the result, which varies by the request accept header.
+     */
+    private Result encodedResult(ByteString body, boolean cbor) {
+        String contentType = cbor ? AgencyCborCodec.CONTENT_TYPE : Http.MimeTypes.JSON;
+        return ok()
+                .sendEntity(new HttpEntity.Strict(body, Optional.of(contentType)))
+                .withHeader(VARY, ACCEPT);
     }
 }
@@ -1,9 +1,18 @@
 package controllers;
 
+import javax.inject.Inject;
+
 import play.mvc.Controller;
 import play.mvc.Result;
+import services.AgencyCacheWarmer;
 
 public class Application extends Controller {
+    private AgencyCacheWarmer mAgencyCacheWarmer;
+
+    @Inject
+    public Application(AgencyCacheWarmer agencyCacheWarmer) {
+        mAgencyCacheWarmer = agencyCacheWarmer;
+    }
 
     public Result index() {
         return ok();
@@ -12,4 +21,16 @@ public class Application extends Controller {
     public Result robots() {
         return ok("User-agent: *\nDisallow: /");
     }
+
+    /**
+     * Readiness check for the load balancer. Reports unavailable until the agency cache has
+     * been warmed after startup.
+     *
+     * @return 200 when ready to serve traffic, otherwise 503.
+     */
+    public Result ready() {
+        return mAgencyCacheWarmer.isReady()
+                ? ok("Ready")
+                : status(SERVICE_UNAVAILABLE, "Warming up");
+    }
 }
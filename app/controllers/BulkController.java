@@ -0,0 +1,412 @@
+package controllers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+
+import akka.stream.Materializer;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.StreamConverters;
+import akka.util.ByteString;
+import dao.AccountDao;
+import dao.DeviceDao;
+import helpers.BulkRecordReader;
+import models.accounts.Account;
+import models.alerts.Route;
+import models.devices.Device;
+import models.devices.Subscription;
+import play.Logger;
+import play.libs.F;
+import play.libs.Json;
+import play.libs.streams.Accumulator;
+import play.mvc.BodyParser;
+import play.mvc.Controller;
+import play.mvc.Http;
+import play.mvc.Result;
+import scala.concurrent.duration.FiniteDuration;
+import services.ExecutionPools;
+import services.RateLimiter;
+import services.RouteCatalog;
+
+/**
+ * The server-to-server API endpoint for registering and subscribing many devices in one
+ * request, for partners which run their own app backends.
+ * <p>
+ * The request body is a JSON array, or newline delimited JSON, of device records:
+ * {"device_uuid", "registration_id", "agency_id", "route_list", "app_id", "user_id"}. The
+ * route_list may be a JSON array or a space separated string; records without an agency_id and
+ * route_list only register the device and keep its existing subscriptions. Records whose
+ * route_list matches no routes of the agency are rejected.
+ * <p>
+ * Records are read as the body streams in and saved in batches. The response lists the result
+ * of each record by its index in the request, with any route ids which matched no route. No
+ * registration confirmation messages are sent.
+ */
+public class BulkController extends Controller {
+    private static final String API_KEY = "api_key";
+    private static final String DEVICE_UUID_KEY = "device_uuid";
+    private static final String REGISTRATION_TOKEN_KEY = "registration_id";
+    private static final String AGENCY_ID_KEY = "agency_id";
+    private static final String ROUTE_LIST_KEY = "route_list";
+    private static final String APP_ID_KEY = "app_id";
+    private static final String APP_USER_ID_KEY = "user_id";
+    private static final String INVALID_ROUTES_KEY = "invalid_routes";
+
+    private static final int BATCH_SIZE = 500;
+    private static final FiniteDuration BODY_READ_TIMEOUT = FiniteDuration.create(30, TimeUnit.SECONDS);
+
+    private AccountDao mAccountDao;
+    private DeviceDao mDeviceDao;
+    private RouteCatalog mRouteCatalog;
+    private RateLimiter mRateLimiter;
+    private Materializer mMaterializer;
+    private ExecutionPools mExecutionPools;
+
+    @Inject
+    public BulkController(AccountDao accountDao, DeviceDao deviceDao, RouteCatalog routeCatalog,
+                          RateLimiter rateLimiter, Materializer materializer, ExecutionPools executionPools) {
+        mAccountDao = accountDao;
+        mDeviceDao = deviceDao;
+        mRouteCatalog = routeCatalog;
+        mRateLimiter = rateLimiter;
+        mMaterializer = materializer;
+        mExecutionPools = executionPools;
+    }
+
+    /**
+     * Passes the request body through as a stream of bytes, without buffering it.
+     */
+    public static class StreamedBody implements BodyParser<Source<ByteString, ?>> {
+        @Override
+        public Accumulator<ByteString, F.Either<Result, Source<ByteString, ?>>> apply(Http.RequestHeader request) {
+            return Accumulator.<ByteString>source().map(F.Either::Right, Runnable::run);
+        }
+    }
+
+    /**
+     * Register and subscribe a stream of device records for the api_key in the query string.
+     *
+     * @return the result of each record, or an error if the account or body was invalid.
+     */
+    @BodyParser.Of(StreamedBody.class)
+    public CompletionStage<Result> saveDevices() {
+        String apiKey = request().getQueryString(API_KEY);
+
+        @SuppressWarnings("unchecked")
+        Source<ByteString, ?> body = request().body().as(Source.class);
+
+        if (apiKey == null || apiKey.isEmpty() || body == null) {
+            return CompletableFuture.completedFuture(badRequest("Missing api_key or request body"));
+        }
+
+        if (!mRateLimiter.tryAcquire(RateLimiter.GROUP_API_KEY, apiKey)) {
+            return CompletableFuture.completedFuture(status(TOO_MANY_REQUESTS, "Too many requests for api_key"));
+        }
+
+        // The body is read on a stream pool thread, as it blocks on the client. Only the account
+        // lookup and batch saves take database pool threads.
+        return CompletableFuture
+                .supplyAsync(() -> mAccountDao.getAccountForKey(apiKey), mExecutionPools.getDatabaseExecutor())
+                .thenApplyAsync(account -> {
+                    if (account == null || !account.active ||
+                            account.platformAccounts == null || account.platformAccounts.isEmpty()) {
+                        return unauthorized("No platform account registered for api_key");
+                    }
+                    return readDevices(body, account, apiKey);
+                }, mExecutionPools.getStreamExecutor());
+    }
+
+    /**
+     * Read device records from the request body as it streams in, saving them in batches.
+     *
+     * @return the result of each record, or an error if the body was invalid.
+     */
+    @Nonnull
+    private Result readDevices(@Nonnull Source<ByteString, ?> body, @Nonnull Account account, @Nonnull String apiKey) {
+        BulkResults results = new BulkResults();
+        InputStream inputStream = body.runWith(StreamConverters.asInputStream(BODY_READ_TIMEOUT), mMaterializer);
+
+        try (BulkRecordReader reader = new BulkRecordReader(inputStream)) {
+            List<Device> batch = new ArrayList<>();
+            Set<String> batchKeys = new HashSet<>();
+            JsonNode record;
+
+            while ((record = reader.next()) != null) {
+                int index = results.nextIndex();
+                Device device = createDevice(record, account);
+                if (device == null) {
+                    results.addFailure(index, record.path(DEVICE_UUID_KEY).asText(null), "Invalid device record");
+                    continue;
+                }
+
+                List<String> invalidRouteIds = new ArrayList<>();
+                if (!addSubscriptions(device, record, invalidRouteIds)) {
+                    results.addFailure(index, device.getDeviceId(), "No valid routes in route_list")
+                            .set(INVALID_ROUTES_KEY, Json.toJson(invalidRouteIds));
+                    continue;
+                }
+
+                // A batch can only hold one record for each device.
+                if (batchKeys.contains(device.getDeviceId()) || batchKeys.contains(device.getToken()) ||
+                        batch.size() >= BATCH_SIZE) {
+                    saveBatch(batch, results);
+                    batchKeys.clear();
+                }
+
+                batch.add(device);
+                batchKeys.add(device.getDeviceId());
+                batchKeys.add(device.getToken());
+                ObjectNode result = results.addPending(index, device.getDeviceId());
+                if (!invalidRouteIds.isEmpty()) {
+                    result.set(INVALID_ROUTES_KEY, Json.toJson(invalidRouteIds));
+                }
+            }
+
+            saveBatch(batch, results);
+
+        } catch (IOException e) {
+            Logger.error(String.format("Error reading bulk device records: %s", e.getMessage()));
+            return badRequest(results.toJson().put("error", "Invalid JSON after record " + results.size()));
+        }
+
+        Logger.info(String.format("Bulk saved %d of %d device records for %s.",
+                results.getSavedCount(), results.size(), apiKey));
+        return ok(results.toJson());
+    }
+
+    /**
+     * Save a batch of devices, falling back to saving each device alone if the batch fails so
+     * that one bad record doesn't fail the others. The save runs on the database pool, and the
+     * reader waits for it before reading on.
+     */
+    private void saveBatch(@Nonnull List<Device> batch, @Nonnull BulkResults results) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        CompletableFuture.runAsync(() -> {
+            if (mDeviceDao.saveDevices(copyDevices(batch))) {
+                results.completePending(null);
+
+            } else {
+                for (Device device : batch) {
+                    results.completePending(device.getDeviceId(), mDeviceDao.saveDevice(device)
+                            ? null
+                            : "Error saving device");
+                }
+            }
+        }, mExecutionPools.getDatabaseExecutor()).join();
+        batch.clear();
+    }
+
+    /**
+     * Create a device from a record, without its subscriptions.
+     *
+     * @return the device, or null if the record is missing required fields.
+     */
+    @Nullable
+    private Device createDevice(@Nonnull JsonNode record, @Nonnull Account account) {
+        String deviceId = record.path(DEVICE_UUID_KEY).asText(null);
+        String registrationId = record.path(REGISTRATION_TOKEN_KEY).asText(null);
+        if (!record.isObject() || deviceId == null || deviceId.isEmpty() ||
+                registrationId == null || registrationId.isEmpty()) {
+            return null;
+        }
+
+        Device device = new Device();
+        device.setAccount(account);
+        device.setDeviceId(deviceId);
+        device.setToken(registrationId);
+        device.setAppKey(record.path(APP_ID_KEY).asText(null));
+        device.setUserKey(record.path(APP_USER_ID_KEY).asText(null));
+        return device;
+    }
+
+    /**
+     * Subscribe a device to the routes in its record, collecting the route ids which matched no
+     * route of the agency. Records without an agency_id and route_list are left unsubscribed.
+     *
+     * @return false if the record has a route_list which matched no routes.
+     */
+    private boolean addSubscriptions(@Nonnull Device device, @Nonnull JsonNode record,
+                                     @Nonnull List<String> invalidRouteIds) {
+        String agencyId = record.path(AGENCY_ID_KEY).asText(null);
+        JsonNode routeList = record.path(ROUTE_LIST_KEY);
+        if (agencyId == null || routeList.isMissingNode()) {
+            return true;
+        }
+
+        // Fixes incorrect agencyId set in Android app.
+        if (agencyId.equals("1")) {
+            agencyId = "SEPTA";
+        }
+
+        List<String> routeIds = new ArrayList<>();
+        if (routeList.isArray()) {
+            for (JsonNode routeId : routeList) {
+                routeIds.add(routeId.asText());
+            }
+        } else {
+            routeIds.addAll(Arrays.asList(routeList.asText().trim().split(" ")));
+        }
+
+        Map<String, Route> validRoutes = new LinkedHashMap<>();
+        for (String routeId : routeIds) {
+            List<Route> routes = mRouteCatalog.getRoutes(agencyId, Collections.singletonList(routeId));
+            if (routes.isEmpty()) {
+                invalidRouteIds.add(routeId);
+            }
+            for (Route route : routes) {
+                validRoutes.putIfAbsent(route.getRouteId(), route);
+            }
+        }
+
+        if (validRoutes.isEmpty()) {
+            return false;
+        }
+
+        List<Subscription> subscriptions = new ArrayList<>();
+        for (Route route : validRoutes.values()) {
+            Subscription subscription = new Subscription();
+            subscription.setRoute(route);
+            subscriptions.add(subscription);
+        }
+        device.setSubscriptions(subscriptions);
+        return true;
+    }
+
+    /**
+     * Copy devices (and their subscriptions) so a failed batch save leaves the originals unsaved
+     * for the single device fallback.
+     */
+    @Nonnull
+    private static List<Device> copyDevices(@Nonnull List<Device> devices) {
+        List<Device> copies = new ArrayList<>();
+        for (Device device : devices) {
+            Device copy = new Device();
+            copy.setAccount(device.getAccount());
+            copy.setDeviceId(device.getDeviceId());
+            copy.setToken(device.getToken());
+            copy.setAppKey(device.getAppKey());
+            copy.setUserKey(device.getUserKey());
+
+            if (device.getSubscriptions() != null) {
+                List<Subscription> subscriptions = new ArrayList<>();
+                for (Subscription subscription : device.getSubscriptions()) {
+                    Subscription subscriptionCopy = new Subscription();
+                    subscriptionCopy.setRoute(subscription.getRoute());
+                    subscriptions.add(subscriptionCopy);
+                }
+                copy.setSubscriptions(subscriptions);
+            }
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    /**
+     * The result of each record in a bulk request. Records waiting in the current batch are
+     * pending until the batch is saved.
+     */
+    private static class BulkResults {
+        private final ArrayNode results = Json.newArray();
+        private final List<ObjectNode> pending = new ArrayList<>();
+        private int recordCount;
+        private int savedCount;
+
+        private int nextIndex() {
+            return recordCount++;
+        }
+
+        private int size() {
+            return recordCount;
+        }
+
+        private int getSavedCount() {
+            return savedCount;
+        }
+
+        @Nonnull
+        private ObjectNode addFailure(int index, @Nullable String deviceId, @Nonnull String error) {
+            ObjectNode result = createResult(index, deviceId).put("saved", false).put("error", error);
+            results.add(result);
+            return result;
+        }
+
+        @Nonnull
+        private ObjectNode addPending(int index, @Nonnull String deviceId) {
+            ObjectNode result = createResult(index, deviceId);
+            results.add(result);
+            pending.add(result);
+            return result;
+        }
+
+        /**
+         * Complete every pending record with the same result.
+         */
+        private void completePending(@Nullable String error) {
+            for (ObjectNode result : pending) {
+                complete(result, error);
+            }
+            pending.clear();
+        }
+
+        /**
+         * Complete the first pending record for a device.
+         */
+        private void completePending(@Nonnull String deviceId, @Nullable String error) {
+            for (int i = 0; i < pending.size(); i++) {
+                if (deviceId.equals(pending.get(i).path(DEVICE_UUID_KEY).asText())) {
+                    complete(pending.remove(i), error);
+                    return;
+                }
+            }
+        }
+
+        private void complete(@Nonnull ObjectNode result, @Nullable String error) {
+            result.put("saved", error == null);
+            if (error != null) {
+                result.put("error", error);
+            } else {
+                savedCount++;
+            }
+        }
+
+        private ObjectNode createResult(int index, @Nullable String deviceId) {
+            ObjectNode result = Json.newObject();
+            result.put("index", index);
+            result.put(DEVICE_UUID_KEY, deviceId);
+            return result;
+        }
+
+        @Nonnull
+        private ObjectNode toJson() {
+            completePending("Not saved");
+
+            ObjectNode json = Json.newObject();
+            json.put("records", recordCount);
+            json.put("saved", savedCount);
+            json.put("failed", recordCount - savedCount);
+            json.set("results", results);
+            return json;
+        }
+    }
+}
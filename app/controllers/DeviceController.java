@@ -1,6 +1,5 @@
 package controllers;
 
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
@@ -11,24 +10,19 @@ import javax.inject.Inject;
 
 import dao.AccountDao;
 import dao.DeviceDao;
-import enums.pushservices.FailureType;
 import enums.pushservices.PlatformType;
-import exceptions.pushservices.MessageValidationException;
-import helpers.AlertHelper;
-import interfaces.pushservices.TaskQueueListener;
 import models.accounts.Account;
 import models.accounts.PlatformAccount;
 import models.devices.Device;
-import models.pushservices.app.UpdatedRecipient;
-import models.pushservices.db.Message;
-import models.pushservices.db.PlatformFailure;
-import models.pushservices.db.Recipient;
-import play.Logger;
+import models.devices.ResubscribeJob;
+import play.libs.Json;
 import play.mvc.Controller;
 import play.mvc.Http;
 import play.mvc.Result;
+import services.ExecutionPools;
 import services.PushMessageManager;
-import services.pushservices.TaskQueue;
+import services.RateLimiter;
+import services.ResubscribeBroadcaster;
 
 
 /**
@@ -45,14 +39,20 @@ public class DeviceController extends Controller {
     private AccountDao mAccountDao;
     private DeviceDao mDeviceDao;
     private PushMessageManager mPushMessageManager;
-    private TaskQueue mTaskQueue;
+    private ResubscribeBroadcaster mResubscribeBroadcaster;
+    private RateLimiter mRateLimiter;
+    private ExecutionPools mExecutionPools;
 
     @Inject
-    public DeviceController(AccountDao accountDao, DeviceDao deviceDao, PushMessageManager pushMessageManager, TaskQueue taskQueue) {
+    public DeviceController(AccountDao accountDao, DeviceDao deviceDao, PushMessageManager pushMessageManager,
+                            ResubscribeBroadcaster resubscribeBroadcaster, RateLimiter rateLimiter,
+                            ExecutionPools executionPools) {
         mAccountDao = accountDao;
         mDeviceDao = deviceDao;
         mPushMessageManager = pushMessageManager;
-        mTaskQueue = taskQueue;
+        mResubscribeBroadcaster = resubscribeBroadcaster;
+        mRateLimiter = rateLimiter;
+        mExecutionPools = executionPools;
     }
 
     // Return results enum
@@ -61,6 +61,7 @@ public class DeviceController extends Controller {
         MISSING_PARAMS_RESULT(badRequest("Invalid registration parameters in request")),
         BAD_ACCOUNT(unauthorized("No platform account registered for api_key")),
         OVERDRAWN_ACCOUNT(paymentRequired("Over quota for account. Email help@splendidbits.co")),
+        RATE_LIMITED(status(TOO_MANY_REQUESTS, "Too many requests for api_key")),
         BAD_REGISTRATION_REQUEST(badRequest("Error adding device registration")),
         UNKNOWN_ERROR(badRequest("Unknown error saving the device registration."));
 
@@ -79,52 +80,54 @@ public class DeviceController extends Controller {
      */
     public CompletionStage<Result> register() {
         CompletionStage<DeviceControllerResult> promiseOfRegistration = initiateRegistration(request());
-        return promiseOfRegistration.thenApplyAsync(deviceControllerResult -> deviceControllerResult.value);
+        return promiseOfRegistration.thenApply(deviceControllerResult -> deviceControllerResult.value);
     }
 
     /**
      * Requests that all known devices re-send their route subscriptions by pinging each one with a fake
-     * route. TODO: create a real non-fallback key to perform this action.
+     * route. The devices are pinged in waves by a background job. TODO: create a real non-fallback key
+     * to perform this action.
      *
-     * @return A Result.
+     * @return A Result with the started (or already running) job.
      */
     public CompletionStage<Result> requestDeviceSubscriptionResend(final @Nullable String apiKey) {
-        return CompletableFuture.supplyAsync(() -> {
-            if (apiKey == null || apiKey.isEmpty()) {
-                return DeviceControllerResult.MISSING_PARAMS_RESULT.value;
-            }
+        if (apiKey == null || apiKey.isEmpty()) {
+            return CompletableFuture.completedFuture(DeviceControllerResult.MISSING_PARAMS_RESULT.value);
+        }
+
+        // Shed clients over their api_key limit before taking a database pool thread.
+        if (!mRateLimiter.tryAcquire(RateLimiter.GROUP_API_KEY, apiKey)) {
+            return CompletableFuture.completedFuture(DeviceControllerResult.RATE_LIMITED.value);
+        }
 
+        return CompletableFuture.supplyAsync(() -> {
             // Return error if there is no Account or platform accounts for apiKey.
             Account account = mAccountDao.getAccountForKey(apiKey);
             if (account == null || !account.active || account.platformAccounts == null || account.platformAccounts.isEmpty()) {
                 return DeviceControllerResult.BAD_ACCOUNT.value;
             }
 
-            // Fetch all devices for the given account.
-            List<Device> allDevices = mDeviceDao.getAccountDevices(account.apiKey, 1);
-            if (allDevices.isEmpty()) {
-                return DeviceControllerResult.OK.value;
-            }
-
-            // Send update using one of each platform.
-            for (PlatformAccount platformAccount : account.platformAccounts) {
-                if (platformAccount.platformType.equals(PlatformType.SERVICE_GCM)) {
-
-                    // Create pu1sh services messages for the update.
-                    List<Message> messages = AlertHelper.getResubscribeMessages(allDevices, platformAccount);
-                    if (!messages.isEmpty()) {
-                        try {
-                            mTaskQueue.queueMessages(messages, new PingAllDevicesCallback());
-
-                        } catch (MessageValidationException e) {
-                            Logger.error(String.format("Error sending Task to push-services: %s", e.getMessage()));
-                        }
-                    }
-                }
+            ResubscribeJob job = mResubscribeBroadcaster.startJob(account);
+            if (job == null) {
+                return DeviceControllerResult.UNKNOWN_ERROR.value;
             }
+            return status(ACCEPTED, Json.toJson(job));
+        }, mExecutionPools.getDatabaseExecutor());
+    }
 
-            return DeviceControllerResult.OK.value;
-        });
+    /**
+     * Get the progress of a resubscribe job.
+     *
+     * @param jobId id of the job.
+     * @return A Result with the job.
+     */
+    public CompletionStage<Result> getDeviceSubscriptionResend(long jobId) {
+        return CompletableFuture.supplyAsync(() -> {
+            ResubscribeJob job = mResubscribeBroadcaster.getJob(jobId);
+            return job != null
+                    ? ok(Json.toJson(job))
+                    : notFound(Json.newObject());
+        }, mExecutionPools.getDatabaseExecutor());
     }
 
     /**
@@ -134,38 +137,43 @@ public class DeviceController extends Controller {
      */
     @Nonnull
     private CompletionStage<DeviceControllerResult> initiateRegistration(Http.Request request) {
-        return CompletableFuture.supplyAsync(() -> {
-            Map<String, String[]> requestMap = request.body().asFormUrlEncoded();
-            boolean deviceUpdated = false;
+        Map<String, String[]> requestMap = request.body().asFormUrlEncoded();
+        if (requestMap == null) {
+            return CompletableFuture.completedFuture(DeviceControllerResult.MISSING_PARAMS_RESULT);
+        }
 
-            if (requestMap == null) {
-                return DeviceControllerResult.MISSING_PARAMS_RESULT;
-            }
+        String deviceId = requestMap.get(DEVICE_UUID_KEY) != null
+                ? requestMap.get(DEVICE_UUID_KEY)[0]
+                : null;
 
-            String deviceId = requestMap.get(DEVICE_UUID_KEY) != null
-                    ? requestMap.get(DEVICE_UUID_KEY)[0]
-                    : null;
+        String registrationId = requestMap.get(REGISTRATION_TOKEN_KEY) != null
+                ? requestMap.get(REGISTRATION_TOKEN_KEY)[0]
+                : null;
 
-            String registrationId = requestMap.get(REGISTRATION_TOKEN_KEY) != null
-                    ? requestMap.get(REGISTRATION_TOKEN_KEY)[0]
-                    : null;
+        String apiKey = requestMap.get(API_KEY) != null
+                ? requestMap.get(API_KEY)[0]
+                : null;
 
-            String apiKey = requestMap.get(API_KEY) != null
-                    ? requestMap.get(API_KEY)[0]
-                    : null;
+        String appKey = requestMap.get(APP_ID_KEY) != null
+                ? requestMap.get(APP_ID_KEY)[0]
+                : null;
 
-            String appKey = requestMap.get(APP_ID_KEY) != null
-                    ? requestMap.get(APP_ID_KEY)[0]
-                    : null;
+        String userKey = requestMap.get(APP_USER_ID_KEY) != null
+                ? requestMap.get(APP_USER_ID_KEY)[0]
+                : null;
 
-            String userKey = requestMap.get(APP_USER_ID_KEY) != null
-                    ? requestMap.get(APP_USER_ID_KEY)[0]
-                    : null;
+        // Check that there was a valid registration token and device uuid.
+        if (registrationId == null || deviceId == null || apiKey == null) {
+            return CompletableFuture.completedFuture(DeviceControllerResult.MISSING_PARAMS_RESULT);
+        }
 
-            // Check that there was a valid registration token and device uuid.
-            if (registrationId == null || deviceId == null || apiKey == null) {
-                return DeviceControllerResult.MISSING_PARAMS_RESULT;
-            }
+        // Shed clients over their api_key limit before taking a database pool thread.
+        if (!mRateLimiter.tryAcquire(RateLimiter.GROUP_API_KEY, apiKey)) {
+            return CompletableFuture.completedFuture(DeviceControllerResult.RATE_LIMITED);
+        }
+
+        return CompletableFuture.supplyAsync(() -> {
+            boolean deviceUpdated = false;
 
             Account account = mAccountDao.getAccountForKey(apiKey);
             if (account == null || !account.active) {
@@ -176,6 +184,11 @@ public class DeviceController extends Controller {
                 return DeviceControllerResult.BAD_ACCOUNT;
             }
 
+            // Devices register on every launch, usually with an unchanged registration.
+            if (mDeviceDao.isRegistered(deviceId, registrationId)) {
+                return DeviceControllerResult.OK;
+            }
+
             Device device = mDeviceDao.getDevice(deviceId, registrationId);
             if (device == null) {
                 deviceUpdated = true;
@@ -213,48 +226,6 @@ public class DeviceController extends Controller {
             }
 
             return DeviceControllerResult.OK;
-        });
-    }
-
-    /*
-     * Callback received from provider with results of device message.
-     */
-    private class PingAllDevicesCallback implements TaskQueueListener {
-        @Override
-        public void updatedRecipients(@Nonnull List<UpdatedRecipient> updatedRecipients) {
-            Logger.info(String.format("%d recipients require registration updates.", updatedRecipients.size()));
-
-            for (UpdatedRecipient recipientUpdate : updatedRecipients) {
-                Recipient staleRecipient = recipientUpdate.getStaleRecipient();
-                Recipient updatedRecipient = recipientUpdate.getUpdatedRecipient();
-
-                mDeviceDao.saveUpdatedToken(staleRecipient.getToken(), updatedRecipient.getToken());
-            }
-        }
-
-        @Override
-        public void failedRecipients(@Nonnull List<Recipient> failedRecipients) {
-            Logger.warn(String.format("%d recipients failed fatally.", failedRecipients.size()));
-
-            for (Recipient recipient : failedRecipients) {
-                FailureType failure = recipient.getPlatformFailure().getFailureType();
-
-                if (failure != null && (failure == FailureType.RECIPIENT_REGISTRATION_INVALID ||
-                        failure == FailureType.RECIPIENT_NOT_REGISTERED ||
-                        failure == FailureType.MESSAGE_PACKAGE_INVALID)) {
-                    mDeviceDao.removeDevice(recipient.getToken());
-                }
-            }
-        }
-
-        @Override
-        public void messageCompleted(@Nonnull Message originalMessage) {
-            Logger.info(String.format("Message %d completed.", originalMessage.getId()));
-        }
-
-        @Override
-        public void messageFailed(@Nonnull Message originalMessage, PlatformFailure failure) {
-            Logger.info(String.format("Message %d failed - %s.", originalMessage.getId(), failure.getFailureMessage()));
-        }
+        }, mExecutionPools.getDatabaseExecutor());
     }
 }
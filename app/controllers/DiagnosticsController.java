@@ -0,0 +1,74 @@
+package controllers;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import javax.inject.Inject;
+
+import dao.AgencyDao;
+import play.libs.Json;
+import play.mvc.Controller;
+import play.mvc.Result;
+import services.ConnectionPoolMonitor;
+import services.ExecutionPools;
+import services.RateLimiter;
+
+/**
+ * Internal counters for operating the server. Should be a private API.
+ */
+public class DiagnosticsController extends Controller {
+    private RateLimiter mRateLimiter;
+    private ExecutionPools mExecutionPools;
+    private AgencyDao mAgencyDao;
+    private ConnectionPoolMonitor mConnectionPoolMonitor;
+
+    @Inject
+    public DiagnosticsController(RateLimiter rateLimiter, ExecutionPools executionPools, AgencyDao agencyDao,
+                                 ConnectionPoolMonitor connectionPoolMonitor) {
+        mRateLimiter = rateLimiter;
+        mExecutionPools = executionPools;
+        mAgencyDao = agencyDao;
+        mConnectionPoolMonitor = connectionPoolMonitor;
+    }
+
+    /**
+     * Get the allowed and rejected request counts of each rate limit group.
+     *
+     * @return rate limit counters in json format.
+     */
+    public Result getRateLimits() {
+        ObjectNode rateLimits = Json.newObject();
+        rateLimits.put("clients", mRateLimiter.getClientCount());
+        rateLimits.put("evicted", mRateLimiter.getEvictedCount());
+        rateLimits.set("groups", Json.toJson(mRateLimiter.getCounters()));
+        return ok(rateLimits);
+    }
+
+    /**
+     * Get the size, active threads, queued and rejected tasks of each execution pool.
+     *
+     * @return pool metrics in json format.
+     */
+    public Result getExecutors() {
+        return ok(Json.toJson(mExecutionPools.getMetrics()));
+    }
+
+    /**
+     * Get the size, hits and misses of the reference data L2 caches.
+     *
+     * @param reset true to reset the counters after reading them.
+     * @return cache statistics in json format.
+     */
+    public Result getCaches(boolean reset) {
+        return ok(Json.toJson(mAgencyDao.getCacheStatistics(reset)));
+    }
+
+    /**
+     * Get the size, active and idle connections, waiters, wait time histogram and leaks of each
+     * database connection pool.
+     *
+     * @return pool metrics in json format.
+     */
+    public Result getConnectionPools() {
+        return ok(Json.toJson(mConnectionPoolMonitor.getMetrics()));
+    }
+}
@@ -1,11 +1,9 @@
 package controllers;
 
 import com.google.inject.Inject;
+import dao.AccountDao;
 import enums.pushservices.PlatformType;
 import helpers.ValidationHelper;
-import io.ebean.Ebean;
-import io.ebean.EbeanServer;
-import main.Constants;
 import models.accounts.Account;
 import models.accounts.PlatformAccount;
 import org.apache.commons.codec.digest.DigestUtils;
@@ -29,12 +27,12 @@ import java.util.Map;
  */
 public class SignupController extends Controller {
     private static final String COMMUTE_IO_API_KEY = "UfhV6Lt";
-    private EbeanServer mEbeanServer;
+    private AccountDao mAccountDao;
     private FormFactory mFormFactory;
 
     @Inject
-    public SignupController(FormFactory formFactory) {
-        mEbeanServer = Ebean.getServer(Constants.DATABASE_SERVER_NAME);
+    public SignupController(AccountDao accountDao, FormFactory formFactory) {
+        mAccountDao = accountDao;
         mFormFactory = formFactory;
     }
 
@@ -101,7 +99,7 @@ public class SignupController extends Controller {
                     ? COMMUTE_IO_API_KEY
                     : RandomStringUtils.random(7, true, false);
 
-            mEbeanServer.save(pendingAccount);
+            mAccountDao.saveAccount(pendingAccount);
 
         } else {
             Logger.warn("No platforms were found for account signup: " + email);
@@ -11,7 +11,6 @@ import java.util.concurrent.CompletionStage;
 
 import javax.inject.Inject;
 
-import dao.AgencyDao;
 import dao.DeviceDao;
 import models.alerts.Route;
 import models.devices.Device;
@@ -19,6 +18,8 @@ import models.devices.Subscription;
 import play.mvc.Controller;
 import play.mvc.Http;
 import play.mvc.Result;
+import services.ExecutionPools;
+import services.RouteCatalog;
 
 /**
  * The public API endpoint controller that handles devices subscribing to agency routes
@@ -31,13 +32,15 @@ public class SubscriptionController extends Controller {
     private static final String ROUTE_LIST_KEY = "route_list";
     private static final String AGENCY_NAME_KEY = "agency_id";
 
-    private AgencyDao mAgencyService;
+    private RouteCatalog mRouteCatalog;
     private DeviceDao mDeviceDao;
+    private ExecutionPools mExecutionPools;
 
     @Inject
-    public SubscriptionController(AgencyDao mAgencyService, DeviceDao mDeviceDao) {
-        this.mAgencyService = mAgencyService;
+    public SubscriptionController(RouteCatalog mRouteCatalog, DeviceDao mDeviceDao, ExecutionPools mExecutionPools) {
+        this.mRouteCatalog = mRouteCatalog;
         this.mDeviceDao = mDeviceDao;
+        this.mExecutionPools = mExecutionPools;
     }
 
     // Return results enum
@@ -61,7 +64,7 @@ public class SubscriptionController extends Controller {
      * @return A result for if the subscription request succeeded or failed.
      */
     public CompletionStage<Result> subscribe() {
-        return initiateSubscription(request()).thenApplyAsync((stage) -> stage.result);
+        return initiateSubscription(request()).thenApply((stage) -> stage.result);
     }
 
     /**
@@ -100,8 +103,8 @@ public class SubscriptionController extends Controller {
                         return SubscriptionResult.NO_REGISTRATION_RESULT;
                     }
 
-                    // Get a list of all the valid routes from the sent primitive array. Add them to the subscription.
-                    List<Route> validRoutes = mAgencyService.getRoutes(agencyId, Arrays.asList(routes));
+                    // Get references to the valid routes from the sent primitive array. Add them to the subscription.
+                    List<Route> validRoutes = mRouteCatalog.getRoutes(agencyId, Arrays.asList(routes));
                     List<Subscription> subscriptions = new ArrayList<>();
 
                     if (!validRoutes.isEmpty()) {
@@ -122,7 +125,7 @@ public class SubscriptionController extends Controller {
             }
 
             return SubscriptionResult.BAD_SUBSCRIPTION_REQUEST;
-        });
+        }, mExecutionPools.getDatabaseExecutor());
     }
 
     /**
@@ -2,15 +2,17 @@ package dao;
 
 import enums.pushservices.PlatformType;
 import io.ebean.EbeanServer;
-import io.ebean.FetchConfig;
+import main.Constants;
 import models.accounts.Account;
-import models.alerts.Route;
+import models.accounts.PlatformAccount;
 import play.Logger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
+import javax.inject.Named;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -18,61 +20,69 @@ import java.util.List;
  * <p>
  */
 public class AccountDao extends BaseDao {
+    private AccountDirectory mAccountDirectory;
 
     @Inject
-    public AccountDao(EbeanServer ebeanServer) {
-        super(ebeanServer);
+    public AccountDao(EbeanServer ebeanServer,
+                      @Named(Constants.REPLICA_DATABASE_SERVER_NAME) EbeanServer readEbeanServer,
+                      AccountDirectory accountDirectory) {
+        super(ebeanServer, readEbeanServer);
+        mAccountDirectory = accountDirectory;
     }
 
     /**
-     * Fetch list of API accounts for a given route and push service type,
-     * containing a filtered list of devices that have subscriptions for the
-     * given routeId.
+     * Fetch the platform accounts of a set of API accounts for a push service platform, loading
+     * only their message credentials and account id.
      *
-     * @param platform Push service platform type.
-     * @param agencyId Id of {@link models.alerts.Agency}
-     * @param routeId  An Agency {@link Route} routeId.
-     * @return List of API accounts.
+     * @param platform   Push service platform type.
+     * @param accountIds ids of the API accounts.
+     * @return List of partially loaded platform accounts.
      */
     @Nonnull
-    public List<Account> getAccounts(@Nonnull PlatformType platform, String agencyId, @Nonnull String routeId) {
-        List<Account> accounts = new ArrayList<>();
+    public List<PlatformAccount> getPlatformAccounts(@Nonnull PlatformType platform, @Nonnull Collection<Long> accountIds) {
+        if (accountIds.isEmpty()) {
+            return new ArrayList<>();
+        }
 
         try {
-            accounts = mEbeanServer.find(Account.class)
-                    .fetch("devices", new FetchConfig().query())
-                    .fetch("devices.subscriptions", new FetchConfig().query())
-                    .fetch("platformAccounts", new FetchConfig().query())
+            return mReadEbeanServer.find(PlatformAccount.class)
+                    .setDisableLazyLoading(true)
+                    .select("account, " + getCredentialProperties(platform))
                     .where()
-                    .conjunction()
-                    .eq("platformAccounts.platformType", platform)
-                    .eq("devices.subscriptions.route.routeId", routeId)
-                    .eq("devices.subscriptions.route.agency.id", agencyId)
-                    .endJunction()
-                    .filterMany("platformAccounts").eq("platformType", platform)
-                    .filterMany("devices").eq("subscriptions.route.agency.id", agencyId)
-                    .filterMany("devices").eq("subscriptions.route.routeId", routeId)
+                    .eq("platformType", platform)
+                    .in("account.id", accountIds)
                     .findList();
 
-            Logger.info(!accounts.isEmpty()
-                    ? String.format("Found %d accounts for route %s", accounts.size(), routeId)
-                    : String.format("No accounts found for route %s", routeId));
-
         } catch (Exception e) {
-            Logger.error("Error fetching account.", e);
+            Logger.error("Error fetching platform accounts.", e);
         }
-
-        return accounts;
+        return new ArrayList<>();
     }
 
     /**
-     * Get a API service Account.
+     * Get a API service Account from the account directory, which loads it from the datastore
+     * if the key is not known. The returned account is shared and should not be modified
+     * unless it is then saved.
      *
      * @param apiKey api key for which account was assigned.
      * @return an Account object, null if not found.
      */
     @Nullable
     public Account getAccountForKey(String apiKey) {
+        if (apiKey != null) {
+            return mAccountDirectory.getAccount(apiKey, this::loadAccountForKey);
+        }
+        return null;
+    }
+
+    /**
+     * Load a API service Account from the datastore.
+     *
+     * @param apiKey api key for which account was assigned.
+     * @return an Account object, null if not found.
+     */
+    @Nullable
+    private Account loadAccountForKey(String apiKey) {
         if (apiKey != null) {
             List<Account> accounts = mEbeanServer.createQuery(Account.class)
                     .where()
@@ -90,6 +100,17 @@ public class AccountDao extends BaseDao {
         return null;
     }
 
+    /**
+     * Get the platform account properties used to build messages. GCM authenticates with the
+     * authorisation key alone, so the (large) certificate body is only loaded for other platforms.
+     */
+    @Nonnull
+    private static String getCredentialProperties(@Nonnull PlatformType platform) {
+        return platform == PlatformType.SERVICE_GCM
+                ? "platformType, packageUri, authorisationKey"
+                : "platformType, packageUri, authorisationKey, certificateBody";
+    }
+
     /**
      * Save an account.
      *
@@ -99,6 +120,7 @@ public class AccountDao extends BaseDao {
     public boolean saveAccount(Account account) {
         try {
             mEbeanServer.save(account);
+            mAccountDirectory.invalidate(account.apiKey);
             return true;
 
         } catch (Exception e) {
@@ -123,6 +145,9 @@ public class AccountDao extends BaseDao {
                     .findList();
 
             mEbeanServer.deleteAllPermanent(accounts);
+            for (Account account : accounts) {
+                mAccountDirectory.invalidate(account.apiKey);
+            }
             return true;
 
         } catch (Exception e) {
@@ -0,0 +1,155 @@
+package dao;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import models.accounts.Account;
+import play.Logger;
+import services.ExecutionPools;
+
+/**
+ * In-memory directory of API accounts by apiKey, including keys which have no account, so that
+ * device registrations don't query the datastore to check their api_key.
+ * <p>
+ * Known accounts older than a minute are still returned, while a single background load refreshes
+ * them. Unknown keys are remembered briefly so new accounts are picked up quickly. Saving or
+ * removing an account through {@link AccountDao} invalidates its key.
+ * <p>
+ * Accounts are shared between requests and must be treated as read-only.
+ */
+@Singleton
+public class AccountDirectory {
+    private static final long ACCOUNT_REFRESH_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long MISSING_ACCOUNT_TTL_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final int MAX_ENTRIES = 10000;
+
+    private final Map<String, Entry> mEntries = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> mRefreshes = new ConcurrentHashMap<>();
+
+    // Bumped on every invalidation, so loads started before it are never stored after it.
+    private final AtomicLong mGeneration = new AtomicLong();
+
+    private final ExecutionPools mExecutionPools;
+
+    @Inject
+    public AccountDirectory(ExecutionPools executionPools) {
+        mExecutionPools = executionPools;
+    }
+
+    /**
+     * Get the account for an apiKey, loading it if it isn't known.
+     *
+     * @param apiKey api key for which account was assigned.
+     * @param loader datastore load of the account for a key.
+     * @return the account, or null if there is no account for the key.
+     */
+    @Nullable
+    Account getAccount(@Nonnull String apiKey, @Nonnull Function<String, Account> loader) {
+        Entry entry = mEntries.get(apiKey);
+        long now = System.currentTimeMillis();
+
+        if (entry != null) {
+            if (entry.account == null && now - entry.loadedAt > MISSING_ACCOUNT_TTL_MS) {
+                entry = null;
+
+            } else if (entry.account != null && now - entry.loadedAt > ACCOUNT_REFRESH_MS) {
+                refreshAccount(apiKey, loader);
+            }
+        }
+
+        if (entry == null) {
+            long generation = mGeneration.get();
+            entry = new Entry(loader.apply(apiKey));
+            putEntry(apiKey, entry, generation);
+        }
+        return entry.account;
+    }
+
+    /**
+     * Forget the account (or missing account) for an apiKey.
+     *
+     * @param apiKey api key of the saved or removed account.
+     */
+    void invalidate(@Nullable String apiKey) {
+        mGeneration.incrementAndGet();
+        if (apiKey != null) {
+            mEntries.remove(apiKey);
+        }
+    }
+
+    /**
+     * Reload a known account in the background, unless a reload is already running.
+     */
+    private void refreshAccount(@Nonnull String apiKey, @Nonnull Function<String, Account> loader) {
+        if (mRefreshes.putIfAbsent(apiKey, Boolean.TRUE) != null) {
+            return;
+        }
+
+        long generation = mGeneration.get();
+        try {
+            CompletableFuture.runAsync(() -> {
+                try {
+                    putEntry(apiKey, new Entry(loader.apply(apiKey)), generation);
+
+                } catch (Exception e) {
+                    Logger.error(String.format("Error refreshing account for key %s.", apiKey), e);
+
+                } finally {
+                    mRefreshes.remove(apiKey);
+                }
+            }, mExecutionPools.getDatabaseExecutor());
+
+        } catch (RejectedExecutionException e) {
+            // The stale account is still served, and the next request tries again.
+            mRefreshes.remove(apiKey);
+        }
+    }
+
+    private void putEntry(@Nonnull String apiKey, @Nonnull Entry entry, long generation) {
+        if (mEntries.size() >= MAX_ENTRIES) {
+            removeMissingAccounts();
+            if (mEntries.size() >= MAX_ENTRIES) {
+                return;
+            }
+        }
+
+        mEntries.put(apiKey, entry);
+
+        // The account was saved or removed while it was being loaded.
+        if (mGeneration.get() != generation) {
+            mEntries.remove(apiKey, entry);
+        }
+    }
+
+    private void removeMissingAccounts() {
+        for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext(); ) {
+            if (it.next().account == null) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * A loaded account, or the absence of one.
+     */
+    private static class Entry {
+        private final Account account;
+        private final long loadedAt;
+
+        private Entry(@Nullable Account account) {
+            this.account = account;
+            this.loadedAt = System.currentTimeMillis();
+        }
+    }
+}
@@ -4,16 +4,31 @@ import org.springframework.util.CollectionUtils;
 import org.springframework.util.StringUtils;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.persistence.PersistenceException;
 
+import helpers.CompareUtils;
+import injection.providers.CommuteEbeanServerProvider;
 import io.ebean.EbeanServer;
 import io.ebean.FetchConfig;
 import io.ebean.OrderBy;
+import io.ebean.Transaction;
+import io.ebean.cache.ServerCacheManager;
+import io.ebean.cache.ServerCacheStatistics;
+import main.Constants;
+import models.AlertModifications;
 import models.alerts.Agency;
 import models.alerts.Alert;
 import models.alerts.Route;
@@ -25,12 +40,16 @@ import play.Logger;
 public class AgencyDao extends BaseDao {
 
     @Inject
-    public AgencyDao(EbeanServer ebeanServer) {
-        super(ebeanServer);
+    public AgencyDao(EbeanServer ebeanServer,
+                     @Named(Constants.REPLICA_DATABASE_SERVER_NAME) EbeanServer readEbeanServer) {
+        super(ebeanServer, readEbeanServer);
     }
 
     /**
      * Save a bundle of agency route alerts to the datastore, clearing out the previous set.
+     * <p>
+     * Routes missing from the fresh agency are deleted by the agency update, so the route and
+     * agency L2 caches are cleared afterwards whether or not the save succeeded.
      *
      * @param freshAgency new agency to persist.
      * @return boolean for success.
@@ -100,11 +119,250 @@ public class AgencyDao extends BaseDao {
         } catch (Exception e) {
             Logger.error(String.format("Error saving agency bundle for %s. Rolling back.", freshAgency.getName()), e);
             return false;
+
+        } finally {
+            clearRouteCaches();
+        }
+
+        return true;
+    }
+
+    /**
+     * Save the changes of an agency update which was already compared against the saved agency,
+     * in one transaction and without loading the agency again.
+     * <p>
+     * Only the alerts of routes named in the modifications are written: saved and fresh alerts
+     * are matched by {@link Alert#getIdentity()}, so unmatched saved alerts are deleted and
+     * unmatched fresh alerts are inserted. Routes and the agency only have their own columns
+     * updated when they changed. New routes are inserted, while routes missing from the fresh
+     * agency keep their row (and subscriptions) and only lose their alerts.
+     * <p>
+     * Once saved, the kept routes are added to the fresh agency without alerts, so that it holds
+     * the same routes as the saved agency when it is published.
+     *
+     * @param savedAgency   the saved agency the modifications were built from.
+     * @param freshAgency   the updated agency.
+     * @param modifications updated and stale alerts of the agency.
+     * @return boolean for success.
+     */
+    public synchronized boolean saveAgencyModifications(@Nonnull Agency savedAgency, @Nonnull Agency freshAgency,
+                                                        @Nonnull AlertModifications modifications) {
+        Set<String> modifiedRouteIds = new HashSet<>();
+        for (Route route : modifications.getUpdatedAlertRoutes()) {
+            modifiedRouteIds.add(route.getRouteId());
+        }
+        for (Route route : modifications.getStaleAlertRoutes()) {
+            modifiedRouteIds.add(route.getRouteId());
+        }
+
+        Map<String, Route> savedRoutes = new HashMap<>();
+        if (savedAgency.getRoutes() != null) {
+            for (Route savedRoute : savedAgency.getRoutes()) {
+                savedRoutes.put(savedRoute.getRouteId(), savedRoute);
+            }
+        }
+
+        List<Route> addedRoutes = new ArrayList<>();
+        List<Alert> addedAlerts = new ArrayList<>();
+        List<Alert> removedAlerts = new ArrayList<>();
+        int updatedRoutesCount = 0;
+
+        try (Transaction transaction = mEbeanServer.beginTransaction()) {
+            transaction.setBatchMode(true);
+
+            if (freshAgency.getRoutes() != null) {
+                for (Route freshRoute : freshAgency.getRoutes()) {
+                    Route savedRoute = savedRoutes.remove(freshRoute.getRouteId());
+                    if (savedRoute == null) {
+                        freshRoute.setAgency(savedAgency);
+                        addedRoutes.add(freshRoute);
+                        continue;
+                    }
+
+                    if (modifiedRouteIds.contains(freshRoute.getRouteId())) {
+                        diffRouteAlerts(savedRoute, freshRoute, addedAlerts, removedAlerts);
+                    }
+
+                    if (updateRouteColumns(savedRoute, freshRoute)) {
+                        updatedRoutesCount++;
+                    }
+                }
+            }
+
+            // Routes left over are no longer in the feed. They may still have subscriptions, so
+            // they are kept and only their (now stale) alerts are removed.
+            for (Route missingRoute : savedRoutes.values()) {
+                if (missingRoute.getAlerts() != null) {
+                    removedAlerts.addAll(missingRoute.getAlerts());
+                }
+            }
+
+            if (!removedAlerts.isEmpty()) {
+                mEbeanServer.deleteAllPermanent(removedAlerts);
+            }
+
+            if (!addedRoutes.isEmpty()) {
+                mEbeanServer.saveAll(addedRoutes);
+            }
+
+            if (!addedAlerts.isEmpty()) {
+                mEbeanServer.insertAll(addedAlerts);
+            }
+
+            updateAgencyColumns(savedAgency, freshAgency);
+            transaction.commit();
+
+            Logger.info(String.format("Saved agency %s modifications: %d alerts added, %d alerts removed, " +
+                            "%d routes added, %d routes updated, %d routes missing.", freshAgency.getId(),
+                    addedAlerts.size(), removedAlerts.size(), addedRoutes.size(), updatedRoutesCount,
+                    savedRoutes.size()));
+
+            addKeptRoutes(freshAgency, savedRoutes.values());
+
+        } catch (PersistenceException e) {
+            Logger.error(String.format("Error saving agency alerts model to database: %s.", e.getMessage()));
+            return false;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error saving agency modifications for %s. Rolling back.", freshAgency.getName()), e);
+            return false;
+
+        } finally {
+            clearRouteCaches();
+        }
+
+        return true;
+    }
+
+    /**
+     * Add copies of the saved routes which are no longer in the feed to the fresh agency, without
+     * their alerts.
+     */
+    private static void addKeptRoutes(@Nonnull Agency freshAgency, @Nonnull Collection<Route> keptRoutes) {
+        if (keptRoutes.isEmpty()) {
+            return;
+        }
+
+        List<Route> routes = freshAgency.getRoutes() != null
+                ? new ArrayList<>(freshAgency.getRoutes())
+                : new ArrayList<>();
+        for (Route keptRoute : keptRoutes) {
+            Route route = new Route();
+            route.setRouteId(keptRoute.getRouteId());
+            route.setAgency(freshAgency);
+            route.setRouteName(keptRoute.getRouteName());
+            route.setTransitType(keptRoute.getTransitType());
+            route.setDefault(keptRoute.getDefault());
+            route.setSticky(keptRoute.getSticky());
+            route.setExternalUri(keptRoute.getExternalUri());
+            route.setAlerts(new ArrayList<>());
+            routes.add(route);
+        }
+        freshAgency.setRoutes(routes);
+    }
+
+    /**
+     * Match the saved and fresh alerts of a route by identity. Saved alerts without a fresh match
+     * are removed, and fresh alerts without a saved match are added. Matched alerts whose
+     * locations or update time changed are replaced.
+     */
+    private static void diffRouteAlerts(@Nonnull Route savedRoute, @Nonnull Route freshRoute,
+                                        @Nonnull List<Alert> addedAlerts, @Nonnull List<Alert> removedAlerts) {
+        Map<String, List<Alert>> savedAlerts = new HashMap<>();
+        if (savedRoute.getAlerts() != null) {
+            for (Alert savedAlert : savedRoute.getAlerts()) {
+                savedAlerts.computeIfAbsent(savedAlert.getIdentity(), identity -> new ArrayList<>()).add(savedAlert);
+            }
+        }
+
+        if (freshRoute.getAlerts() != null) {
+            for (Alert freshAlert : freshRoute.getAlerts()) {
+                Alert matchedAlert = takeMatchingAlert(savedAlerts.get(freshAlert.getIdentity()), freshAlert);
+                if (matchedAlert != null && matchedAlert.equals(freshAlert)) {
+                    continue;
+                }
+
+                if (matchedAlert != null) {
+                    removedAlerts.add(matchedAlert);
+                }
+                freshAlert.setRoute(savedRoute);
+                addedAlerts.add(freshAlert);
+            }
+        }
+
+        for (List<Alert> unmatchedAlerts : savedAlerts.values()) {
+            removedAlerts.addAll(unmatchedAlerts);
+        }
+    }
+
+    /**
+     * Remove and return the saved alert matching a fresh alert, preferring one which is equal.
+     */
+    @Nullable
+    private static Alert takeMatchingAlert(@Nullable List<Alert> savedAlerts, @Nonnull Alert freshAlert) {
+        if (savedAlerts == null || savedAlerts.isEmpty()) {
+            return null;
+        }
+
+        for (Iterator<Alert> it = savedAlerts.iterator(); it.hasNext(); ) {
+            Alert savedAlert = it.next();
+            if (savedAlert.equals(freshAlert)) {
+                it.remove();
+                return savedAlert;
+            }
+        }
+        return savedAlerts.remove(0);
+    }
+
+    /**
+     * Update the columns of a saved route which differ from the fresh route, without touching its
+     * alerts.
+     *
+     * @return true if the route was updated.
+     */
+    private boolean updateRouteColumns(@Nonnull Route savedRoute, @Nonnull Route freshRoute) {
+        if (CompareUtils.isEquals(savedRoute.getRouteName(), freshRoute.getRouteName()) &&
+                CompareUtils.isEquals(savedRoute.getTransitType(), freshRoute.getTransitType()) &&
+                CompareUtils.isEquals(savedRoute.getDefault(), freshRoute.getDefault()) &&
+                CompareUtils.isEquals(savedRoute.getSticky(), freshRoute.getSticky()) &&
+                CompareUtils.isEquals(savedRoute.getExternalUri(), freshRoute.getExternalUri())) {
+            return false;
         }
 
+        mEbeanServer.update(Route.class)
+                .set("routeName", freshRoute.getRouteName())
+                .set("transitType", freshRoute.getTransitType())
+                .set("isDefault", freshRoute.getDefault())
+                .set("isSticky", freshRoute.getSticky())
+                .set("externalUri", freshRoute.getExternalUri())
+                .where()
+                .idEq(savedRoute.getRouteId())
+                .update();
         return true;
     }
 
+    /**
+     * Update the columns of the saved agency which differ from the fresh agency, without touching
+     * its routes.
+     */
+    private void updateAgencyColumns(@Nonnull Agency savedAgency, @Nonnull Agency freshAgency) {
+        if (CompareUtils.isEquals(savedAgency.getName(), freshAgency.getName()) &&
+                CompareUtils.isEquals(savedAgency.getPhone(), freshAgency.getPhone()) &&
+                CompareUtils.isEquals(savedAgency.getExternalUri(), freshAgency.getExternalUri()) &&
+                CompareUtils.isEquals(savedAgency.getUtcOffset(), freshAgency.getUtcOffset())) {
+            return;
+        }
+
+        mEbeanServer.update(Agency.class)
+                .set("name", freshAgency.getName())
+                .set("phone", freshAgency.getPhone())
+                .set("externalUri", freshAgency.getExternalUri())
+                .set("utcOffset", freshAgency.getUtcOffset())
+                .where()
+                .idEq(savedAgency.getId())
+                .update();
+    }
+
     /**
      * Get all routes for a set of routeIds and an agency name.
      *
@@ -145,7 +403,9 @@ public class AgencyDao extends BaseDao {
     @Nullable
     public List<Route> getRoutes(String agencyId) {
         try {
+            // Alerts aren't cached, so routes with alerts never come from the query cache.
             return mEbeanServer.createQuery(Route.class)
+                    .setUseQueryCache(false)
                     .setOrder(new OrderBy<>("routeId desc"))
                     .fetch("agency", new FetchConfig().query())
                     .fetch("alerts", new FetchConfig().query())
@@ -168,6 +428,7 @@ public class AgencyDao extends BaseDao {
     public Route getRoute(String agencyId, @Nonnull String routeId) {
         try {
             List<Route> routes = mEbeanServer.find(Route.class)
+                    .setUseQueryCache(false)
                     .setOrder(new OrderBy<>("routeId descc"))
                     .fetch("agency", new FetchConfig().query())
                     .fetch("alerts", new FetchConfig().query())
@@ -193,6 +454,78 @@ public class AgencyDao extends BaseDao {
         return null;
     }
 
+    /**
+     * Get the ids of all saved routes of an agency, without loading the routes, alerts or
+     * locations. Served from the route query cache, which any route save or delete clears.
+     *
+     * @param agencyId id of the agency.
+     * @return list of routeIds.
+     */
+    @Nonnull
+    public List<String> getRouteIds(String agencyId) {
+        try {
+            List<Route> routes = mEbeanServer.find(Route.class)
+                    .select("routeId")
+                    .setUseQueryCache(true)
+                    .where()
+                    .eq("agency.id", agencyId)
+                    .findList();
+
+            List<String> routeIds = new ArrayList<>();
+            for (Route route : routes) {
+                routeIds.add(route.getRouteId());
+            }
+            return routeIds;
+
+        } catch (PersistenceException e) {
+            Logger.error(String.format("Error fetching route ids from database: %s.", e.getMessage()));
+
+        } catch (Exception e) {
+            Logger.error("Error getting route ids for agency.", e);
+        }
+
+        return new ArrayList<>();
+    }
+
+    /**
+     * Get a reference to a saved route which only holds its routeId, for use as a relation
+     * (such as a subscription route) without querying the route.
+     *
+     * @param routeId id of a route known to exist.
+     * @return route reference.
+     */
+    @Nonnull
+    public Route getRouteReference(@Nonnull String routeId) {
+        return mEbeanServer.getReference(Route.class, routeId);
+    }
+
+    /**
+     * Get the ids of all saved agencies, without loading any routes. Read from the replica.
+     *
+     * @return list of agency ids.
+     */
+    @Nonnull
+    public List<String> getAgencyIds() {
+        List<String> agencyIds = new ArrayList<>();
+        try {
+            List<Agency> agencies = mReadEbeanServer.find(Agency.class)
+                    .select("id")
+                    .findList();
+
+            for (Agency agency : agencies) {
+                agencyIds.add(agency.getId());
+            }
+
+        } catch (PersistenceException e) {
+            Logger.error(String.format("Error fetching Agency ids from database: %s.", e.getMessage()));
+
+        } catch (Exception e) {
+            Logger.error("Error getting agency ids.", e);
+        }
+
+        return agencyIds;
+    }
+
     /**
      * Get a s saved agency and all children.
      *
@@ -200,9 +533,22 @@ public class AgencyDao extends BaseDao {
      * @return agency model with children, if found, or null.
      */
     @Nullable
-    public synchronized Agency getAgency(String agencyId) {
+    public Agency getAgency(String agencyId) {
+        return getAgency(agencyId, false);
+    }
+
+    /**
+     * Get a s saved agency and all children.
+     *
+     * @param agencyId   id of the agency.
+     * @param allowStale true to read from the replica, which may lag behind recent saves. Agencies
+     *                   which are compared against or saved over must not be stale.
+     * @return agency model with children, if found, or null.
+     */
+    @Nullable
+    public Agency getAgency(String agencyId, boolean allowStale) {
         try {
-            return mEbeanServer.find(Agency.class)
+            return (allowStale ? mReadEbeanServer : mEbeanServer).find(Agency.class)
                     .setOrder(new OrderBy<>("routes.routeId desc"))
                     .fetch("routes", new FetchConfig().query())
                     .fetch("routes.alerts", new FetchConfig().query())
@@ -244,8 +590,52 @@ public class AgencyDao extends BaseDao {
         } catch (Exception e) {
             Logger.error("Error deleting agency.", e);
             return false;
+
+        } finally {
+            clearRouteCaches();
         }
 
         return true;
     }
+
+    /**
+     * Get the hit and miss statistics of the L2 bean (and query) caches of the cached models.
+     *
+     * @param reset true to reset the counters after reading them.
+     * @return statistics keyed by cache name.
+     */
+    @Nonnull
+    public Map<String, Map<String, Object>> getCacheStatistics(boolean reset) {
+        Map<String, Map<String, Object>> statistics = new LinkedHashMap<>();
+        ServerCacheManager cacheManager = mEbeanServer.getServerCacheManager();
+
+        for (Class<?> cachedModel : CommuteEbeanServerProvider.CACHED_MODELS) {
+            putCacheStatistics(statistics, cacheManager.getBeanCache(cachedModel).getStatistics(reset));
+            if (cachedModel == Route.class) {
+                putCacheStatistics(statistics, cacheManager.getQueryCache(cachedModel).getStatistics(reset));
+            }
+        }
+        return statistics;
+    }
+
+    private static void putCacheStatistics(@Nonnull Map<String, Map<String, Object>> statistics,
+                                           @Nonnull ServerCacheStatistics cacheStatistics) {
+        Map<String, Object> cacheCounters = new LinkedHashMap<>();
+        cacheCounters.put("size", cacheStatistics.getSize());
+        cacheCounters.put("hits", cacheStatistics.getHitCount());
+        cacheCounters.put("misses", cacheStatistics.getMissCount());
+        cacheCounters.put("hitRatio", cacheStatistics.getHitRatio());
+        statistics.put(cacheStatistics.getCacheName(), cacheCounters);
+    }
+
+    /**
+     * Clear the cached routes, route queries and agencies (with their route collections) after
+     * routes were rewritten. Agency saves are rare, so clearing everything is cheaper than
+     * tracking which routes changed.
+     */
+    private void clearRouteCaches() {
+        ServerCacheManager cacheManager = mEbeanServer.getServerCacheManager();
+        cacheManager.clear(Route.class);
+        cacheManager.clear(Agency.class);
+    }
 }
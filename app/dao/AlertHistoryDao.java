@@ -0,0 +1,234 @@
+package dao;
+
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import io.ebean.EbeanServer;
+import io.ebean.ExpressionList;
+import io.ebean.SqlRow;
+import io.ebean.Transaction;
+import main.Constants;
+import models.alerts.AlertHistory;
+import play.Logger;
+
+/**
+ * A DAO class for the append-only, month partitioned alert history.
+ */
+public class AlertHistoryDao extends BaseDao {
+    private static final String HISTORY_TABLE = "agency_alerts.alert_history";
+    private static final String PARTITION_PREFIX = "alert_history_";
+    private static final DateTimeFormatter PARTITION_MONTH_FORMAT = DateTimeFormatter.ofPattern("'y'yyyy'm'MM");
+
+    @Inject
+    public AlertHistoryDao(EbeanServer ebeanServer,
+                           @Named(Constants.REPLICA_DATABASE_SERVER_NAME) EbeanServer readEbeanServer) {
+        super(ebeanServer, readEbeanServer);
+    }
+
+    /**
+     * Create the history partition (and its indexes) for the alerts first published in a month,
+     * if it doesn't exist.
+     *
+     * @param month month of the partition.
+     * @return true if the partition exists.
+     */
+    public boolean createPartition(@Nonnull YearMonth month) {
+        String partition = getPartitionName(month);
+        try {
+            mEbeanServer.createSqlUpdate(String.format(
+                    "create table if not exists agency_alerts.%s partition of %s " +
+                            "for values from ('%s-01 00:00:00') to ('%s-01 00:00:00')",
+                    partition, HISTORY_TABLE, month, month.plusMonths(1))).execute();
+            mEbeanServer.createSqlUpdate(String.format(
+                    "create unique index if not exists ix_%s_id on agency_alerts.%s (id)",
+                    partition, partition)).execute();
+            mEbeanServer.createSqlUpdate(String.format(
+                    "create index if not exists ix_%s_route on agency_alerts.%s (agency_id, route_id, id)",
+                    partition, partition)).execute();
+            mEbeanServer.createSqlUpdate(String.format(
+                    "create index if not exists ix_%s_active on agency_alerts.%s (agency_id) where ended_at is null",
+                    partition, partition)).execute();
+            return true;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error creating alert history partition %s.", partition), e);
+        }
+        return false;
+    }
+
+    /**
+     * Get the months of every existing history partition.
+     *
+     * @return partition months, oldest first.
+     */
+    @Nonnull
+    public List<YearMonth> getPartitionMonths() {
+        List<YearMonth> months = new ArrayList<>();
+        try {
+            List<SqlRow> partitions = mEbeanServer.createSqlQuery(
+                    "select c.relname from pg_inherits i " +
+                            "join pg_class c on c.oid = i.inhrelid " +
+                            "join pg_class p on p.oid = i.inhparent " +
+                            "join pg_namespace n on n.oid = p.relnamespace " +
+                            "where n.nspname = 'agency_alerts' and p.relname = 'alert_history'")
+                    .findList();
+
+            for (SqlRow partition : partitions) {
+                String partitionName = partition.getString("relname");
+                try {
+                    months.add(YearMonth.parse(partitionName.substring(PARTITION_PREFIX.length()), PARTITION_MONTH_FORMAT));
+
+                } catch (DateTimeParseException | IndexOutOfBoundsException e) {
+                    Logger.warn(String.format("Ignoring unknown alert history partition %s.", partitionName));
+                }
+            }
+            Collections.sort(months);
+
+        } catch (Exception e) {
+            Logger.error("Error listing alert history partitions.", e);
+        }
+        return months;
+    }
+
+    /**
+     * Retire the history of a month by dropping its partition. Partitions which still hold
+     * active alerts are kept.
+     *
+     * @param month month of the partition.
+     * @return true if the partition was dropped.
+     */
+    public boolean dropPartition(@Nonnull YearMonth month) {
+        String partition = getPartitionName(month);
+        try {
+            int activeCount = mEbeanServer.createSqlQuery(String.format(
+                    "select count(*) as active from agency_alerts.%s where ended_at is null", partition))
+                    .findOne()
+                    .getInteger("active");
+            if (activeCount > 0) {
+                Logger.info(String.format("Keeping alert history partition %s with %d active alerts.", partition, activeCount));
+                return false;
+            }
+
+            mEbeanServer.createSqlUpdate(String.format("drop table if exists agency_alerts.%s", partition)).execute();
+            return true;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error dropping alert history partition %s.", partition), e);
+        }
+        return false;
+    }
+
+    /**
+     * Fetch the active (not yet ended) alert history of an agency, loading only the ids, routes
+     * and alert identities.
+     *
+     * @param agencyId id of the agency.
+     * @return partially loaded active alert history.
+     */
+    @Nonnull
+    public List<AlertHistory> getActiveAlerts(@Nonnull String agencyId) {
+        try {
+            return mEbeanServer.find(AlertHistory.class)
+                    .select("routeId, alertIdentity")
+                    .where()
+                    .eq("agencyId", agencyId)
+                    .isNull("endedAt")
+                    .findList();
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error fetching active alert history for %s.", agencyId), e);
+        }
+        return new ArrayList<>();
+    }
+
+    /**
+     * Save the alerts which were published and end the alerts which were removed, in one
+     * transaction.
+     *
+     * @param startedAlerts new alert history.
+     * @param endedIds      ids of the active alert history which ended.
+     * @param endedAt       time the alerts ended.
+     * @return true if the changes were saved.
+     */
+    public boolean saveAlertChanges(@Nonnull List<AlertHistory> startedAlerts, @Nonnull List<Long> endedIds,
+                                    @Nonnull Date endedAt) {
+        try (Transaction transaction = mEbeanServer.beginTransaction()) {
+            transaction.setBatchMode(true);
+
+            if (!startedAlerts.isEmpty()) {
+                mEbeanServer.insertAll(startedAlerts);
+            }
+
+            if (!endedIds.isEmpty()) {
+                mEbeanServer.update(AlertHistory.class)
+                        .set("endedAt", endedAt)
+                        .where()
+                        .idIn(endedIds)
+                        .isNull("endedAt")
+                        .update();
+            }
+
+            transaction.commit();
+            return true;
+
+        } catch (Exception e) {
+            Logger.error("Error saving alert history.", e);
+        }
+        return false;
+    }
+
+    /**
+     * Fetch a page of the alerts which were active on a route at any time in a range, newest
+     * first. Read from the replica.
+     *
+     * @param agencyId id of the route's agency.
+     * @param routeId  id of the route.
+     * @param from     start of the range.
+     * @param to       end (exclusive) of the range.
+     * @param beforeId id of the last alert of the previous page, or null for the first page.
+     * @param limit    maximum number of alerts to fetch.
+     * @return alert history page.
+     */
+    @Nonnull
+    public List<AlertHistory> getRouteHistory(@Nonnull String agencyId, @Nonnull String routeId, @Nonnull Date from,
+                                              @Nonnull Date to, @Nullable Long beforeId, int limit) {
+        try {
+            // Only the upper bound prunes partitions, as alerts can stay active for months.
+            ExpressionList<AlertHistory> query = mReadEbeanServer.find(AlertHistory.class)
+                    .where()
+                    .eq("agencyId", agencyId)
+                    .eq("routeId", routeId)
+                    .lt("startedAt", to)
+                    .disjunction()
+                    .isNull("endedAt")
+                    .ge("endedAt", from)
+                    .endJunction();
+            if (beforeId != null) {
+                query.lt("id", beforeId);
+            }
+
+            return query.orderBy("id desc")
+                    .setMaxRows(limit)
+                    .findList();
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error fetching alert history for route %s.", routeId), e);
+        }
+        return new ArrayList<>();
+    }
+
+    @Nonnull
+    private static String getPartitionName(@Nonnull YearMonth month) {
+        return PARTITION_PREFIX + month.format(PARTITION_MONTH_FORMAT);
+    }
+}
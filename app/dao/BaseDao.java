@@ -10,7 +10,16 @@ import io.ebean.EbeanServer;
 class BaseDao {
     EbeanServer mEbeanServer;
 
+    // Server for reads which tolerate replication lag. Never use it for a read which is then
+    // written back, or which must see a write just made: those stay on mEbeanServer.
+    EbeanServer mReadEbeanServer;
+
     BaseDao(EbeanServer ebeanServer) {
+        this(ebeanServer, ebeanServer);
+    }
+
+    BaseDao(EbeanServer ebeanServer, EbeanServer readEbeanServer) {
         this.mEbeanServer = ebeanServer;
+        this.mReadEbeanServer = readEbeanServer;
     }
 }
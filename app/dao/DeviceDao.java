@@ -4,15 +4,27 @@ import org.springframework.util.CollectionUtils;
 import org.springframework.util.StringUtils;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.persistence.PersistenceException;
 
 import io.ebean.EbeanServer;
+import io.ebean.ExpressionList;
 import io.ebean.OrderBy;
+import io.ebean.Transaction;
+import main.Constants;
+import models.SubscriberToken;
 import models.devices.Device;
 import models.devices.Subscription;
 import play.Logger;
@@ -21,24 +33,41 @@ import play.Logger;
  * A DAO class for both device device / subscription data.
  */
 public class DeviceDao extends BaseDao {
+    private RegistrationCache mRegistrationCache;
+    private DeviceDigests mDeviceDigests;
 
     @Inject
-    public DeviceDao(EbeanServer ebeanServer) {
-        super(ebeanServer);
+    public DeviceDao(EbeanServer ebeanServer,
+                     @Named(Constants.REPLICA_DATABASE_SERVER_NAME) EbeanServer readEbeanServer,
+                     RegistrationCache registrationCache, DeviceDigests deviceDigests) {
+        super(ebeanServer, readEbeanServer);
+        mRegistrationCache = registrationCache;
+        mDeviceDigests = deviceDigests;
     }
 
+    /**
+     * Fetch the devices of an account with their subscribed routes. Only the device, route and
+     * agency columns which describe a registration are loaded: not the account (beyond its
+     * apiKey), digests, alerts or agency details.
+     *
+     * @param apiKey   api key of the account.
+     * @param agencyId unused.
+     * @return list of partially loaded devices.
+     */
     @Nonnull
     public List<Device> getAccountDevices(@Nonnull String apiKey, int agencyId) {
         List<Device> foundDevices = new ArrayList<>();
         int batchSize = 500;
 
         try {
-            List<Device> devices = mEbeanServer.createQuery(Device.class)
+            List<Device> devices = mReadEbeanServer.createQuery(Device.class)
                     .setLazyLoadBatchSize(batchSize)
-                    .fetch("account")
-                    .fetch("subscriptions")
-                    .fetch("subscriptions.route")
-                    .fetch("subscriptions.route.agency")
+                    .setDisableLazyLoading(true)
+                    .select("deviceId, token, appKey, userKey, timeRegistered")
+                    .fetch("account", "apiKey")
+                    .fetch("subscriptions", "timeSubscribed")
+                    .fetch("subscriptions.route", "routeName")
+                    .fetch("subscriptions.route.agency", "name")
                     .where()
                     .eq("account.apiKey", apiKey)
                     .findList();
@@ -57,6 +86,89 @@ public class DeviceDao extends BaseDao {
         return foundDevices;
     }
 
+    /**
+     * Fetch the push tokens of every device subscribed to a route, as flat rows for an alert
+     * fanout. Read from the replica with a plain SQL query, so no beans are built and only the
+     * account id and token columns are transferred.
+     *
+     * @param agencyId id of the route's agency.
+     * @param routeId  id of the route.
+     * @return subscriber tokens ordered by account.
+     */
+    @Nonnull
+    public List<SubscriberToken> getRouteSubscriberTokens(@Nonnull String agencyId, @Nonnull String routeId) {
+        List<SubscriberToken> subscriberTokens = new ArrayList<>();
+        try {
+            mReadEbeanServer.createSqlQuery(
+                    "select d.account_id, d.token " +
+                            "from device_information.subscriptions s " +
+                            "join device_information.devices d on d.id = s.device_id " +
+                            "join agency_alerts.routes r on r.id = s.route_id " +
+                            "where s.route_id = :routeId " +
+                            "and r.agency_id = :agencyId " +
+                            "and d.account_id is not null " +
+                            "and d.token is not null " +
+                            "order by d.account_id")
+                    .setParameter("routeId", routeId)
+                    .setParameter("agencyId", agencyId)
+                    .findEach(row -> subscriberTokens.add(
+                            new SubscriberToken(row.getLong("account_id"), row.getString("token"))));
+
+            Logger.info(String.format("Found %d subscriber tokens for route %s", subscriberTokens.size(), routeId));
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error fetching subscriber tokens for route %s.", routeId), e);
+        }
+        return subscriberTokens;
+    }
+
+    /**
+     * Fetch the next page of an account's devices in id order, loading only their ids and
+     * tokens. Pages are found by the last id of the previous page, so each page is an index
+     * range scan however far through the devices it is. Read from the replica.
+     *
+     * @param apiKey        api key of the account.
+     * @param afterDeviceId id of the last device of the previous page, or null for the first page.
+     * @param limit         maximum number of devices to fetch.
+     * @return partially loaded devices, holding only their id and token.
+     */
+    @Nonnull
+    public List<Device> getAccountDeviceTokens(@Nonnull String apiKey, @Nullable Long afterDeviceId, int limit) {
+        try {
+            return mReadEbeanServer.find(Device.class)
+                    .select("id, token")
+                    .where()
+                    .eq("account.apiKey", apiKey)
+                    .gt("id", afterDeviceId != null ? afterDeviceId : 0L)
+                    .orderBy("id asc")
+                    .setMaxRows(limit)
+                    .findList();
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error fetching device tokens for %s.", apiKey), e);
+        }
+        return new ArrayList<>();
+    }
+
+    /**
+     * Count the devices of an account. Read from the replica.
+     *
+     * @param apiKey api key of the account.
+     * @return number of devices.
+     */
+    public int getAccountDeviceCount(@Nonnull String apiKey) {
+        try {
+            return mReadEbeanServer.find(Device.class)
+                    .where()
+                    .eq("account.apiKey", apiKey)
+                    .findCount();
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error counting devices for %s.", apiKey), e);
+        }
+        return 0;
+    }
+
     /**
      * Fetch a saved a device model.
      *
@@ -66,14 +178,14 @@ public class DeviceDao extends BaseDao {
     @Nullable
     public Device getDevice(@Nonnull String deviceId) {
         try {
-            List<Device> devices = mEbeanServer.find(Device.class)
+            ExpressionList<Device> query = mEbeanServer.find(Device.class)
                     .setOrder(new OrderBy<>("time_registered desc"))
                     .fetch("account")
                     .fetch("subscriptions")
                     .fetch("subscriptions.route")
                     .fetch("subscriptions.route.agency")
-                    .where()
-                    .eq("deviceId", deviceId)
+                    .where();
+            List<Device> devices = eqDigested(query, "deviceId", deviceId)
                     .query()
                     .findList();
 
@@ -93,6 +205,18 @@ public class DeviceDao extends BaseDao {
         return null;
     }
 
+    /**
+     * Check, without querying the datastore, if a device was recently saved or fetched with
+     * exactly this deviceId and token.
+     *
+     * @param deviceId deviceId of the registration.
+     * @param token    token of the registration.
+     * @return true if the registration is known to be saved and unchanged.
+     */
+    public boolean isRegistered(@Nonnull String deviceId, @Nonnull String token) {
+        return mRegistrationCache.getDeviceId(deviceId, token) != null;
+    }
+
     /**
      * Fetch a saved a device model.
      *
@@ -101,17 +225,17 @@ public class DeviceDao extends BaseDao {
      */
     @Nullable
     public Device getDevice(@Nonnull String deviceId, @Nonnull String token) {
+        long generation = mRegistrationCache.getGeneration();
         try {
-            List<Device> devices = mEbeanServer.find(Device.class)
+            ExpressionList<Device> query = mEbeanServer.find(Device.class)
                     .setOrder(new OrderBy<>("time_registered desc"))
                     .fetch("account")
-                    .where()
-                    .disjunction()
-                    .eq("deviceId", deviceId)
-                    .eq("token", token)
-                    .endJunction()
-                    .query()
-                    .findList();
+                    .where();
+            List<Device> devices = matchDevices(
+                    inDeviceIdsOrTokens(query, Collections.singleton(deviceId), Collections.singleton(token))
+                            .query()
+                            .findList(),
+                    deviceId, token);
 
             Device device = !devices.isEmpty()
                     ? devices.get(devices.size() - 1)
@@ -121,6 +245,10 @@ public class DeviceDao extends BaseDao {
                     ? String.format("Found device with deviceId %s", device.getDeviceId())
                     : String.format("No device found for deviceId %s", deviceId));
 
+            if (device != null && devices.size() == 1 &&
+                    deviceId.equals(device.getDeviceId()) && token.equals(device.getToken())) {
+                mRegistrationCache.put(deviceId, token, device.getId(), generation);
+            }
             return device;
 
         } catch (Exception e) {
@@ -138,23 +266,20 @@ public class DeviceDao extends BaseDao {
      */
     public boolean saveUpdatedToken(@Nonnull String staleToken, @Nullable String newToken) {
         try {
-            List<Device> devices = mEbeanServer.find(Device.class)
-                    .setOrder(new OrderBy<>("time_registered desc"))
-                    .where()
-                    .eq("token", staleToken)
-                    .query()
-                    .findList();
+            // The updated row count says whether the device existed, without loading it.
+            int updatedCount = eqDigested(mEbeanServer.update(Device.class)
+                    .set("token", newToken)
+                    .set("tokenDigest", Device.digest(newToken))
+                    .where(), "token", staleToken)
+                    .update();
 
-            if (devices.isEmpty()) {
+            if (updatedCount == 0) {
                 Logger.info(String.format("No device found for token %s", staleToken));
                 return false;
             }
 
-            mEbeanServer.update(Device.class)
-                    .set("token", newToken)
-                    .where()
-                    .eq("token", staleToken)
-                    .update();
+            mRegistrationCache.invalidate(staleToken);
+            mRegistrationCache.invalidate(newToken);
 
         } catch (Exception e) {
             Logger.error("Error persisting updated Device Token", e);
@@ -172,18 +297,17 @@ public class DeviceDao extends BaseDao {
      */
     public boolean removeDevice(@Nonnull String deviceToken) {
         try {
-            mEbeanServer.find(Subscription.class)
+            eqDigested(mEbeanServer.find(Subscription.class)
                     .fetch("device")
-                    .where()
-                    .eq("device.token", deviceToken)
+                    .where(), "device.token", deviceToken)
                     .delete();
 
-            mEbeanServer.find(Device.class)
+            eqDigested(mEbeanServer.find(Device.class)
                     .fetch("subscriptions")
-                    .where()
-                    .eq("token", deviceToken)
+                    .where(), "token", deviceToken)
                     .delete();
 
+            mRegistrationCache.invalidate(deviceToken);
             Logger.info(String.format("Removed device %s,", deviceToken));
 
         } catch (Exception e) {
@@ -195,56 +319,59 @@ public class DeviceDao extends BaseDao {
 
     /**
      * Save a device for a device to the database. Will find any previous devices
-     * based on device deviceId or device deviceId and delete them first (and their subscription children).
+     * based on device deviceId or device token, and update the most recent one.
+     * <p>
+     * Only the difference between the saved and given route subscriptions is written: routes
+     * which are no longer subscribed are deleted and new routes are inserted, so saving an
+     * identical set of subscriptions touches no rows. Null subscriptions are treated as none.
      *
      * @param device device to save.
      * @return success boolean.
      */
     public boolean saveDevice(@Nonnull Device device) {
         if (!StringUtils.isEmpty(device.getDeviceId()) && device.getAccount() != null) {
+            long generation = mRegistrationCache.getGeneration();
+            Set<String> replacedTokens = new HashSet<>();
 
-            try {
-                List<Device> matchingDevices = mEbeanServer.find(Device.class)
+            try (Transaction transaction = mEbeanServer.beginTransaction()) {
+                ExpressionList<Device> query = mEbeanServer.find(Device.class)
                         .setOrder(new OrderBy<>("time_registered desc"))
                         .fetch("account")
                         .fetch("subscriptions")
-                        .fetch("subscriptions.route")
-                        .fetch("subscriptions.route.agency")
-                        .where()
-                        .disjunction()
-                        .eq("deviceId", device.getDeviceId())
-                        .eq("token", device.getToken())
-                        .endJunction()
-                        .query()
-                        .findList();
-
-                Long matchingDeviceId = null;
-                if (!CollectionUtils.isEmpty(matchingDevices)) {
-                    for (int i = 0; i < matchingDevices.size(); i++) {
-                        Device matchingDevice = matchingDevices.get(i);
-
-                        if (i == 0) {
-                            matchingDeviceId = matchingDevice.getId();
-                        }
-
-                        if (!CollectionUtils.isEmpty(matchingDevice.getSubscriptions())) {
-                            mEbeanServer.deleteAllPermanent(matchingDevice.getSubscriptions());
-                        }
+                        .where();
+                List<Device> matchingDevices = matchDevices(
+                        inDeviceIdsOrTokens(query, Collections.singleton(device.getDeviceId()),
+                                Collections.singleton(device.getToken()))
+                                .query()
+                                .findList(),
+                        device.getDeviceId(), device.getToken());
+
+                if (CollectionUtils.isEmpty(matchingDevices)) {
+                    Map<String, Subscription> requestedSubscriptions = getRequestedSubscriptions(device);
+                    for (Subscription subscription : requestedSubscriptions.values()) {
+                        subscription.setDevice(device);
                     }
-                }
+                    device.setSubscriptions(new ArrayList<>(requestedSubscriptions.values()));
+                    mEbeanServer.save(device);
 
-                if (matchingDeviceId != null) {
-                    device.setId(matchingDeviceId);
-                    mEbeanServer.update(device);
                 } else {
-                    mEbeanServer.save(device);
+                    saveMatchedDevice(device, matchingDevices, getRequestedSubscriptions(device), replacedTokens);
                 }
 
+                transaction.commit();
+
             } catch (Exception e) {
                 Logger.error(String.format("Error saving device and subscriptions for deviceId: %s.", device.getDeviceId()), e.getMessage());
                 return false;
+
+            } finally {
+                for (String replacedToken : replacedTokens) {
+                    mRegistrationCache.invalidate(replacedToken);
+                }
             }
 
+            mRegistrationCache.put(device.getDeviceId(), device.getToken(), device.getId(), generation);
+
         } else {
             Logger.error("Device must contain a deviceId (UUID) and account.");
             return false;
@@ -252,4 +379,358 @@ public class DeviceDao extends BaseDao {
         return true;
     }
 
+    /**
+     * Save a batch of devices in a single transaction, finding all of their previous devices
+     * (by deviceId or token) in one query. Each device is saved as in {@link #saveDevice(Device)},
+     * except that devices with null subscriptions keep their saved subscriptions.
+     * <p>
+     * The devices must have distinct deviceIds and tokens. If any device can't be saved (or two
+     * devices match the same saved device), nothing in the batch is saved.
+     *
+     * @param devices devices to save.
+     * @return true if the whole batch was saved.
+     */
+    public boolean saveDevices(@Nonnull List<Device> devices) {
+        if (devices.isEmpty()) {
+            return true;
+        }
+
+        Set<String> deviceIds = new HashSet<>();
+        Set<String> tokens = new HashSet<>();
+        for (Device device : devices) {
+            if (StringUtils.isEmpty(device.getDeviceId()) || StringUtils.isEmpty(device.getToken()) ||
+                    device.getAccount() == null) {
+                Logger.error("Devices must contain a deviceId (UUID), token and account.");
+                return false;
+            }
+            deviceIds.add(device.getDeviceId());
+            tokens.add(device.getToken());
+        }
+
+        long generation = mRegistrationCache.getGeneration();
+        Set<String> replacedTokens = new HashSet<>();
+
+        try (Transaction transaction = mEbeanServer.beginTransaction()) {
+            transaction.setBatchMode(true);
+            transaction.setBatchSize(devices.size());
+
+            ExpressionList<Device> query = mEbeanServer.find(Device.class)
+                    .setOrder(new OrderBy<>("time_registered desc"))
+                    .fetch("account")
+                    .fetch("subscriptions")
+                    .where();
+            List<Device> savedDevices = inDeviceIdsOrTokens(query, deviceIds, tokens)
+                    .query()
+                    .findList();
+
+            List<Device> newDevices = new ArrayList<>();
+            Set<Long> matchedDeviceIds = new HashSet<>();
+
+            for (Device device : devices) {
+                List<Device> matchingDevices = new ArrayList<>();
+                for (Device savedDevice : savedDevices) {
+                    if (device.getDeviceId().equals(savedDevice.getDeviceId()) ||
+                            device.getToken().equals(savedDevice.getToken())) {
+                        if (!matchedDeviceIds.add(savedDevice.getId())) {
+                            Logger.error(String.format("Device %s matched more than one device in the batch.",
+                                    savedDevice.getDeviceId()));
+                            return false;
+                        }
+                        matchingDevices.add(savedDevice);
+                    }
+                }
+
+                if (matchingDevices.isEmpty()) {
+                    Map<String, Subscription> requestedSubscriptions = getRequestedSubscriptions(device);
+                    for (Subscription subscription : requestedSubscriptions.values()) {
+                        subscription.setDevice(device);
+                    }
+                    device.setSubscriptions(new ArrayList<>(requestedSubscriptions.values()));
+                    newDevices.add(device);
+
+                } else {
+                    saveMatchedDevice(device, matchingDevices, device.getSubscriptions() != null
+                            ? getRequestedSubscriptions(device)
+                            : null, replacedTokens);
+                }
+            }
+
+            if (!newDevices.isEmpty()) {
+                mEbeanServer.saveAll(newDevices);
+            }
+
+            transaction.commit();
+            Logger.info(String.format("Saved batch of %d devices: %d added, %d updated.",
+                    devices.size(), newDevices.size(), devices.size() - newDevices.size()));
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error saving batch of %d devices.", devices.size()), e);
+            return false;
+
+        } finally {
+            for (String replacedToken : replacedTokens) {
+                mRegistrationCache.invalidate(replacedToken);
+            }
+        }
+
+        for (Device device : devices) {
+            mRegistrationCache.put(device.getDeviceId(), device.getToken(), device.getId(), generation);
+        }
+        return true;
+    }
+
+    /**
+     * Get the requested subscriptions of a device, one per route.
+     *
+     * @param device the device being saved.
+     * @return subscriptions by routeId. Null subscriptions are treated as none.
+     */
+    @Nonnull
+    private Map<String, Subscription> getRequestedSubscriptions(@Nonnull Device device) {
+        Map<String, Subscription> requestedSubscriptions = new LinkedHashMap<>();
+        if (device.getSubscriptions() != null) {
+            for (Subscription subscription : device.getSubscriptions()) {
+                if (subscription.getRoute() != null && subscription.getRoute().getRouteId() != null) {
+                    requestedSubscriptions.putIfAbsent(subscription.getRoute().getRouteId(), subscription);
+                }
+            }
+        }
+        return requestedSubscriptions;
+    }
+
+    /**
+     * Update the most recent of the saved devices matching a device being saved.
+     *
+     * @param device                 the device being saved.
+     * @param matchingDevices        saved devices with the same deviceId or token, most recent first.
+     * @param requestedSubscriptions the requested subscriptions, or null to keep the saved ones.
+     * @param replacedTokens         collects the saved tokens which no longer match their deviceId.
+     */
+    private void saveMatchedDevice(@Nonnull Device device, @Nonnull List<Device> matchingDevices,
+                                   @Nullable Map<String, Subscription> requestedSubscriptions,
+                                   @Nonnull Set<String> replacedTokens) {
+        Device savedDevice = matchingDevices.get(0);
+        for (Device matchingDevice : matchingDevices) {
+            if (matchingDevice.getToken() != null && !matchingDevice.getToken().equals(device.getToken())) {
+                replacedTokens.add(matchingDevice.getToken());
+            }
+        }
+
+        // Older duplicate devices lose their subscriptions.
+        for (Device duplicateDevice : matchingDevices.subList(1, matchingDevices.size())) {
+            if (!CollectionUtils.isEmpty(duplicateDevice.getSubscriptions())) {
+                mEbeanServer.deleteAllPermanent(duplicateDevice.getSubscriptions());
+            }
+        }
+
+        if (requestedSubscriptions != null) {
+            saveSubscriptionChanges(savedDevice, requestedSubscriptions);
+        }
+        saveDeviceChanges(savedDevice, device);
+        device.setId(savedDevice.getId());
+    }
+
+    /**
+     * Delete the saved subscriptions that were not requested, and insert the requested
+     * subscriptions that were not saved.
+     *
+     * @param savedDevice            the saved device, with its subscriptions.
+     * @param requestedSubscriptions the requested subscriptions, by routeId.
+     */
+    private void saveSubscriptionChanges(@Nonnull Device savedDevice,
+                                         @Nonnull Map<String, Subscription> requestedSubscriptions) {
+        Set<String> savedRouteIds = new HashSet<>();
+        List<Subscription> removedSubscriptions = new ArrayList<>();
+
+        if (savedDevice.getSubscriptions() != null) {
+            for (Subscription subscription : savedDevice.getSubscriptions()) {
+                String routeId = subscription.getRoute() != null ? subscription.getRoute().getRouteId() : null;
+
+                // Remove unrequested routes, and any duplicate subscriptions to the same route.
+                if (routeId == null || !requestedSubscriptions.containsKey(routeId) || !savedRouteIds.add(routeId)) {
+                    removedSubscriptions.add(subscription);
+                }
+            }
+        }
+
+        List<Subscription> addedSubscriptions = new ArrayList<>();
+        for (Map.Entry<String, Subscription> requestedSubscription : requestedSubscriptions.entrySet()) {
+            if (!savedRouteIds.contains(requestedSubscription.getKey())) {
+                Subscription subscription = new Subscription();
+                subscription.setDevice(savedDevice);
+                subscription.setRoute(requestedSubscription.getValue().getRoute());
+                addedSubscriptions.add(subscription);
+            }
+        }
+
+        if (!removedSubscriptions.isEmpty()) {
+            mEbeanServer.deleteAllPermanent(removedSubscriptions);
+        }
+        if (!addedSubscriptions.isEmpty()) {
+            mEbeanServer.insertAll(addedSubscriptions);
+        }
+
+        Logger.info(String.format("Saved device %s subscriptions: %d added, %d removed.",
+                savedDevice.getDeviceId(), addedSubscriptions.size(), removedSubscriptions.size()));
+    }
+
+    /**
+     * Update the saved device's own columns, if any of them changed.
+     *
+     * @param savedDevice the saved device.
+     * @param device      the device being saved.
+     */
+    private void saveDeviceChanges(@Nonnull Device savedDevice, @Nonnull Device device) {
+        Long savedAccountId = savedDevice.getAccount() != null ? savedDevice.getAccount().id : null;
+        boolean deviceChanged = !Objects.equals(savedDevice.getDeviceId(), device.getDeviceId()) ||
+                !Objects.equals(savedDevice.getToken(), device.getToken()) ||
+                !Objects.equals(savedDevice.getAppKey(), device.getAppKey()) ||
+                !Objects.equals(savedDevice.getUserKey(), device.getUserKey()) ||
+                !Objects.equals(savedAccountId, device.getAccount().id);
+
+        if (deviceChanged) {
+            mEbeanServer.update(Device.class)
+                    .set("deviceId", device.getDeviceId())
+                    .set("deviceIdDigest", Device.digest(device.getDeviceId()))
+                    .set("token", device.getToken())
+                    .set("tokenDigest", Device.digest(device.getToken()))
+                    .set("appKey", device.getAppKey())
+                    .set("userKey", device.getUserKey())
+                    .set("account.id", device.getAccount().id)
+                    .where()
+                    .idEq(savedDevice.getId())
+                    .update();
+        }
+    }
+
+    /**
+     * Set the deviceId and token digests of a batch of saved devices which are missing them.
+     * Each batch is updated in its own short transaction, so the devices table is never locked.
+     *
+     * @param afterDeviceId id of the last device of the previous batch, or null for the first batch.
+     * @param batchSize     maximum number of devices to update.
+     * @return id of the last device in the batch, null if there are no more devices to update, or
+     * the same position (afterDeviceId, or 0 for the first batch) if the batch failed.
+     */
+    @Nullable
+    public Long backfillDigests(@Nullable Long afterDeviceId, int batchSize) {
+        try (Transaction transaction = mEbeanServer.beginTransaction()) {
+            transaction.setBatchMode(true);
+            transaction.setBatchSize(batchSize);
+
+            List<Device> devices = mEbeanServer.find(Device.class)
+                    .select("id, deviceId, token, deviceIdDigest, tokenDigest")
+                    .where()
+                    .gt("id", afterDeviceId != null ? afterDeviceId : 0L)
+                    .disjunction()
+                    .isNull("deviceIdDigest")
+                    .isNull("tokenDigest")
+                    .endJunction()
+                    .orderBy("id asc")
+                    .setMaxRows(batchSize)
+                    .findList();
+
+            if (devices.isEmpty()) {
+                transaction.commit();
+                return null;
+            }
+
+            for (Device device : devices) {
+                device.updateDigests();
+            }
+            mEbeanServer.updateAll(devices);
+            transaction.commit();
+
+            return devices.get(devices.size() - 1).getId();
+
+        } catch (Exception e) {
+            Logger.error("Error backfilling device digests.", e);
+        }
+        return afterDeviceId != null ? afterDeviceId : 0L;
+    }
+
+    /**
+     * Restrict a query to a deviceId or token property, through its indexed digest column. Until
+     * digests are required, devices without a digest are matched by the full value alone.
+     *
+     * @param query    the query to restrict.
+     * @param property the deviceId or token property path.
+     * @param value    the deviceId or token.
+     * @return the restricted query.
+     */
+    @Nonnull
+    private <T> ExpressionList<T> eqDigested(@Nonnull ExpressionList<T> query, @Nonnull String property,
+                                             @Nonnull String value) {
+        if (mDeviceDigests.isRequired()) {
+            query.eq(property + "Digest", Device.digest(value));
+
+        } else {
+            query.disjunction()
+                    .eq(property + "Digest", Device.digest(value))
+                    .isNull(property + "Digest")
+                    .endJunction();
+        }
+        return query.eq(property, value);
+    }
+
+    /**
+     * Restrict a query to devices with any of the deviceIds or tokens. Only the indexed digest
+     * columns are compared, so the results must be matched against the full values. Until digests
+     * are required, devices without a digest are also matched by their full values.
+     *
+     * @param query     the query to restrict.
+     * @param deviceIds deviceIds to find.
+     * @param tokens    tokens to find.
+     * @return the restricted query.
+     */
+    @Nonnull
+    private ExpressionList<Device> inDeviceIdsOrTokens(@Nonnull ExpressionList<Device> query,
+                                                       @Nonnull Collection<String> deviceIds,
+                                                       @Nonnull Collection<String> tokens) {
+        if (mDeviceDigests.isRequired()) {
+            return query.disjunction()
+                    .in("deviceIdDigest", getDigests(deviceIds))
+                    .in("tokenDigest", getDigests(tokens))
+                    .endJunction();
+        }
+
+        return query.disjunction()
+                .in("deviceIdDigest", getDigests(deviceIds))
+                .in("tokenDigest", getDigests(tokens))
+                .conjunction()
+                .isNull("deviceIdDigest")
+                .in("deviceId", deviceIds)
+                .endJunction()
+                .conjunction()
+                .isNull("tokenDigest")
+                .in("token", tokens)
+                .endJunction()
+                .endJunction();
+    }
+
+    /**
+     * Remove the devices which only matched a digest of the deviceId or token.
+     */
+    @Nonnull
+    private static List<Device> matchDevices(@Nonnull List<Device> devices, @Nullable String deviceId,
+                                             @Nullable String token) {
+        List<Device> matchingDevices = new ArrayList<>();
+        for (Device device : devices) {
+            if (Objects.equals(deviceId, device.getDeviceId()) || Objects.equals(token, device.getToken())) {
+                matchingDevices.add(device);
+            }
+        }
+        return matchingDevices;
+    }
+
+    @Nonnull
+    private static Set<Long> getDigests(@Nonnull Collection<String> values) {
+        Set<Long> digests = new HashSet<>();
+        for (String value : values) {
+            if (value != null) {
+                digests.add(Device.digest(value));
+            }
+        }
+        return digests;
+    }
 }
@@ -0,0 +1,63 @@
+package dao;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import io.ebean.EbeanServer;
+import io.ebean.SqlRow;
+import play.Logger;
+
+/**
+ * Whether every device is guaranteed to have its deviceId and token digests, which is only the
+ * case once the digest columns are NOT NULL. A finished backfill isn't enough: during a rolling
+ * deploy, servers still running the previous release keep saving devices without digests. Until
+ * then, {@link DeviceDao} also matches devices without digests by their full deviceId and token.
+ */
+@Singleton
+public class DeviceDigests {
+    private static final long CHECK_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private final EbeanServer mEbeanServer;
+    private volatile boolean mRequired;
+    private volatile long mCheckedAt;
+
+    @Inject
+    public DeviceDigests(EbeanServer ebeanServer) {
+        mEbeanServer = ebeanServer;
+    }
+
+    /**
+     * Check if devices can be looked up by digest alone. The schema is checked at most once a
+     * minute until the digest columns are NOT NULL.
+     *
+     * @return true once the digest columns are NOT NULL.
+     */
+    public boolean isRequired() {
+        long now = System.currentTimeMillis();
+        if (!mRequired && now - mCheckedAt > CHECK_INTERVAL_MS) {
+            mCheckedAt = now;
+            mRequired = isNotNull();
+        }
+        return mRequired;
+    }
+
+    private boolean isNotNull() {
+        try {
+            SqlRow row = mEbeanServer.createSqlQuery(
+                    "select count(*) as not_null_count " +
+                            "from information_schema.columns " +
+                            "where table_schema = 'device_information' " +
+                            "and table_name = 'devices' " +
+                            "and column_name in ('device_id_digest', 'token_digest') " +
+                            "and is_nullable = 'NO'")
+                    .findOne();
+            return row != null && row.getLong("not_null_count") == 2;
+
+        } catch (Exception e) {
+            Logger.error("Error checking the device digest columns.", e);
+        }
+        return false;
+    }
+}
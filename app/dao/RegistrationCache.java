@@ -0,0 +1,119 @@
+package dao;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Singleton;
+
+/**
+ * In-memory set of recently saved (deviceId, token) registrations, keyed by token, so that
+ * devices registering again with an unchanged registration don't query the datastore.
+ * <p>
+ * Registrations are forgotten when their token is refreshed or removed through
+ * {@link DeviceDao}, and after an hour in case they were changed elsewhere.
+ */
+@Singleton
+public class RegistrationCache {
+    private static final long REGISTRATION_TTL_MS = TimeUnit.HOURS.toMillis(1);
+    private static final int MAX_ENTRIES = 100000;
+
+    private final Map<String, Registration> mRegistrations = new ConcurrentHashMap<>();
+
+    // Bumped on every invalidation, so registrations read before it are never stored after it.
+    private final AtomicLong mGeneration = new AtomicLong();
+
+    /**
+     * Check if a registration is known to be saved, unchanged.
+     *
+     * @param deviceId deviceId of the registration.
+     * @param token    token of the registration.
+     * @return the saved device id, or null if the registration isn't known.
+     */
+    @Nullable
+    Long getDeviceId(@Nonnull String deviceId, @Nonnull String token) {
+        Registration registration = mRegistrations.get(token);
+        if (registration == null || !registration.deviceId.equals(deviceId)) {
+            return null;
+        }
+
+        if (System.currentTimeMillis() - registration.savedAt > REGISTRATION_TTL_MS) {
+            mRegistrations.remove(token, registration);
+            return null;
+        }
+        return registration.id;
+    }
+
+    /**
+     * Get the current generation, to pass to {@link #put} after reading a registration.
+     *
+     * @return current invalidation generation.
+     */
+    long getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Remember a saved registration, unless a registration was invalidated since it was read.
+     *
+     * @param deviceId   deviceId of the saved device.
+     * @param token      token of the saved device.
+     * @param id         id of the saved device.
+     * @param generation generation from before the registration was read or saved.
+     */
+    void put(@Nullable String deviceId, @Nullable String token, @Nullable Long id, long generation) {
+        if (deviceId == null || token == null || id == null) {
+            return;
+        }
+
+        if (mRegistrations.size() >= MAX_ENTRIES) {
+            removeEntries(MAX_ENTRIES / 10);
+        }
+
+        Registration registration = new Registration(deviceId, id);
+        mRegistrations.put(token, registration);
+
+        if (mGeneration.get() != generation) {
+            mRegistrations.remove(token, registration);
+        }
+    }
+
+    /**
+     * Forget the registration of a token.
+     *
+     * @param token a refreshed, removed or replaced token.
+     */
+    void invalidate(@Nullable String token) {
+        mGeneration.incrementAndGet();
+        if (token != null) {
+            mRegistrations.remove(token);
+        }
+    }
+
+    private void removeEntries(int count) {
+        Iterator<Registration> it = mRegistrations.values().iterator();
+        for (int i = 0; i < count && it.hasNext(); i++) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * A saved registration.
+     */
+    private static class Registration {
+        private final String deviceId;
+        private final Long id;
+        private final long savedAt;
+
+        private Registration(@Nonnull String deviceId, @Nonnull Long id) {
+            this.deviceId = deviceId;
+            this.id = id;
+            this.savedAt = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package dao;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+
+import io.ebean.EbeanServer;
+import io.ebean.ExpressionList;
+import models.devices.ResubscribeJob;
+import play.Logger;
+
+/**
+ * A DAO class for background resubscribe broadcast jobs.
+ */
+public class ResubscribeJobDao extends BaseDao {
+
+    @Inject
+    public ResubscribeJobDao(EbeanServer ebeanServer) {
+        super(ebeanServer);
+    }
+
+    /**
+     * Fetch a resubscribe job.
+     *
+     * @param jobId id of the job.
+     * @return the job, or null if there is no job for the id.
+     */
+    @Nullable
+    public ResubscribeJob getJob(long jobId) {
+        try {
+            return mEbeanServer.find(ResubscribeJob.class, jobId);
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error fetching resubscribe job %d.", jobId), e);
+        }
+        return null;
+    }
+
+    /**
+     * Fetch the running jobs of an account, or of all accounts.
+     *
+     * @param apiKey api key of the account, or null for all accounts.
+     * @return running jobs, oldest first.
+     */
+    @Nonnull
+    public List<ResubscribeJob> getRunningJobs(@Nullable String apiKey) {
+        try {
+            ExpressionList<ResubscribeJob> query = mEbeanServer.find(ResubscribeJob.class)
+                    .where()
+                    .eq("status", ResubscribeJob.Status.RUNNING);
+            if (apiKey != null) {
+                query.eq("apiKey", apiKey);
+            }
+            return query.orderBy("id asc").findList();
+
+        } catch (Exception e) {
+            Logger.error("Error fetching running resubscribe jobs.", e);
+        }
+        return new ArrayList<>();
+    }
+
+    /**
+     * Claim the next wave of a running job for this server. The claim only succeeds if the job
+     * was not updated since it was last seen, so when several servers resume the same job only
+     * the first one to claim a wave keeps running it.
+     *
+     * @param jobId           id of the job.
+     * @param lastTimeUpdated update time of the job when this server last saw or saved it.
+     * @return the new update time of the claimed job, or null if it was claimed elsewhere, is no
+     * longer running, or the claim failed.
+     */
+    @Nullable
+    public Date claimWave(long jobId, @Nonnull Date lastTimeUpdated) {
+        try {
+            Date claimedAt = new Date();
+            int claimedCount = mEbeanServer.createSqlUpdate(
+                    "update device_information.resubscribe_jobs set time_updated = :claimedAt " +
+                            "where id = :jobId and status = :status and time_updated = :lastTimeUpdated")
+                    .setParameter("claimedAt", claimedAt)
+                    .setParameter("jobId", jobId)
+                    .setParameter("status", ResubscribeJob.Status.RUNNING.name())
+                    .setParameter("lastTimeUpdated", lastTimeUpdated)
+                    .execute();
+
+            return claimedCount == 1 ? claimedAt : null;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error claiming resubscribe job %d.", jobId), e);
+        }
+        return null;
+    }
+
+    /**
+     * Save a new or updated resubscribe job.
+     *
+     * @param job job to save.
+     * @return success boolean.
+     */
+    public boolean saveJob(@Nonnull ResubscribeJob job) {
+        try {
+            mEbeanServer.save(job);
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error saving resubscribe job for %s.", job.getApiKey()), e);
+            return false;
+        }
+        return true;
+    }
+}
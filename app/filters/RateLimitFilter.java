@@ -0,0 +1,40 @@
+package filters;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+import javax.inject.Inject;
+
+import akka.stream.Materializer;
+import play.mvc.Filter;
+import play.mvc.Http;
+import play.mvc.Result;
+import play.mvc.Results;
+import services.RateLimiter;
+
+/**
+ * Rejects requests with 429 (Too Many Requests) once a client IP address has used up its token
+ * bucket for the route group, before the request reaches a controller or the datastore.
+ */
+public class RateLimitFilter extends Filter {
+    private final RateLimiter mRateLimiter;
+
+    @Inject
+    public RateLimitFilter(Materializer materializer, RateLimiter rateLimiter) {
+        super(materializer);
+        mRateLimiter = rateLimiter;
+    }
+
+    @Override
+    public CompletionStage<Result> apply(Function<Http.RequestHeader, CompletionStage<Result>> next,
+                                         Http.RequestHeader request) {
+        String group = mRateLimiter.getGroup(request.path());
+        if (group != null && !mRateLimiter.tryAcquire(group, request.remoteAddress())) {
+            return CompletableFuture.completedFuture(Results
+                    .status(Http.Status.TOO_MANY_REQUESTS, "Too many requests")
+                    .withHeader(Http.HeaderNames.RETRY_AFTER, String.valueOf(mRateLimiter.getRetryAfterSeconds(group))));
+        }
+        return next.apply(request);
+    }
+}
@@ -0,0 +1,147 @@
+package filters;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+
+import akka.stream.Materializer;
+import helpers.RequestHelper;
+import play.http.HttpEntity;
+import play.mvc.Filter;
+import play.mvc.Http;
+import play.mvc.Result;
+import play.mvc.Results;
+import services.ResponseCache;
+
+/**
+ * Caches complete GET responses of the public alerts API in memory, keyed by path, the query
+ * parameters the controllers read, and response encoding.
+ * <p>
+ * Only responses which name their surrogate keys (in the "Surrogate-Key" header) are cached, as
+ * those are the responses that can be purged when the agencies or routes they were built from
+ * change.
+ */
+public class ResponseCacheFilter extends Filter {
+    private static final String CACHED_PATH_PREFIX = "/alerts/v1/";
+    private static final String UNCACHED_PATH_SUFFIX = "/raw";
+    private static final String CACHE_STATUS_HEADER = "X-Cache";
+
+    // Sorted, so the same parameters in any order share a cache key.
+    private static final String[] CACHE_KEY_PARAMETERS = {
+            "fields", "highPriority", "routes", "transit", "type"
+    };
+    private static final String[] CACHED_HEADERS = {
+            Http.HeaderNames.ETAG,
+            Http.HeaderNames.VARY,
+            ResponseCache.SURROGATE_KEY_HEADER
+    };
+
+    private final ResponseCache mResponseCache;
+
+    @Inject
+    public ResponseCacheFilter(Materializer materializer, ResponseCache responseCache) {
+        super(materializer);
+        mResponseCache = responseCache;
+    }
+
+    @Override
+    public CompletionStage<Result> apply(Function<Http.RequestHeader, CompletionStage<Result>> next,
+                                         Http.RequestHeader request) {
+        if (!isCacheable(request)) {
+            return next.apply(request);
+        }
+
+        String cacheKey = getCacheKey(request);
+        ResponseCache.CachedResponse cachedResponse = mResponseCache.get(cacheKey);
+        if (cachedResponse != null) {
+            return CompletableFuture.completedFuture(replay(request, cachedResponse));
+        }
+
+        long generation = mResponseCache.getGeneration();
+        return next.apply(request).thenApply(result -> {
+            Optional<String> surrogateKeys = result.header(ResponseCache.SURROGATE_KEY_HEADER);
+            if (result.status() == Http.Status.OK && surrogateKeys.isPresent() &&
+                    result.body() instanceof HttpEntity.Strict) {
+
+                Map<String, String> headers = new HashMap<>();
+                for (String header : CACHED_HEADERS) {
+                    result.header(header).ifPresent(value -> headers.put(header, value));
+                }
+
+                HttpEntity.Strict body = (HttpEntity.Strict) result.body();
+                Set<String> keys = new LinkedHashSet<>(Arrays.asList(surrogateKeys.get().split(" ")));
+                mResponseCache.put(cacheKey, new ResponseCache.CachedResponse(result.status(), body.data(),
+                        body.contentType().orElse(null), headers, keys), generation);
+            }
+            return result.withHeader(CACHE_STATUS_HEADER, "MISS");
+        });
+    }
+
+    /**
+     * Get the cache key of a request. Query parameters which no controller reads are dropped, so
+     * they can't be used to fill the cache with copies of the same response.
+     *
+     * @param request request to cache.
+     * @return cache key.
+     */
+    @Nonnull
+    public static String getCacheKey(@Nonnull Http.RequestHeader request) {
+        StringBuilder cacheKey = new StringBuilder(request.path());
+        Map<String, String[]> queryString = request.queryString();
+        for (String parameter : CACHE_KEY_PARAMETERS) {
+            String[] values = queryString.get(parameter);
+            if (values == null) {
+                continue;
+            }
+
+            for (String value : values) {
+                cacheKey.append(cacheKey.indexOf("?") < 0 ? '?' : '&')
+                        .append(parameter)
+                        .append('=')
+                        .append(encode(value));
+            }
+        }
+        return String.format("%s|%s", cacheKey, RequestHelper.prefersCbor(request) ? "cbor" : "json");
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isCacheable(Http.RequestHeader request) {
+        String path = request.path();
+        return request.method().equals("GET") &&
+                path.startsWith(CACHED_PATH_PREFIX) &&
+                !path.endsWith(UNCACHED_PATH_SUFFIX);
+    }
+
+    private static Result replay(Http.RequestHeader request, ResponseCache.CachedResponse cachedResponse) {
+        String eTag = cachedResponse.getHeaders().get(Http.HeaderNames.ETAG);
+        Optional<String> ifNoneMatch = request.header(Http.HeaderNames.IF_NONE_MATCH);
+        if (eTag != null && ifNoneMatch.isPresent() && ifNoneMatch.get().equals(eTag)) {
+            return Results.status(Http.Status.NOT_MODIFIED).withHeader(Http.HeaderNames.ETAG, eTag);
+        }
+
+        Result result = Results.status(cachedResponse.getStatus()).sendEntity(
+                new HttpEntity.Strict(cachedResponse.getBody(), Optional.ofNullable(cachedResponse.getContentType())));
+        for (Map.Entry<String, String> header : cachedResponse.getHeaders().entrySet()) {
+            result = result.withHeader(header.getKey(), header.getValue());
+        }
+        return result.withHeader(CACHE_STATUS_HEADER, "HIT");
+    }
+}
@@ -8,6 +8,7 @@ import org.springframework.util.CollectionUtils;
 import org.springframework.util.StringUtils;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -153,21 +154,22 @@ public class AlertHelper {
      * with a set of recipients for an updated route.
      *
      * @param alert           route which has been updated.
+     * @param deviceTokens    push tokens of the subscribed devices.
      * @param platformAccount platform account for the alert message.
      * @param isCancellation  set whether the alert message is an update or cancellation (clear).
      * @return List of platform messages for route.
      */
-    public static List<Message> getAlertMessages(@Nonnull Alert alert, @Nonnull Route route, @Nonnull List<Device> devices,
+    public static List<Message> getAlertMessages(@Nonnull Alert alert, @Nonnull Route route, @Nonnull Collection<String> deviceTokens,
                                                  @Nonnull PlatformAccount platformAccount, boolean isCancellation) {
 
         // Build the message but truncate messages that are too long to avoid MessageTooBig errors.
         List<Message> messages;
         if (!isCancellation) {
-            messages = buildAlertUpdateMessage(alert, route, devices, platformAccount);
+            messages = buildAlertUpdateMessage(alert, route, deviceTokens, platformAccount);
 
         } else {
             // If the alerts list is empty or null, this route is cancelled.
-            messages = buildAlertCancelMessage(alert, route, devices, platformAccount);
+            messages = buildAlertCancelMessage(alert, route, deviceTokens, platformAccount);
         }
 
         for (Message message : messages) {
@@ -232,17 +234,14 @@ public class AlertHelper {
      * @return List of platform messages for route.
      */
     @Nonnull
-    private static List<Message> buildAlertUpdateMessage(@Nonnull Alert alert, @Nonnull Route route, @Nonnull List<Device> devices,
+    private static List<Message> buildAlertUpdateMessage(@Nonnull Alert alert, @Nonnull Route route, @Nonnull Collection<String> deviceTokens,
                                                          @Nonnull PlatformAccount platformAccount) {
         List<Message> messages = new ArrayList<>();
 
         Credentials credentials = getMessageCredentials(platformAccount);
 
         if (credentials != null) {
-            Set<String> tokenSet = new HashSet<>();
-            for (Device device : devices) {
-                tokenSet.add(device.getToken());
-            }
+            Set<String> tokenSet = new HashSet<>(deviceTokens);
 
             MessageBuilder.Builder messageBuilder = new MessageBuilder.Builder()
                     .setCollapseKey(alert.getType().name() + "-" + route.getRouteId())
@@ -309,7 +308,7 @@ public class AlertHelper {
     @NotNull
     private static List<Message> buildAlertCancelMessage(@Nonnull Alert alert,
                                                          @Nonnull Route route,
-                                                         @Nonnull List<Device> devices,
+                                                         @Nonnull Collection<String> deviceTokens,
                                                          @Nonnull PlatformAccount platformAccount) {
         List<Message> messages = new ArrayList<>();
         Credentials credentials = getMessageCredentials(platformAccount);
@@ -323,12 +322,7 @@ public class AlertHelper {
                     .addData(AlertMessageKey.KEY_ALERT_ROUTE_ID.value, route.getRouteId())
                     .addData(AlertMessageKey.KEY_ALERT_CATEGORY.value, alert.getType().name());
 
-            Set<String> tokenSet = new HashSet<>();
-            for (Device device : devices) {
-                tokenSet.add(device.getToken());
-            }
-
-            messageBuilder.setDeviceTokens(tokenSet);
+            messageBuilder.setDeviceTokens(new HashSet<>(deviceTokens));
 
             try {
                 messages.add(messageBuilder.build());
@@ -472,7 +466,11 @@ public class AlertHelper {
             Credentials credentials = new Credentials(PlatformType.SERVICE_GCM);
             credentials.setAuthKey(account.authorisationKey);
             credentials.setPackageUri(account.packageUri);
-            credentials.setCertBody(account.certificateBody);
+
+            // GCM doesn't use the certificate body, which fanout queries don't load for it.
+            if (account.platformType != PlatformType.SERVICE_GCM) {
+                credentials.setCertBody(account.certificateBody);
+            }
             return credentials;
         }
         return null;
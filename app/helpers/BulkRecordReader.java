@@ -0,0 +1,55 @@
+package helpers;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Reads JSON records one at a time from a stream holding either a JSON array of records or
+ * newline delimited JSON (one record per line), so large uploads are never held in memory.
+ */
+public class BulkRecordReader implements Closeable {
+    private final JsonParser mParser;
+    private boolean mStarted;
+    private boolean mArray;
+
+    public BulkRecordReader(@Nonnull InputStream inputStream) throws IOException {
+        mParser = new ObjectMapper().getFactory().createParser(inputStream);
+    }
+
+    /**
+     * Read the next record.
+     *
+     * @return the next record, or null at the end of the stream.
+     * @throws IOException if the stream is not valid JSON.
+     */
+    @Nullable
+    public JsonNode next() throws IOException {
+        JsonToken token = mParser.nextToken();
+        if (!mStarted) {
+            mStarted = true;
+            if (token == JsonToken.START_ARRAY) {
+                mArray = true;
+                token = mParser.nextToken();
+            }
+        }
+
+        if (token == null || (mArray && token == JsonToken.END_ARRAY)) {
+            return null;
+        }
+        return mParser.readValueAsTree();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mParser.close();
+    }
+}
@@ -6,6 +6,10 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import javax.annotation.Nonnull;
 import java.util.List;
 
+import play.api.http.MediaRange;
+import play.mvc.Http;
+import serializers.AgencyCborCodec;
+
 /**
  * GNU General Public License v3.0.
  * (This means you can use it as you wish, host and share modifications.)
@@ -26,4 +30,23 @@ public class RequestHelper {
         }
         return arrayNode;
     }
+
+    /**
+     * Check if a client prefers a CBOR response over JSON. Wildcard accept headers (and clients
+     * which list JSON first) get JSON.
+     *
+     * @param request the incoming request.
+     * @return true if the response should be CBOR encoded.
+     */
+    public static boolean prefersCbor(@Nonnull Http.RequestHeader request) {
+        for (MediaRange mediaRange : request.acceptedTypes()) {
+            if (mediaRange.accepts(Http.MimeTypes.JSON)) {
+                return false;
+            }
+            if (mediaRange.accepts(AgencyCborCodec.CONTENT_TYPE)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
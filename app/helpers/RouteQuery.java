@@ -0,0 +1,241 @@
+package helpers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import enums.AlertType;
+import enums.TransitType;
+import models.snapshots.AgencySnapshot;
+import models.snapshots.AlertSnapshot;
+import models.snapshots.RouteSnapshot;
+import play.libs.Json;
+import play.mvc.Http;
+
+/**
+ * A field projection and filter over an agency's routes, parsed from the public alert endpoint
+ * query string, e.g. "?fields=routeId,alertTypes&type=DETOUR&transit=BUS&highPriority=true".
+ * <p>
+ * Routes are selected with the agency snapshot's precomputed indexes. When an alert type or
+ * priority filter is set, only the matching alerts of each route are included.
+ */
+public class RouteQuery {
+    private static final String FIELDS_KEY = "fields";
+    private static final String ALERT_TYPE_KEY = "type";
+    private static final String TRANSIT_TYPE_KEY = "transit";
+    private static final String HIGH_PRIORITY_KEY = "highPriority";
+    private static final String ENUM_PREFIX = "TYPE_";
+
+    // Route fields, plus the derived "alertTypes" field.
+    private static final String FIELD_ROUTE_ID = "routeId";
+    private static final String FIELD_ROUTE_NAME = "routeName";
+    private static final String FIELD_TRANSIT_TYPE = "transitType";
+    private static final String FIELD_DEFAULT = "default";
+    private static final String FIELD_STICKY = "sticky";
+    private static final String FIELD_EXTERNAL_URI = "externalUri";
+    private static final String FIELD_ALERTS = "alerts";
+    private static final String FIELD_ALERT_TYPES = "alertTypes";
+
+    // Alert fields, requested as "alerts.<field>".
+    private static final String ALERT_FIELD_PREFIX = FIELD_ALERTS + ".";
+    private static final Set<String> ALERT_FIELDS = new HashSet<>(Arrays.asList(
+            "id", "type", "messageTitle", "messageSubtitle", "messageBody", "externalUri",
+            "highPriority", "lastUpdated", "locations"));
+
+    // The route fields (and order) of a full route response.
+    private static final Set<String> DEFAULT_ROUTE_FIELDS = new LinkedHashSet<>(Arrays.asList(
+            FIELD_ROUTE_ID, FIELD_ALERTS, FIELD_ROUTE_NAME, FIELD_TRANSIT_TYPE, FIELD_DEFAULT,
+            FIELD_STICKY, FIELD_EXTERNAL_URI));
+
+    private static final Set<String> ROUTE_FIELDS = new HashSet<>(Arrays.asList(
+            FIELD_ROUTE_ID, FIELD_ROUTE_NAME, FIELD_TRANSIT_TYPE, FIELD_DEFAULT, FIELD_STICKY,
+            FIELD_EXTERNAL_URI, FIELD_ALERTS, FIELD_ALERT_TYPES));
+
+    private final Set<String> mRouteFields;
+    private final Set<String> mAlertFields;
+    private final AlertType mAlertType;
+    private final TransitType mTransitType;
+    private final Boolean mHighPriority;
+
+    private RouteQuery(@Nullable Set<String> routeFields, @Nullable Set<String> alertFields,
+                       @Nullable AlertType alertType, @Nullable TransitType transitType,
+                       @Nullable Boolean highPriority) {
+        mRouteFields = routeFields;
+        mAlertFields = alertFields;
+        mAlertType = alertType;
+        mTransitType = transitType;
+        mHighPriority = highPriority;
+    }
+
+    /**
+     * Parse a projection or filter from the request query string.
+     *
+     * @param request public API request.
+     * @return the query, or null if the request has no projection or filters.
+     * @throws IllegalArgumentException if a field or filter value is not valid.
+     */
+    @Nullable
+    public static RouteQuery from(@Nonnull Http.Request request) {
+        return parse(request.getQueryString(FIELDS_KEY),
+                request.getQueryString(ALERT_TYPE_KEY),
+                request.getQueryString(TRANSIT_TYPE_KEY),
+                request.getQueryString(HIGH_PRIORITY_KEY));
+    }
+
+    /**
+     * Parse a projection or filter from its query parameter values.
+     *
+     * @param fields       comma separated route (or "alerts.") fields.
+     * @param alertType    alert type filter.
+     * @param transitType  transit type filter.
+     * @param highPriority high priority filter.
+     * @return the query, or null if there is no projection or filters.
+     * @throws IllegalArgumentException if a field or filter value is not valid.
+     */
+    @Nullable
+    public static RouteQuery parse(@Nullable String fields, @Nullable String alertType,
+                                   @Nullable String transitType, @Nullable String highPriority) {
+        if (fields == null && alertType == null && transitType == null && highPriority == null) {
+            return null;
+        }
+
+        Set<String> routeFields = null;
+        Set<String> alertFields = null;
+        if (fields != null) {
+            routeFields = new LinkedHashSet<>();
+            alertFields = new LinkedHashSet<>();
+            for (String field : fields.split(",")) {
+                field = field.trim();
+                if (field.startsWith(ALERT_FIELD_PREFIX) && ALERT_FIELDS.contains(field.substring(ALERT_FIELD_PREFIX.length()))) {
+                    routeFields.add(FIELD_ALERTS);
+                    alertFields.add(field.substring(ALERT_FIELD_PREFIX.length()));
+
+                } else if (ROUTE_FIELDS.contains(field)) {
+                    routeFields.add(field);
+
+                } else if (!field.isEmpty()) {
+                    throw new IllegalArgumentException(String.format("Unknown field %s.", field));
+                }
+            }
+
+            // "alerts" on its own means every alert field.
+            if (alertFields.isEmpty()) {
+                alertFields = null;
+            }
+        }
+
+        return new RouteQuery(routeFields, alertFields,
+                alertType != null ? AlertType.valueOf(enumName(alertType)) : null,
+                transitType != null ? TransitType.valueOf(enumName(transitType)) : null,
+                highPriority != null ? parseBoolean(highPriority) : null);
+    }
+
+    /**
+     * Accept only "true" or "false", in any case, rather than reading anything else as false.
+     */
+    private static boolean parseBoolean(@Nonnull String value) {
+        String trimmedValue = value.trim();
+        if (trimmedValue.equalsIgnoreCase("true") || trimmedValue.equalsIgnoreCase("false")) {
+            return Boolean.parseBoolean(trimmedValue);
+        }
+        throw new IllegalArgumentException(String.format("Invalid boolean %s.", value));
+    }
+
+    /**
+     * Accept enum names with or without their "TYPE_" prefix, in any case.
+     */
+    @Nonnull
+    private static String enumName(@Nonnull String value) {
+        String name = value.trim().toUpperCase(Locale.US);
+        return name.startsWith(ENUM_PREFIX) ? name : ENUM_PREFIX + name;
+    }
+
+    /**
+     * Apply the query to an agency.
+     *
+     * @param agency agency snapshot to query.
+     * @return the agency, with only its matching routes and requested fields.
+     */
+    @Nonnull
+    public JsonNode apply(@Nonnull AgencySnapshot agency) {
+        ObjectNode agencyNode = Json.newObject();
+        agencyNode.put("id", agency.getId());
+        agencyNode.put("name", agency.getName());
+        agencyNode.put("phone", agency.getPhone());
+        agencyNode.put("externalUri", agency.getExternalUri());
+        agencyNode.put("utcOffset", agency.getUtcOffset());
+
+        ArrayNode routesNode = agencyNode.putArray("routes");
+        for (RouteSnapshot route : agency.findRoutes(mAlertType, mTransitType, mHighPriority)) {
+            routesNode.add(projectRoute(route));
+        }
+        return agencyNode;
+    }
+
+    @Nonnull
+    private ObjectNode projectRoute(@Nonnull RouteSnapshot route) {
+        Set<String> routeFields = mRouteFields != null ? mRouteFields : DEFAULT_ROUTE_FIELDS;
+        ObjectNode routeNode = Json.newObject();
+
+        for (String field : routeFields) {
+            switch (field) {
+                case FIELD_ROUTE_ID:
+                    routeNode.put(FIELD_ROUTE_ID, route.getRouteId());
+                    break;
+                case FIELD_ROUTE_NAME:
+                    routeNode.put(FIELD_ROUTE_NAME, route.getRouteName());
+                    break;
+                case FIELD_TRANSIT_TYPE:
+                    routeNode.put(FIELD_TRANSIT_TYPE, route.getTransitType() != null ? route.getTransitType().name() : null);
+                    break;
+                case FIELD_DEFAULT:
+                    routeNode.put(FIELD_DEFAULT, route.getDefault());
+                    break;
+                case FIELD_STICKY:
+                    routeNode.put(FIELD_STICKY, route.getSticky());
+                    break;
+                case FIELD_EXTERNAL_URI:
+                    routeNode.put(FIELD_EXTERNAL_URI, route.getExternalUri());
+                    break;
+                case FIELD_ALERT_TYPES:
+                    ArrayNode alertTypesNode = routeNode.putArray(FIELD_ALERT_TYPES);
+                    for (AlertType alertType : route.getAlertTypes()) {
+                        alertTypesNode.add(alertType.name());
+                    }
+                    break;
+                case FIELD_ALERTS:
+                    ArrayNode alertsNode = routeNode.putArray(FIELD_ALERTS);
+                    for (AlertSnapshot alert : route.getAlerts()) {
+                        if (matches(alert)) {
+                            alertsNode.add(projectAlert(alert));
+                        }
+                    }
+                    break;
+            }
+        }
+        return routeNode;
+    }
+
+    private boolean matches(@Nonnull AlertSnapshot alert) {
+        return (mAlertType == null || mAlertType == alert.getType()) &&
+                (mHighPriority == null || mHighPriority.equals(Boolean.TRUE.equals(alert.getHighPriority())));
+    }
+
+    @Nonnull
+    private JsonNode projectAlert(@Nonnull AlertSnapshot alert) {
+        ObjectNode alertNode = (ObjectNode) Json.toJson(alert);
+        if (mAlertFields != null) {
+            alertNode.retain(mAlertFields);
+        }
+        return alertNode;
+    }
+}
@@ -1,8 +1,11 @@
 package injection.modules;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.name.Names;
 import injection.providers.CommuteEbeanServerProvider;
+import injection.providers.CommuteReplicaEbeanServerProvider;
 import io.ebean.EbeanServer;
+import main.Constants;
 
 /**
  * GuiseModule for invoking the ebean Database provider.
@@ -14,5 +17,10 @@ public class DatabaseModule extends AbstractModule {
         bind(EbeanServer.class)
                 .toProvider(CommuteEbeanServerProvider.class)
                 .asEagerSingleton();
+
+        bind(EbeanServer.class)
+                .annotatedWith(Names.named(Constants.REPLICA_DATABASE_SERVER_NAME))
+                .toProvider(CommuteReplicaEbeanServerProvider.class)
+                .asEagerSingleton();
     }
-}
\ No newline at end of file
+}
@@ -7,8 +7,12 @@ import com.typesafe.config.ConfigValue;
 import com.typesafe.config.ConfigValueType;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import io.ebean.EbeanServer;
 import io.ebean.EbeanServerFactory;
@@ -18,11 +22,14 @@ import models.accounts.Account;
 import models.accounts.PlatformAccount;
 import models.alerts.Agency;
 import models.alerts.Alert;
+import models.alerts.AlertHistory;
 import models.alerts.Location;
 import models.alerts.Route;
 import models.devices.Device;
+import models.devices.ResubscribeJob;
 import models.devices.Subscription;
 import play.Application;
+import services.ConnectionPoolMonitor;
 
 /**
  * GNU General Public License v3.0.
@@ -30,13 +37,28 @@ import play.Application;
  * Copyright 25/03/2018 Splendid Bits.
  */
 public class CommuteEbeanServerProvider implements Provider<EbeanServer> {
+    /**
+     * Rarely changing reference data models held in the Ebean L2 bean cache (see their @Cache
+     * annotations). Only Route also uses the query cache.
+     */
+    public static final List<Class<?>> CACHED_MODELS = Collections.unmodifiableList(Arrays.asList(
+            Account.class, PlatformAccount.class, Agency.class, Route.class));
+
+    private static final int BEAN_CACHE_MAX_SIZE = 10000;
+    private static final int QUERY_CACHE_MAX_SIZE = 1000;
+    private static final int CACHE_MAX_IDLE_SECS = (int) TimeUnit.MINUTES.toSeconds(10);
+    private static final int CACHE_MAX_TTL_SECS = (int) TimeUnit.HOURS.toSeconds(1);
+
     private Config config;
     private final Application application;
+    private final ConnectionPoolMonitor connectionPoolMonitor;
 
     @Inject
-    public CommuteEbeanServerProvider(Config config, Application application) {
+    public CommuteEbeanServerProvider(Config config, Application application,
+                                      ConnectionPoolMonitor connectionPoolMonitor) {
         this.config = config;
         this.application = application;
+        this.connectionPoolMonitor = connectionPoolMonitor;
     }
 
     @Override
@@ -50,6 +72,31 @@ public class CommuteEbeanServerProvider implements Provider<EbeanServer> {
             throw new RuntimeException("No commutealerts configuration found");
         }
 
+        ServerConfig serverConfig = createServerConfig(Constants.DATABASE_SERVER_NAME, configuration);
+        serverConfig.setRegister(true);
+        serverConfig.setDefaultServer(true);
+        serverConfig.setDdlGenerate(Constants.GENERATE_RUN_DLL_DATABASE);
+        serverConfig.setDataSource(connectionPoolMonitor.createDataSource(
+                Constants.DATABASE_SERVER_NAME, serverConfig.getDataSourceConfig()));
+
+        // Bound the L2 caches of the CACHED_MODELS.
+        serverConfig.setCacheMaxSize(BEAN_CACHE_MAX_SIZE);
+        serverConfig.setCacheMaxIdleTime(CACHE_MAX_IDLE_SECS);
+        serverConfig.setCacheMaxTimeToLive(CACHE_MAX_TTL_SECS);
+        serverConfig.setQueryCacheMaxSize(QUERY_CACHE_MAX_SIZE);
+        serverConfig.setQueryCacheMaxIdleTime(CACHE_MAX_IDLE_SECS);
+        serverConfig.setQueryCacheMaxTimeToLive(CACHE_MAX_TTL_SECS);
+        return EbeanServerFactory.create(serverConfig);
+    }
+
+    /**
+     * Create the configuration of a commutealerts EbeanServer, with all of the application models.
+     *
+     * @param serverName    name of the EbeanServer.
+     * @param configuration datasource configuration.
+     * @return server configuration.
+     */
+    static ServerConfig createServerConfig(String serverName, Config configuration) {
         // Build custom properties from main configuration.
         Properties properties = new Properties();
         for (Map.Entry<String, ConfigValue> configEntry : configuration.entrySet()) {
@@ -66,21 +113,20 @@ public class CommuteEbeanServerProvider implements Provider<EbeanServer> {
         models.add(Agency.class);
         models.add(Route.class);
         models.add(Alert.class);
+        models.add(AlertHistory.class);
         models.add(Location.class);
         models.add(Device.class);
         models.add(Subscription.class);
+        models.add(ResubscribeJob.class);
 
         ServerConfig serverConfig = new ServerConfig();
-        serverConfig.setName(Constants.DATABASE_SERVER_NAME);
+        serverConfig.setName(serverName);
         serverConfig.loadFromProperties(properties);
 
-        serverConfig.setRegister(true);
-        serverConfig.setDefaultServer(true);
         serverConfig.setUpdatesDeleteMissingChildren(true);
         serverConfig.setUpdateChangesOnly(true);
-        serverConfig.setDdlGenerate(Constants.GENERATE_RUN_DLL_DATABASE);
 
         serverConfig.setClasses(models);
-        return EbeanServerFactory.create(serverConfig);
+        return serverConfig;
     }
 }
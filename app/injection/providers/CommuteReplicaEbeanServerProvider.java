@@ -0,0 +1,57 @@
+package injection.providers;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.typesafe.config.Config;
+
+import io.ebean.EbeanServer;
+import io.ebean.EbeanServerFactory;
+import io.ebean.config.ServerConfig;
+import main.Constants;
+import play.Logger;
+import services.ConnectionPoolMonitor;
+
+/**
+ * Provides the EbeanServer for reads which tolerate slightly stale data, such as the public
+ * alert reads and subscriber fanout.
+ * <p>
+ * When a read replica is configured under "replica.commutealerts" a separate read-only server is
+ * created for it. Otherwise the primary commutealerts server is returned, so callers never need to
+ * know whether a replica exists.
+ */
+public class CommuteReplicaEbeanServerProvider implements Provider<EbeanServer> {
+    private static final String REPLICA_CONFIG = "replica." + Constants.DATABASE_SERVER_NAME;
+
+    private final Config config;
+    private final EbeanServer primaryEbeanServer;
+    private final ConnectionPoolMonitor connectionPoolMonitor;
+
+    @Inject
+    public CommuteReplicaEbeanServerProvider(Config config, EbeanServer primaryEbeanServer,
+                                             ConnectionPoolMonitor connectionPoolMonitor) {
+        this.config = config;
+        this.primaryEbeanServer = primaryEbeanServer;
+        this.connectionPoolMonitor = connectionPoolMonitor;
+    }
+
+    @Override
+    public EbeanServer get() {
+        if (config == null || !config.hasPath(REPLICA_CONFIG)) {
+            return primaryEbeanServer;
+        }
+
+        Logger.info("Routing stale-tolerant reads to the commutealerts read replica.");
+        ServerConfig serverConfig = CommuteEbeanServerProvider.createServerConfig(
+                Constants.REPLICA_DATABASE_SERVER_NAME, config.getConfig(REPLICA_CONFIG));
+        serverConfig.setRegister(false);
+        serverConfig.setDefaultServer(false);
+        serverConfig.setDdlGenerate(false);
+        serverConfig.setDataSource(connectionPoolMonitor.createDataSource(
+                Constants.REPLICA_DATABASE_SERVER_NAME, serverConfig.getDataSourceConfig()));
+
+        // Writes go through the primary server, which would never invalidate this server's L2
+        // cache, so it must not have one.
+        serverConfig.setDisableL2Cache(true);
+        return EbeanServerFactory.create(serverConfig);
+    }
+}
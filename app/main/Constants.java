@@ -9,4 +9,5 @@ public class Constants {
     public static final String PROD_API_SERVER_HOST = "https://api.commuteapp.io";
 //    public static final String PROD_API_SERVER_HOST = "http://localhost:9000";
     public static final String DATABASE_SERVER_NAME = "commutealerts";
+    public static final String REPLICA_DATABASE_SERVER_NAME = "commutealerts_replica";
 }
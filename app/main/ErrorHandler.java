@@ -9,6 +9,7 @@ import play.Logger;
 import javax.inject.Inject;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Catches all global exceptions.
@@ -40,6 +41,17 @@ public class ErrorHandler implements HttpErrorHandler {
     }
 
     public CompletionStage<Result> onServerError(Http.RequestHeader request, Throwable exception) {
+        // Shed load when the execution pools are saturated, instead of queueing without bound.
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof RejectedExecutionException) {
+                Logger.warn(String.format("Rejected %s: %s", request.path(), cause.getMessage()));
+                return CompletableFuture.completedFuture(
+                        Results.status(Http.Status.SERVICE_UNAVAILABLE, "Server busy, try again shortly")
+                                .withHeader(Http.HeaderNames.RETRY_AFTER, "1")
+                );
+            }
+        }
+
         String logMessage = "FATAL EXCEPTION was triggered:";
         Logger.error(String.format("%1$s %2$s", logMessage, exception.getMessage()), exception);
 
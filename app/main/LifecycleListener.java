@@ -11,6 +11,12 @@ import io.ebean.EbeanServer;
 import play.inject.ApplicationLifecycle;
 import scala.concurrent.duration.Duration;
 import scala.concurrent.duration.FiniteDuration;
+import services.AgencyCacheWarmer;
+import services.AlertHistoryRecorder;
+import services.ConnectionPoolMonitor;
+import services.DeviceDigestBackfill;
+import services.ExecutionPools;
+import services.ResubscribeBroadcaster;
 
 import javax.inject.Named;
 import java.util.concurrent.CompletableFuture;
@@ -21,24 +27,51 @@ public class LifecycleListener {
 
     @Inject
     public LifecycleListener(ApplicationLifecycle lifecycle, ActorSystem actorSystem,
-                             @Named(AgencyUpdateActor.ACTOR_NAME) ActorRef actor, EbeanServer ebeanServer) {
+                             @Named(AgencyUpdateActor.ACTOR_NAME) ActorRef actor, EbeanServer ebeanServer,
+                             @Named(Constants.REPLICA_DATABASE_SERVER_NAME) EbeanServer readEbeanServer,
+                             AgencyCacheWarmer agencyCacheWarmer, ExecutionPools executionPools,
+                             ResubscribeBroadcaster resubscribeBroadcaster, DeviceDigestBackfill deviceDigestBackfill,
+                             SchemaMigrator schemaMigrator, AlertHistoryRecorder alertHistoryRecorder,
+                             ConnectionPoolMonitor connectionPoolMonitor) {
+
+        // Bring the schema up to date before anything queries it.
+        schemaMigrator.migrate();
 
         FiniteDuration initialDelay = Duration.create(10, TimeUnit.SECONDS);
         FiniteDuration updateInterval = Duration.create(45, TimeUnit.SECONDS);
 
-        // Start the Agency polling.
-        AgencyUpdateMessage message = new AgencyUpdateMessage(AgencyUpdateType.TYPE_ALL);
-        actorSystem.scheduler().schedule(
-                initialDelay, updateInterval,
-                actor,
-                message,
-                actorSystem.dispatchers().defaultGlobalDispatcher(),
-                ActorRef.noSender()
-        );
+        // Warm the agency cache, then start the Agency polling.
+        agencyCacheWarmer.warmUp().thenRun(() -> {
+            AgencyUpdateMessage message = new AgencyUpdateMessage(AgencyUpdateType.TYPE_ALL);
+            actorSystem.scheduler().schedule(
+                    initialDelay, updateInterval,
+                    actor,
+                    message,
+                    actorSystem.dispatchers().defaultGlobalDispatcher(),
+                    ActorRef.noSender()
+            );
+        });
+
+        // Continue the resubscribe broadcasts interrupted by the last shutdown.
+        resubscribeBroadcaster.resumeJobs();
+
+        // Digest any devices saved before the digest columns were added.
+        deviceDigestBackfill.start();
+
+        // Create the upcoming alert history partitions and retire expired ones daily.
+        alertHistoryRecorder.start();
+
+        // Check the connection pools for leaks, and resize them in adaptive mode.
+        connectionPoolMonitor.start();
 
         lifecycle.addStopHook(() -> CompletableFuture.runAsync(() -> {
             actorSystem.eventStream().unsubscribe(actor);
+            executionPools.shutdown();
+            if (readEbeanServer != ebeanServer) {
+                readEbeanServer.shutdown(true, false);
+            }
             ebeanServer.shutdown(true, false);
+            connectionPoolMonitor.shutdown();
         }));
     }
 }
@@ -0,0 +1,337 @@
+package main;
+
+import com.typesafe.config.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import play.Logger;
+
+/**
+ * Applies the versioned SQL migrations in conf/migrations/commutealerts to the commutealerts
+ * database at startup, recording each applied version in public.schema_migrations.
+ * <p>
+ * Migrations are listed, in order, under "migrations.commutealerts" and are named
+ * V&lt;version&gt;__&lt;description&gt;.sql. A migration runs in a single transaction, unless it
+ * builds indexes concurrently, in which case each statement runs on its own. A concurrent build
+ * which failed part way leaves an INVALID index behind, which "if not exists" would then skip, so
+ * an invalid index of the same name is dropped and rebuilt. Applied migrations must never be
+ * edited: their checksums are compared on every start.
+ * <p>
+ * A Postgres advisory lock stops two servers starting at once from applying the same migration.
+ * The lock is polled outside any transaction rather than waited on, as a waiting lock query holds
+ * a snapshot which a concurrent index build on the other server would wait for.
+ */
+@Singleton
+public class SchemaMigrator {
+    private static final String MIGRATIONS_CONFIG = "migrations." + Constants.DATABASE_SERVER_NAME;
+    private static final String MIGRATIONS_PATH = "migrations/" + Constants.DATABASE_SERVER_NAME + "/";
+    private static final Pattern MIGRATION_NAME = Pattern.compile("V(\\d+)__.+\\.sql");
+    private static final Pattern CONCURRENT_INDEX = Pattern.compile(
+            "(?is)create\\s+(?:unique\\s+)?index\\s+concurrently\\s+if\\s+not\\s+exists\\s+(\\w+)\\s+on\\s+(?:only\\s+)?(?:(\\w+)\\.)?\\w+.*");
+    private static final long MIGRATION_LOCK_ID = 7316420581L;
+    private static final long LOCK_RETRY_MS = TimeUnit.SECONDS.toMillis(1);
+    private static final long LOCK_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(30);
+
+    private final Config mConfig;
+
+    @Inject
+    public SchemaMigrator(Config config) {
+        mConfig = config;
+    }
+
+    /**
+     * Apply every listed migration which hasn't been applied yet.
+     *
+     * @return the number of migrations applied.
+     * @throws IllegalStateException if a migration is missing, edited after being applied, or fails.
+     */
+    public int migrate() {
+        List<String> migrationNames = mConfig.hasPath(MIGRATIONS_CONFIG)
+                ? mConfig.getStringList(MIGRATIONS_CONFIG)
+                : Collections.emptyList();
+        if (migrationNames.isEmpty()) {
+            return 0;
+        }
+
+        Config dbConfig = mConfig.getConfig("db." + Constants.DATABASE_SERVER_NAME);
+        try (Connection connection = DriverManager.getConnection(dbConfig.getString("url"),
+                dbConfig.getString("username"), dbConfig.getString("password"))) {
+
+            connection.setAutoCommit(true);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("create table if not exists public.schema_migrations (" +
+                        "version integer primary key, " +
+                        "name text not null, " +
+                        "checksum text not null, " +
+                        "applied_at timestamp without time zone not null default now())");
+            }
+            acquireLock(connection);
+
+            try {
+                Map<Integer, String> appliedChecksums = getAppliedChecksums(connection);
+                int appliedCount = 0;
+
+                for (String migrationName : migrationNames) {
+                    Matcher nameMatcher = MIGRATION_NAME.matcher(migrationName);
+                    if (!nameMatcher.matches()) {
+                        throw new IllegalStateException(String.format("Invalid migration name %s.", migrationName));
+                    }
+
+                    int version = Integer.parseInt(nameMatcher.group(1));
+                    String sql = readMigration(migrationName);
+                    String checksum = checksum(sql);
+
+                    if (appliedChecksums.containsKey(version)) {
+                        if (!appliedChecksums.get(version).equals(checksum)) {
+                            throw new IllegalStateException(String.format(
+                                    "Migration %s was edited after it was applied.", migrationName));
+                        }
+                        continue;
+                    }
+
+                    long startedAt = System.currentTimeMillis();
+                    applyMigration(connection, version, migrationName, sql, checksum);
+                    appliedCount++;
+                    Logger.info(String.format("Applied migration %s in %dms.",
+                            migrationName, System.currentTimeMillis() - startedAt));
+                }
+                return appliedCount;
+
+            } finally {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("select pg_advisory_unlock(" + MIGRATION_LOCK_ID + ")");
+                }
+            }
+
+        } catch (SQLException | IOException e) {
+            throw new IllegalStateException("Error migrating the database schema.", e);
+        }
+    }
+
+    /**
+     * Poll for the migration lock until it is taken, sleeping between attempts. Each attempt is
+     * its own autocommit statement, so no snapshot is held while waiting.
+     *
+     * @throws IllegalStateException if the lock isn't taken before the timeout.
+     */
+    private static void acquireLock(@Nonnull Connection connection) throws SQLException {
+        long timeoutAt = System.currentTimeMillis() + LOCK_TIMEOUT_MS;
+        boolean waiting = false;
+        while (true) {
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery(
+                         "select pg_try_advisory_lock(" + MIGRATION_LOCK_ID + ")")) {
+                if (resultSet.next() && resultSet.getBoolean(1)) {
+                    return;
+                }
+            }
+
+            if (System.currentTimeMillis() >= timeoutAt) {
+                throw new IllegalStateException("Timed out waiting for another server's schema migration.");
+            }
+
+            if (!waiting) {
+                Logger.info("Waiting for another server's schema migration.");
+                waiting = true;
+            }
+            try {
+                Thread.sleep(LOCK_RETRY_MS);
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for the schema migration lock.", e);
+            }
+        }
+    }
+
+    /**
+     * Split a migration into its statements. Statements end with a semicolon at the end of a
+     * line, and lines starting with "--" are comments.
+     *
+     * @param sql migration SQL.
+     * @return the statements, without their semicolons.
+     */
+    @Nonnull
+    static List<String> getStatements(@Nonnull String sql) {
+        List<String> statements = new ArrayList<>();
+        StringBuilder statement = new StringBuilder();
+
+        for (String line : sql.split("\n")) {
+            String trimmedLine = line.trim();
+            if (trimmedLine.isEmpty() || trimmedLine.startsWith("--")) {
+                continue;
+            }
+
+            statement.append(line).append('\n');
+            if (trimmedLine.endsWith(";")) {
+                String completeStatement = statement.toString().trim();
+                statements.add(completeStatement.substring(0, completeStatement.length() - 1));
+                statement.setLength(0);
+            }
+        }
+
+        if (statement.toString().trim().length() > 0) {
+            statements.add(statement.toString().trim());
+        }
+        return statements;
+    }
+
+    private void applyMigration(@Nonnull Connection connection, int version, @Nonnull String name,
+                                @Nonnull String sql, @Nonnull String checksum) throws SQLException {
+        List<String> statements = getStatements(sql);
+
+        // Concurrent index builds can't run inside a transaction.
+        boolean transactional = true;
+        for (String migrationStatement : statements) {
+            if (migrationStatement.toLowerCase(Locale.US).contains(" concurrently ")) {
+                transactional = false;
+            }
+        }
+        connection.setAutoCommit(!transactional);
+
+        try {
+            for (String migrationStatement : statements) {
+                if (transactional) {
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute(migrationStatement);
+                    }
+                } else {
+                    executeConcurrently(connection, migrationStatement);
+                }
+            }
+
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "insert into public.schema_migrations (version, name, checksum) values (?, ?, ?)")) {
+                insert.setInt(1, version);
+                insert.setString(2, name);
+                insert.setString(3, checksum);
+                insert.executeUpdate();
+            }
+
+            if (transactional) {
+                connection.commit();
+            }
+
+        } catch (SQLException e) {
+            if (transactional) {
+                connection.rollback();
+            }
+            throw e;
+
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Execute a statement outside a transaction. If it builds an index concurrently "if not exists"
+     * and an invalid index of that name is left from an earlier failed build, the invalid index
+     * is dropped first so that it is rebuilt.
+     *
+     * @param connection autocommit connection.
+     * @param sql        statement to execute.
+     */
+    static void executeConcurrently(@Nonnull Connection connection, @Nonnull String sql) throws SQLException {
+        Matcher indexMatcher = CONCURRENT_INDEX.matcher(sql.trim());
+        if (indexMatcher.matches()) {
+            String indexName = indexMatcher.group(1);
+            String schemaName = indexMatcher.group(2) != null ? indexMatcher.group(2) : "public";
+
+            if (isInvalidIndex(connection, schemaName, indexName)) {
+                Logger.warn(String.format("Rebuilding invalid index %s.%s.", schemaName, indexName));
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute(String.format("drop index concurrently if exists %s.%s", schemaName, indexName));
+                }
+            }
+        }
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    private static boolean isInvalidIndex(@Nonnull Connection connection, @Nonnull String schemaName,
+                                          @Nonnull String indexName) throws SQLException {
+        try (PreparedStatement query = connection.prepareStatement(
+                "select 1 from pg_index i " +
+                        "join pg_class c on c.oid = i.indexrelid " +
+                        "join pg_namespace n on n.oid = c.relnamespace " +
+                        "where n.nspname = ? and c.relname = ? and not i.indisvalid")) {
+            query.setString(1, schemaName.toLowerCase(Locale.US));
+            query.setString(2, indexName.toLowerCase(Locale.US));
+            try (ResultSet results = query.executeQuery()) {
+                return results.next();
+            }
+        }
+    }
+
+    @Nonnull
+    private static Map<Integer, String> getAppliedChecksums(@Nonnull Connection connection) throws SQLException {
+        Map<Integer, String> checksums = new HashMap<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet results = statement.executeQuery("select version, checksum from public.schema_migrations")) {
+            while (results.next()) {
+                checksums.put(results.getInt(1), results.getString(2));
+            }
+        }
+        return checksums;
+    }
+
+    @Nonnull
+    private static String readMigration(@Nonnull String migrationName) throws IOException {
+        InputStream migrationStream = SchemaMigrator.class.getClassLoader().getResourceAsStream(MIGRATIONS_PATH + migrationName);
+        if (migrationStream == null) {
+            throw new IllegalStateException(String.format("Missing migration %s.", migrationName));
+        }
+
+        try (InputStream inputStream = migrationStream) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+            return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Nonnull
+    private static String checksum(@Nonnull String sql) {
+        try {
+            byte[] digestBytes = MessageDigest.getInstance("SHA-256").digest(sql.getBytes(StandardCharsets.UTF_8));
+            StringBuilder checksum = new StringBuilder();
+            for (byte digestByte : digestBytes) {
+                checksum.append(String.format("%02x", digestByte));
+            }
+            return checksum.toString();
+
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package models;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A flat row of an alert fanout: the push token of one subscribed device and the id of the
+ * API account it was registered with. Loaded without building any device, subscription or
+ * account beans.
+ */
+public class SubscriberToken {
+    private final long mAccountId;
+    private final String mToken;
+
+    public SubscriberToken(long accountId, @Nonnull String token) {
+        mAccountId = accountId;
+        mToken = token;
+    }
+
+    public long getAccountId() {
+        return mAccountId;
+    }
+
+    @Nonnull
+    public String getToken() {
+        return mToken;
+    }
+}
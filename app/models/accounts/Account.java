@@ -3,6 +3,7 @@ package models.accounts;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import io.ebean.Finder;
 import io.ebean.Model;
+import io.ebean.annotation.Cache;
 import models.devices.Device;
 
 import javax.annotation.Nullable;
@@ -11,6 +12,7 @@ import java.util.Date;
 import java.util.List;
 
 @Entity
+@Cache
 @Table(name = "accounts", schema = "api_accounts")
 public class Account extends Model {
     public static Finder<Long, Account> find = new Finder<>(Account.class);
@@ -4,10 +4,12 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import enums.pushservices.PlatformType;
 import io.ebean.Finder;
 import io.ebean.Model;
+import io.ebean.annotation.Cache;
 
 import javax.persistence.*;
 
 @Entity
+@Cache
 @Table(name = "platform_accounts", schema = "api_accounts")
 public class PlatformAccount extends Model {
     public static Finder<String, PlatformAccount> find = new Finder<>(PlatformAccount.class);
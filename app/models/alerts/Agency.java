@@ -3,12 +3,14 @@ package models.alerts;
 import helpers.CompareUtils;
 import io.ebean.Finder;
 import io.ebean.Model;
+import io.ebean.annotation.Cache;
 import org.jetbrains.annotations.NotNull;
 
 import javax.persistence.*;
 import java.util.List;
 
 @Entity
+@Cache
 @Table(name = "agencies", schema = "agency_alerts")
 public class Agency extends Model implements Comparable<Agency> {
     public static Finder<String, Agency> find = new Finder<>(Agency.class);
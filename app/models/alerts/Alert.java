@@ -9,6 +9,9 @@ import io.ebean.annotation.PrivateOwned;
 import org.jetbrains.annotations.NotNull;
 
 import javax.persistence.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Calendar;
 import java.util.List;
 
@@ -135,6 +138,37 @@ public class Alert extends Model implements Comparable<Alert> {
         this.lastUpdated = lastUpdated;
     }
 
+    /**
+     * Get the identity of the alert's published content: its type, messages, uri and priority,
+     * but not its locations or update time. Two alerts with the same identity on the same route
+     * are the same alert.
+     *
+     * @return hex SHA-256 digest of the alert content.
+     */
+    @JsonIgnore
+    public String getIdentity() {
+        String content = String.join("\u0000",
+                String.valueOf(type),
+                String.valueOf(messageTitle),
+                String.valueOf(messageSubtitle),
+                String.valueOf(messageBody),
+                String.valueOf(externalUri),
+                String.valueOf(highPriority != null && highPriority));
+
+        try {
+            byte[] digestBytes = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+            StringBuilder identity = new StringBuilder();
+            for (byte digestByte : digestBytes) {
+                identity.append(String.format("%02x", digestByte));
+            }
+            return identity.toString();
+
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof Alert) {
@@ -0,0 +1,162 @@
+package models.alerts;
+
+import java.util.Calendar;
+import java.util.Date;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import enums.AlertType;
+import io.ebean.Finder;
+import io.ebean.Model;
+
+/**
+ * An append-only record of one alert on a route, from the agency update which first published it
+ * (startedAt) to the update which removed it (endedAt). Alerts which are still published have no
+ * endedAt.
+ * <p>
+ * The table is partitioned by the month of startedAt, so old history is retired by dropping
+ * whole partitions.
+ */
+@Entity
+@Table(name = "alert_history", schema = "agency_alerts")
+public class AlertHistory extends Model {
+    public static Finder<Long, AlertHistory> find = new Finder<>(AlertHistory.class);
+
+    @Id
+    @SequenceGenerator(name = "alert_history_id_seq_gen", sequenceName = "alert_history_id_seq", allocationSize = 1)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "alert_history_id_seq_gen")
+    @Column(name = "id")
+    private Long id;
+
+    @Column(name = "agency_id")
+    private String agencyId;
+
+    @Column(name = "route_id")
+    private String routeId;
+
+    @Column(name = "alert_identity")
+    private String alertIdentity;
+
+    @Column(name = "type")
+    @Enumerated(EnumType.STRING)
+    private AlertType type;
+
+    @Column(name = "message_title", columnDefinition = "text")
+    private String messageTitle;
+
+    @Column(name = "message_subtitle", columnDefinition = "text")
+    private String messageSubtitle;
+
+    @Column(name = "message_body", columnDefinition = "text")
+    private String messageBody;
+
+    @Column(name = "external_uri", columnDefinition = "text")
+    private String externalUri;
+
+    @Column(name = "high_priority", columnDefinition = "boolean default false")
+    private Boolean highPriority;
+
+    @Basic
+    @Column(name = "last_updated", columnDefinition = "timestamp without time zone")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Calendar lastUpdated;
+
+    @Basic
+    @Column(name = "started_at", columnDefinition = "timestamp without time zone")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date startedAt;
+
+    @Basic
+    @Column(name = "ended_at", columnDefinition = "timestamp without time zone")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date endedAt;
+
+    @SuppressWarnings("unused")
+    public AlertHistory() {
+    }
+
+    /**
+     * Start the history of a published alert.
+     *
+     * @param agencyId  id of the route's agency.
+     * @param routeId   id of the alert's route.
+     * @param alert     published alert.
+     * @param startedAt time the alert was first seen.
+     */
+    public AlertHistory(String agencyId, String routeId, Alert alert, Date startedAt) {
+        this.agencyId = agencyId;
+        this.routeId = routeId;
+        this.alertIdentity = alert.getIdentity();
+        this.type = alert.getType();
+        this.messageTitle = alert.getMessageTitle();
+        this.messageSubtitle = alert.getMessageSubtitle();
+        this.messageBody = alert.getMessageBody();
+        this.externalUri = alert.getExternalUri();
+        this.highPriority = alert.getHighPriority();
+        this.lastUpdated = alert.getLastUpdated();
+        this.startedAt = startedAt;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getAgencyId() {
+        return agencyId;
+    }
+
+    public String getRouteId() {
+        return routeId;
+    }
+
+    public String getAlertIdentity() {
+        return alertIdentity;
+    }
+
+    public AlertType getType() {
+        return type;
+    }
+
+    public String getMessageTitle() {
+        return messageTitle;
+    }
+
+    public String getMessageSubtitle() {
+        return messageSubtitle;
+    }
+
+    public String getMessageBody() {
+        return messageBody;
+    }
+
+    public String getExternalUri() {
+        return externalUri;
+    }
+
+    public Boolean getHighPriority() {
+        return highPriority;
+    }
+
+    public Calendar getLastUpdated() {
+        return lastUpdated;
+    }
+
+    public Date getStartedAt() {
+        return startedAt;
+    }
+
+    public Date getEndedAt() {
+        return endedAt;
+    }
+}
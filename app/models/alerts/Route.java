@@ -22,10 +22,12 @@ import enums.TransitType;
 import helpers.CompareUtils;
 import io.ebean.Finder;
 import io.ebean.Model;
+import io.ebean.annotation.Cache;
 import io.ebean.annotation.PrivateOwned;
 import models.devices.Subscription;
 
 @Entity
+@Cache(enableQueryCache = true)
 @Table(name = "routes", schema = "agency_alerts")
 public class Route extends Model implements Comparable<Route> {
     public static Finder<String, Route> find = new Finder<>(Route.class);
@@ -2,6 +2,9 @@ package models.devices;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 import java.util.List;
 
@@ -18,6 +21,7 @@ import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.OneToMany;
 import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
@@ -45,6 +49,15 @@ public class Device extends Model {
     @Column(name = "token", columnDefinition = "TEXT")
     private String token;
 
+    // Fixed width digests of the deviceId and token, which are indexed for lookups.
+    @JsonIgnore
+    @Column(name = "device_id_digest")
+    private Long deviceIdDigest;
+
+    @JsonIgnore
+    @Column(name = "token_digest")
+    private Long tokenDigest;
+
     @Column(name = "app_key")
     private String appKey;
 
@@ -92,6 +105,14 @@ public class Device extends Model {
         this.token = token;
     }
 
+    public Long getDeviceIdDigest() {
+        return deviceIdDigest;
+    }
+
+    public Long getTokenDigest() {
+        return tokenDigest;
+    }
+
     public String getAppKey() {
         return appKey;
     }
@@ -178,8 +199,49 @@ public class Device extends Model {
         return hashCode.hashCode();
     }
 
+    /**
+     * Digest a deviceId or token to the fixed width value stored in its digest column. Digests
+     * can collide, so lookups by digest must also compare the full value.
+     *
+     * @param value deviceId or token.
+     * @return the first 64 bits of the value's SHA-256 digest, or null for a null value.
+     */
+    @Nullable
+    public static Long digest(@Nullable String value) {
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            byte[] digestBytes = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            long digest = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                digest = (digest << 8) | (digestBytes[i] & 0xFF);
+            }
+            return digest;
+
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Set the digest columns from the current deviceId and token.
+     */
+    public void updateDigests() {
+        deviceIdDigest = digest(deviceId);
+        tokenDigest = digest(token);
+    }
+
     @PrePersist
     public void prePersist() {
         timeRegistered = new Date();
+        updateDigests();
+    }
+
+    @PreUpdate
+    public void preUpdate() {
+        updateDigests();
     }
 }
@@ -0,0 +1,150 @@
+package models.devices;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.util.Date;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import io.ebean.Finder;
+import io.ebean.Model;
+
+/**
+ * A background broadcast asking every device of an account to resend its subscriptions. The
+ * devices are sent in waves, in device id order, and the id of the last device sent is saved
+ * after every wave so the job can resume after a restart. Each wave is claimed by the server
+ * which last updated the job (see time_updated), so only one server runs a job.
+ */
+@Entity
+@Table(name = "resubscribe_jobs", schema = "device_information")
+public class ResubscribeJob extends Model {
+    public static Finder<Long, ResubscribeJob> find = new Finder<>(ResubscribeJob.class);
+
+    public enum Status {
+        RUNNING,
+        COMPLETED,
+        FAILED
+    }
+
+    @Id
+    @SequenceGenerator(name = "resubscribe_job_id_seq_gen", sequenceName = "resubscribe_job_id_seq", allocationSize = 1)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "resubscribe_job_id_seq_gen")
+    @Column(name = "id")
+    private Long id;
+
+    // The job endpoint is not authenticated, so the account's key is never serialised.
+    @JsonIgnore
+    @Column(name = "api_key")
+    private String apiKey;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "status")
+    private Status status;
+
+    @Column(name = "last_device_id")
+    private Long lastDeviceId;
+
+    @Column(name = "sent_count")
+    private long sentCount;
+
+    @Column(name = "device_count")
+    private long deviceCount;
+
+    @Basic
+    @Column(name = "time_started", columnDefinition = "timestamp without time zone")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date timeStarted;
+
+    @Basic
+    @Column(name = "time_updated", columnDefinition = "timestamp without time zone")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date timeUpdated;
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    public void setApiKey(String apiKey) {
+        this.apiKey = apiKey;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public Long getLastDeviceId() {
+        return lastDeviceId;
+    }
+
+    public void setLastDeviceId(Long lastDeviceId) {
+        this.lastDeviceId = lastDeviceId;
+    }
+
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    public void setSentCount(long sentCount) {
+        this.sentCount = sentCount;
+    }
+
+    public long getDeviceCount() {
+        return deviceCount;
+    }
+
+    public void setDeviceCount(long deviceCount) {
+        this.deviceCount = deviceCount;
+    }
+
+    public Date getTimeStarted() {
+        return timeStarted;
+    }
+
+    public void setTimeStarted(Date timeStarted) {
+        this.timeStarted = timeStarted;
+    }
+
+    public Date getTimeUpdated() {
+        return timeUpdated;
+    }
+
+    public void setTimeUpdated(Date timeUpdated) {
+        this.timeUpdated = timeUpdated;
+    }
+
+    @PrePersist
+    public void prePersist() {
+        timeStarted = new Date();
+        timeUpdated = timeStarted;
+    }
+
+    @PreUpdate
+    public void preUpdate() {
+        timeUpdated = new Date();
+    }
+}
@@ -0,0 +1,252 @@
+package models.snapshots;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import akka.util.ByteString;
+import enums.AlertType;
+import enums.TransitType;
+import models.alerts.Agency;
+import models.alerts.Route;
+
+/**
+ * An immutable, detached copy of an {@link Agency} and all of its routes, alerts and locations.
+ * <p>
+ * Snapshots are built once when an agency is published to the cache and are never modified
+ * afterwards, so they can be read from any thread without locking or copying. A snapshot may
+ * also carry its pre-encoded response bodies.
+ */
+public final class AgencySnapshot {
+    private final String id;
+    private final String name;
+    private final String phone;
+    private final String externalUri;
+    private final Float utcOffset;
+    private final List<RouteSnapshot> routes;
+    private final Map<String, RouteSnapshot> routesById;
+    private final Map<AlertType, List<RouteSnapshot>> routesByAlertType;
+    private final Map<TransitType, List<RouteSnapshot>> routesByTransitType;
+    private final List<RouteSnapshot> highPriorityRoutes;
+    private final long publishedAt;
+    private final ByteString json;
+    private final ByteString cbor;
+    private final Map<String, EncodedRoute> encodedRoutes;
+
+    private AgencySnapshot(@Nonnull Agency agency) {
+        List<RouteSnapshot> routeSnapshots = new ArrayList<>();
+        Map<String, RouteSnapshot> routeSnapshotIds = new HashMap<>();
+        Map<AlertType, List<RouteSnapshot>> alertTypeRoutes = new EnumMap<>(AlertType.class);
+        Map<TransitType, List<RouteSnapshot>> transitTypeRoutes = new EnumMap<>(TransitType.class);
+        List<RouteSnapshot> priorityRoutes = new ArrayList<>();
+        if (agency.getRoutes() != null) {
+            for (Route route : agency.getRoutes()) {
+                RouteSnapshot routeSnapshot = RouteSnapshot.from(route);
+                routeSnapshots.add(routeSnapshot);
+                routeSnapshotIds.put(routeSnapshot.getRouteId(), routeSnapshot);
+
+                // Index the route for filtered queries.
+                for (AlertType alertType : routeSnapshot.getAlertTypes()) {
+                    alertTypeRoutes.computeIfAbsent(alertType, type -> new ArrayList<>()).add(routeSnapshot);
+                }
+                if (routeSnapshot.getTransitType() != null) {
+                    transitTypeRoutes.computeIfAbsent(routeSnapshot.getTransitType(), type -> new ArrayList<>())
+                            .add(routeSnapshot);
+                }
+                if (routeSnapshot.hasHighPriorityAlert()) {
+                    priorityRoutes.add(routeSnapshot);
+                }
+            }
+        }
+
+        id = agency.getId();
+        name = agency.getName();
+        phone = agency.getPhone();
+        externalUri = agency.getExternalUri();
+        utcOffset = agency.getUtcOffset();
+        routes = Collections.unmodifiableList(routeSnapshots);
+        routesById = Collections.unmodifiableMap(routeSnapshotIds);
+        routesByAlertType = Collections.unmodifiableMap(alertTypeRoutes);
+        routesByTransitType = Collections.unmodifiableMap(transitTypeRoutes);
+        highPriorityRoutes = Collections.unmodifiableList(priorityRoutes);
+        publishedAt = System.currentTimeMillis();
+        json = null;
+        cbor = null;
+        encodedRoutes = Collections.emptyMap();
+    }
+
+    private AgencySnapshot(@Nonnull AgencySnapshot snapshot, @Nullable ByteString json, @Nullable ByteString cbor,
+                           @Nonnull Map<String, EncodedRoute> encodedRoutes) {
+        id = snapshot.id;
+        name = snapshot.name;
+        phone = snapshot.phone;
+        externalUri = snapshot.externalUri;
+        utcOffset = snapshot.utcOffset;
+        routes = snapshot.routes;
+        routesById = snapshot.routesById;
+        routesByAlertType = snapshot.routesByAlertType;
+        routesByTransitType = snapshot.routesByTransitType;
+        highPriorityRoutes = snapshot.highPriorityRoutes;
+        publishedAt = snapshot.publishedAt;
+        this.json = json;
+        this.cbor = cbor;
+        this.encodedRoutes = Collections.unmodifiableMap(new HashMap<>(encodedRoutes));
+    }
+
+    /**
+     * Take a deep snapshot of an agency's current state.
+     *
+     * @param agency agency to copy.
+     * @return immutable agency snapshot.
+     */
+    @Nonnull
+    public static AgencySnapshot from(@Nonnull Agency agency) {
+        return new AgencySnapshot(agency);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPhone() {
+        return phone;
+    }
+
+    public String getExternalUri() {
+        return externalUri;
+    }
+
+    public Float getUtcOffset() {
+        return utcOffset;
+    }
+
+    @Nonnull
+    public List<RouteSnapshot> getRoutes() {
+        return routes;
+    }
+
+    /**
+     * Create a copy of this snapshot which carries pre-encoded response bodies.
+     *
+     * @param json JSON encoding of the agency.
+     * @param cbor CBOR encoding of the agency.
+     * @param encodedRoutes JSON encodings of the agency's routes, keyed by routeId.
+     * @return snapshot with encodings.
+     */
+    @Nonnull
+    public AgencySnapshot withEncodings(@Nullable ByteString json, @Nullable ByteString cbor,
+                                        @Nonnull Map<String, EncodedRoute> encodedRoutes) {
+        return new AgencySnapshot(this, json, cbor, encodedRoutes);
+    }
+
+    /**
+     * Get a route of the agency by its (exact) routeId.
+     *
+     * @param routeId routeId of the route.
+     * @return the route snapshot, or null if the agency has no such route.
+     */
+    @Nullable
+    public RouteSnapshot getRoute(String routeId) {
+        return routeId != null ? routesById.get(routeId) : null;
+    }
+
+    /**
+     * Find the routes matching all of the given filters, using the snapshot's indexes.
+     *
+     * @param alertType    if set, only routes with an alert of this type.
+     * @param transitType  if set, only routes of this transit type.
+     * @param highPriority if set, only routes which have (or, if false, do not have) a high
+     *                     priority alert.
+     * @return matching routes, in agency order.
+     */
+    @Nonnull
+    public List<RouteSnapshot> findRoutes(@Nullable AlertType alertType, @Nullable TransitType transitType,
+                                          @Nullable Boolean highPriority) {
+        // Start from the smallest indexed candidate list, then check the remaining filters.
+        List<RouteSnapshot> candidates = routes;
+        if (alertType != null) {
+            candidates = smallest(candidates, routesByAlertType.get(alertType));
+        }
+        if (transitType != null) {
+            candidates = smallest(candidates, routesByTransitType.get(transitType));
+        }
+        if (Boolean.TRUE.equals(highPriority)) {
+            candidates = smallest(candidates, highPriorityRoutes);
+        }
+
+        List<RouteSnapshot> matchedRoutes = new ArrayList<>();
+        for (RouteSnapshot route : candidates) {
+            if ((alertType == null || route.getAlertTypes().contains(alertType)) &&
+                    (transitType == null || transitType == route.getTransitType()) &&
+                    (highPriority == null || highPriority == route.hasHighPriorityAlert())) {
+                matchedRoutes.add(route);
+            }
+        }
+        return matchedRoutes;
+    }
+
+    @Nonnull
+    private static List<RouteSnapshot> smallest(@Nonnull List<RouteSnapshot> routes,
+                                                @Nullable List<RouteSnapshot> indexedRoutes) {
+        if (indexedRoutes == null) {
+            return Collections.emptyList();
+        }
+        return indexedRoutes.size() < routes.size() ? indexedRoutes : routes;
+    }
+
+    /**
+     * Get the time the snapshot was taken.
+     *
+     * @return epoch time in milliseconds.
+     */
+    @JsonIgnore
+    public long getPublishedAt() {
+        return publishedAt;
+    }
+
+    /**
+     * Get the pre-encoded JSON body of the agency.
+     *
+     * @return JSON bytes, or null if the agency was not pre-encoded.
+     */
+    @Nullable
+    @JsonIgnore
+    public ByteString getJson() {
+        return json;
+    }
+
+    /**
+     * Get the pre-encoded CBOR body of the agency.
+     *
+     * @return CBOR bytes, or null if the agency was not pre-encoded.
+     */
+    @Nullable
+    @JsonIgnore
+    public ByteString getCbor() {
+        return cbor;
+    }
+
+    /**
+     * Get the pre-encoded JSON body of one of the agency's routes.
+     *
+     * @param routeId routeId of the route.
+     * @return encoded route, or null if the route does not exist or was not pre-encoded.
+     */
+    @Nullable
+    @JsonIgnore
+    public EncodedRoute getEncodedRoute(String routeId) {
+        return routeId != null ? encodedRoutes.get(routeId) : null;
+    }
+}
@@ -0,0 +1,87 @@
+package models.snapshots;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import enums.AlertType;
+import models.alerts.Alert;
+import models.alerts.Location;
+
+/**
+ * An immutable, detached copy of a route {@link Alert} and its locations.
+ */
+public final class AlertSnapshot {
+    private final Integer id;
+    private final List<LocationSnapshot> locations;
+    private final AlertType type;
+    private final String messageTitle;
+    private final String messageSubtitle;
+    private final String messageBody;
+    private final String externalUri;
+    private final Boolean highPriority;
+    private final Long lastUpdated;
+
+    private AlertSnapshot(@Nonnull Alert alert) {
+        List<LocationSnapshot> locationSnapshots = new ArrayList<>();
+        if (alert.getLocations() != null) {
+            for (Location location : alert.getLocations()) {
+                locationSnapshots.add(LocationSnapshot.from(location));
+            }
+        }
+
+        id = alert.getId();
+        locations = Collections.unmodifiableList(locationSnapshots);
+        type = alert.getType();
+        messageTitle = alert.getMessageTitle();
+        messageSubtitle = alert.getMessageSubtitle();
+        messageBody = alert.getMessageBody();
+        externalUri = alert.getExternalUri();
+        highPriority = alert.getHighPriority();
+        lastUpdated = alert.getLastUpdated() != null ? alert.getLastUpdated().getTimeInMillis() : null;
+    }
+
+    @Nonnull
+    static AlertSnapshot from(@Nonnull Alert alert) {
+        return new AlertSnapshot(alert);
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    @Nonnull
+    public List<LocationSnapshot> getLocations() {
+        return locations;
+    }
+
+    public AlertType getType() {
+        return type;
+    }
+
+    public String getMessageTitle() {
+        return messageTitle;
+    }
+
+    public String getMessageSubtitle() {
+        return messageSubtitle;
+    }
+
+    public String getMessageBody() {
+        return messageBody;
+    }
+
+    public String getExternalUri() {
+        return externalUri;
+    }
+
+    public Boolean getHighPriority() {
+        return highPriority;
+    }
+
+    public Long getLastUpdated() {
+        return lastUpdated;
+    }
+}
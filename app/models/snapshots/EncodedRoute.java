@@ -0,0 +1,82 @@
+package models.snapshots;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.annotation.Nonnull;
+
+import akka.util.ByteString;
+import play.libs.Json;
+
+/**
+ * The JSON encoding of a single {@link RouteSnapshot}, with a digest of its bytes, so routes can
+ * be assembled into larger responses (and tagged) without serializing them again.
+ */
+public final class EncodedRoute {
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+    private final ByteString json;
+    private final String digest;
+
+    private EncodedRoute(@Nonnull ByteString json, @Nonnull String digest) {
+        this.json = json;
+        this.digest = digest;
+    }
+
+    /**
+     * Encode a route to JSON and digest the result.
+     *
+     * @param route route to encode.
+     * @return encoded route.
+     * @throws IOException if the route could not be encoded.
+     */
+    @Nonnull
+    public static EncodedRoute from(@Nonnull RouteSnapshot route) throws IOException {
+        byte[] jsonBytes = Json.mapper().writeValueAsBytes(route);
+        return new EncodedRoute(ByteString.fromArray(jsonBytes), digest(jsonBytes));
+    }
+
+    /**
+     * Combine the digests of several encoded routes, in order, into a single digest.
+     *
+     * @param digests route digests.
+     * @return combined hex digest.
+     */
+    @Nonnull
+    public static String combine(@Nonnull Iterable<String> digests) {
+        StringBuilder digestBuilder = new StringBuilder();
+        for (String digest : digests) {
+            digestBuilder.append(digest).append(',');
+        }
+        return digest(digestBuilder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Nonnull
+    private static String digest(@Nonnull byte[] bytes) {
+        try {
+            byte[] digestBytes = MessageDigest.getInstance("MD5").digest(bytes);
+            char[] hexChars = new char[digestBytes.length * 2];
+            for (int i = 0; i < digestBytes.length; i++) {
+                hexChars[i * 2] = HEX_CHARS[(digestBytes[i] >> 4) & 0xF];
+                hexChars[i * 2 + 1] = HEX_CHARS[digestBytes[i] & 0xF];
+            }
+            return new String(hexChars);
+
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to support MD5.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Nonnull
+    public ByteString getJson() {
+        return json;
+    }
+
+    @Nonnull
+    public String getDigest() {
+        return digest;
+    }
+}
@@ -0,0 +1,61 @@
+package models.snapshots;
+
+import javax.annotation.Nonnull;
+
+import models.alerts.Location;
+
+/**
+ * An immutable, detached copy of an alert {@link Location}, safe to share between threads.
+ */
+public final class LocationSnapshot {
+    private final Integer id;
+    private final String name;
+    private final String latitude;
+    private final String longitude;
+    private final String message;
+    private final Integer sequence;
+    private final Long date;
+
+    private LocationSnapshot(@Nonnull Location location) {
+        id = location.getId();
+        name = location.getName();
+        latitude = location.getLatitude();
+        longitude = location.getLongitude();
+        message = location.getMessage();
+        sequence = location.getSequence();
+        date = location.getDate() != null ? location.getDate().getTimeInMillis() : null;
+    }
+
+    @Nonnull
+    static LocationSnapshot from(@Nonnull Location location) {
+        return new LocationSnapshot(location);
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getLatitude() {
+        return latitude;
+    }
+
+    public String getLongitude() {
+        return longitude;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public Integer getSequence() {
+        return sequence;
+    }
+
+    public Long getDate() {
+        return date;
+    }
+}
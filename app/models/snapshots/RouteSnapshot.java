@@ -0,0 +1,116 @@
+package models.snapshots;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import enums.AlertType;
+import enums.TransitType;
+import models.alerts.Alert;
+import models.alerts.Route;
+
+/**
+ * An immutable, detached copy of an agency {@link Route} and its alerts. The route does not keep
+ * a reference back to its agency.
+ */
+public final class RouteSnapshot {
+    private final String routeId;
+    private final List<AlertSnapshot> alerts;
+    private final String routeName;
+    private final TransitType transitType;
+    private final Boolean isDefault;
+    private final Boolean isSticky;
+    private final String externalUri;
+    private final Set<AlertType> alertTypes;
+    private final boolean hasHighPriorityAlert;
+
+    private RouteSnapshot(@Nonnull Route route) {
+        List<AlertSnapshot> alertSnapshots = new ArrayList<>();
+        Set<AlertType> routeAlertTypes = EnumSet.noneOf(AlertType.class);
+        boolean routeHighPriority = false;
+        if (route.getAlerts() != null) {
+            for (Alert alert : route.getAlerts()) {
+                AlertSnapshot alertSnapshot = AlertSnapshot.from(alert);
+                alertSnapshots.add(alertSnapshot);
+
+                if (alertSnapshot.getType() != null) {
+                    routeAlertTypes.add(alertSnapshot.getType());
+                }
+                if (Boolean.TRUE.equals(alertSnapshot.getHighPriority())) {
+                    routeHighPriority = true;
+                }
+            }
+        }
+
+        routeId = route.getRouteId();
+        alerts = Collections.unmodifiableList(alertSnapshots);
+        routeName = route.getRouteName();
+        transitType = route.getTransitType();
+        isDefault = route.getDefault();
+        isSticky = route.getSticky();
+        externalUri = route.getExternalUri();
+        alertTypes = Collections.unmodifiableSet(routeAlertTypes);
+        hasHighPriorityAlert = routeHighPriority;
+    }
+
+    @Nonnull
+    static RouteSnapshot from(@Nonnull Route route) {
+        return new RouteSnapshot(route);
+    }
+
+    public String getRouteId() {
+        return routeId;
+    }
+
+    @Nonnull
+    public List<AlertSnapshot> getAlerts() {
+        return alerts;
+    }
+
+    public String getRouteName() {
+        return routeName;
+    }
+
+    public TransitType getTransitType() {
+        return transitType;
+    }
+
+    public Boolean getDefault() {
+        return isDefault;
+    }
+
+    public Boolean getSticky() {
+        return isSticky;
+    }
+
+    public String getExternalUri() {
+        return externalUri;
+    }
+
+    /**
+     * Get the distinct types of the route's alerts.
+     *
+     * @return alert types, in enum order.
+     */
+    @Nonnull
+    @JsonIgnore
+    public Set<AlertType> getAlertTypes() {
+        return alertTypes;
+    }
+
+    /**
+     * Check if any of the route's alerts are high priority.
+     *
+     * @return true if the route has a high priority alert.
+     */
+    @JsonIgnore
+    public boolean hasHighPriorityAlert() {
+        return hasHighPriorityAlert;
+    }
+}
@@ -0,0 +1,448 @@
+package serializers;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import enums.AlertType;
+import enums.TransitType;
+import models.alerts.Agency;
+import models.alerts.Alert;
+import models.alerts.Location;
+import models.alerts.Route;
+import models.snapshots.AgencySnapshot;
+import models.snapshots.AlertSnapshot;
+import models.snapshots.LocationSnapshot;
+import models.snapshots.RouteSnapshot;
+
+/**
+ * Compact binary (CBOR) encoding of the Agency > Route > Alert > Location model, for clients
+ * that send "Accept: application/cbor".
+ * <p>
+ * Fields use single character keys and enums are written as their index in a fixed dictionary.
+ * New enum values must only ever be appended to the dictionaries, so older clients keep decoding.
+ */
+public class AgencyCborCodec {
+    public static final String CONTENT_TYPE = "application/cbor";
+    private static final int FORMAT_VERSION = 1;
+
+    private static final CBORFactory CBOR_FACTORY = new CBORFactory();
+
+    // Append-only enum dictionaries.
+    private static final AlertType[] ALERT_TYPES = {
+            AlertType.TYPE_NONE,
+            AlertType.TYPE_MAINTENANCE,
+            AlertType.TYPE_DISRUPTION,
+            AlertType.TYPE_INFORMATION,
+            AlertType.TYPE_DETOUR,
+            AlertType.TYPE_WEATHER,
+            AlertType.TYPE_IN_APP
+    };
+
+    private static final TransitType[] TRANSIT_TYPES = {
+            TransitType.TYPE_SPECIAL,
+            TransitType.TYPE_BUS,
+            TransitType.TYPE_RAIL,
+            TransitType.TYPE_LIGHT_RAIL,
+            TransitType.TYPE_SUBWAY,
+            TransitType.TYPE_CABLE,
+            TransitType.TYPE_FERRY,
+            TransitType.TYPE_BIKE_SHARE
+    };
+
+    private static final Map<AlertType, Integer> ALERT_TYPE_CODES = new EnumMap<>(AlertType.class);
+    private static final Map<TransitType, Integer> TRANSIT_TYPE_CODES = new EnumMap<>(TransitType.class);
+
+    static {
+        for (int i = 0; i < ALERT_TYPES.length; i++) {
+            ALERT_TYPE_CODES.put(ALERT_TYPES[i], i);
+        }
+        for (int i = 0; i < TRANSIT_TYPES.length; i++) {
+            TRANSIT_TYPE_CODES.put(TRANSIT_TYPES[i], i);
+        }
+    }
+
+    // Agency keys.
+    private static final String KEY_VERSION = "v";
+    private static final String KEY_ID = "i";
+    private static final String KEY_NAME = "n";
+    private static final String KEY_PHONE = "p";
+    private static final String KEY_URI = "u";
+    private static final String KEY_UTC_OFFSET = "o";
+    private static final String KEY_ROUTES = "r";
+
+    // Route keys.
+    private static final String KEY_TRANSIT_TYPE = "t";
+    private static final String KEY_DEFAULT = "d";
+    private static final String KEY_STICKY = "s";
+    private static final String KEY_ALERTS = "a";
+
+    // Alert keys.
+    private static final String KEY_ALERT_TYPE = "t";
+    private static final String KEY_TITLE = "h";
+    private static final String KEY_SUBTITLE = "s";
+    private static final String KEY_BODY = "b";
+    private static final String KEY_HIGH_PRIORITY = "p";
+    private static final String KEY_LAST_UPDATED = "m";
+    private static final String KEY_LOCATIONS = "l";
+
+    // Location keys.
+    private static final String KEY_LATITUDE = "y";
+    private static final String KEY_LONGITUDE = "x";
+    private static final String KEY_MESSAGE = "m";
+    private static final String KEY_SEQUENCE = "q";
+    private static final String KEY_DATE = "d";
+
+    /**
+     * Encode an agency and all of its routes.
+     *
+     * @param agency agency to encode.
+     * @return CBOR bytes.
+     */
+    @Nonnull
+    public static byte[] encode(@Nonnull AgencySnapshot agency) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (CBORGenerator generator = CBOR_FACTORY.createGenerator(outputStream)) {
+            writeAgency(generator, agency, true);
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Encode a list of agencies without their routes.
+     *
+     * @param agencies agencies to encode.
+     * @return CBOR bytes.
+     */
+    @Nonnull
+    public static byte[] encodeMetadata(@Nonnull List<AgencySnapshot> agencies) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (CBORGenerator generator = CBOR_FACTORY.createGenerator(outputStream)) {
+            generator.writeStartArray();
+            for (AgencySnapshot agency : agencies) {
+                writeAgency(generator, agency, false);
+            }
+            generator.writeEndArray();
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Encode a single route and its alerts.
+     *
+     * @param route route to encode.
+     * @return CBOR bytes.
+     */
+    @Nonnull
+    public static byte[] encode(@Nonnull RouteSnapshot route) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (CBORGenerator generator = CBOR_FACTORY.createGenerator(outputStream)) {
+            writeRoute(generator, route);
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Decode an encoded agency back into the agency model.
+     *
+     * @param bytes CBOR bytes of an agency.
+     * @return the decoded agency.
+     */
+    @Nonnull
+    public static Agency decode(@Nonnull byte[] bytes) throws IOException {
+        try (JsonParser parser = CBOR_FACTORY.createParser(bytes)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Encoded agency is not an object.");
+            }
+            return readAgency(parser);
+        }
+    }
+
+    private static void writeAgency(@Nonnull CBORGenerator generator, @Nonnull AgencySnapshot agency,
+                                    boolean withRoutes) throws IOException {
+        generator.writeStartObject();
+        generator.writeNumberField(KEY_VERSION, FORMAT_VERSION);
+        writeString(generator, KEY_ID, agency.getId());
+        writeString(generator, KEY_NAME, agency.getName());
+        writeString(generator, KEY_PHONE, agency.getPhone());
+        writeString(generator, KEY_URI, agency.getExternalUri());
+        if (agency.getUtcOffset() != null) {
+            generator.writeNumberField(KEY_UTC_OFFSET, agency.getUtcOffset());
+        }
+
+        if (withRoutes) {
+            generator.writeArrayFieldStart(KEY_ROUTES);
+            for (RouteSnapshot route : agency.getRoutes()) {
+                writeRoute(generator, route);
+            }
+            generator.writeEndArray();
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeRoute(@Nonnull CBORGenerator generator, @Nonnull RouteSnapshot route) throws IOException {
+        generator.writeStartObject();
+        writeString(generator, KEY_ID, route.getRouteId());
+        writeString(generator, KEY_NAME, route.getRouteName());
+        if (route.getTransitType() != null) {
+            generator.writeNumberField(KEY_TRANSIT_TYPE, TRANSIT_TYPE_CODES.get(route.getTransitType()));
+        }
+        writeBoolean(generator, KEY_DEFAULT, route.getDefault());
+        writeBoolean(generator, KEY_STICKY, route.getSticky());
+        writeString(generator, KEY_URI, route.getExternalUri());
+
+        generator.writeArrayFieldStart(KEY_ALERTS);
+        for (AlertSnapshot alert : route.getAlerts()) {
+            writeAlert(generator, alert);
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+
+    private static void writeAlert(@Nonnull CBORGenerator generator, @Nonnull AlertSnapshot alert) throws IOException {
+        generator.writeStartObject();
+        if (alert.getId() != null) {
+            generator.writeNumberField(KEY_ID, alert.getId());
+        }
+        if (alert.getType() != null) {
+            generator.writeNumberField(KEY_ALERT_TYPE, ALERT_TYPE_CODES.get(alert.getType()));
+        }
+        writeString(generator, KEY_TITLE, alert.getMessageTitle());
+        writeString(generator, KEY_SUBTITLE, alert.getMessageSubtitle());
+        writeString(generator, KEY_BODY, alert.getMessageBody());
+        writeString(generator, KEY_URI, alert.getExternalUri());
+        writeBoolean(generator, KEY_HIGH_PRIORITY, alert.getHighPriority());
+        if (alert.getLastUpdated() != null) {
+            generator.writeNumberField(KEY_LAST_UPDATED, alert.getLastUpdated());
+        }
+
+        if (!alert.getLocations().isEmpty()) {
+            generator.writeArrayFieldStart(KEY_LOCATIONS);
+            for (LocationSnapshot location : alert.getLocations()) {
+                writeLocation(generator, location);
+            }
+            generator.writeEndArray();
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeLocation(@Nonnull CBORGenerator generator, @Nonnull LocationSnapshot location) throws IOException {
+        generator.writeStartObject();
+        if (location.getId() != null) {
+            generator.writeNumberField(KEY_ID, location.getId());
+        }
+        writeString(generator, KEY_NAME, location.getName());
+        writeString(generator, KEY_LATITUDE, location.getLatitude());
+        writeString(generator, KEY_LONGITUDE, location.getLongitude());
+        writeString(generator, KEY_MESSAGE, location.getMessage());
+        if (location.getSequence() != null) {
+            generator.writeNumberField(KEY_SEQUENCE, location.getSequence());
+        }
+        if (location.getDate() != null) {
+            generator.writeNumberField(KEY_DATE, location.getDate());
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeString(@Nonnull CBORGenerator generator, @Nonnull String key, @Nullable String value) throws IOException {
+        if (value != null) {
+            generator.writeStringField(key, value);
+        }
+    }
+
+    private static void writeBoolean(@Nonnull CBORGenerator generator, @Nonnull String key, @Nullable Boolean value) throws IOException {
+        if (value != null) {
+            generator.writeBooleanField(key, value);
+        }
+    }
+
+    @Nonnull
+    private static Agency readAgency(@Nonnull JsonParser parser) throws IOException {
+        Agency agency = new Agency(null);
+        List<Route> routes = new ArrayList<>();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            parser.nextToken();
+
+            switch (key) {
+                case KEY_ID:
+                    agency.setId(parser.getText());
+                    break;
+                case KEY_NAME:
+                    agency.setName(parser.getText());
+                    break;
+                case KEY_PHONE:
+                    agency.setPhone(parser.getText());
+                    break;
+                case KEY_URI:
+                    agency.setExternalUri(parser.getText());
+                    break;
+                case KEY_UTC_OFFSET:
+                    agency.setUtcOffset(parser.getFloatValue());
+                    break;
+                case KEY_ROUTES:
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        routes.add(readRoute(parser));
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+
+        agency.setRoutes(routes);
+        return agency;
+    }
+
+    @Nonnull
+    private static Route readRoute(@Nonnull JsonParser parser) throws IOException {
+        Route route = new Route();
+        List<Alert> alerts = new ArrayList<>();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            parser.nextToken();
+
+            switch (key) {
+                case KEY_ID:
+                    route.setRouteId(parser.getText());
+                    break;
+                case KEY_NAME:
+                    route.setRouteName(parser.getText());
+                    break;
+                case KEY_TRANSIT_TYPE:
+                    route.setTransitType(TRANSIT_TYPES[parser.getIntValue()]);
+                    break;
+                case KEY_DEFAULT:
+                    route.setDefault(parser.getBooleanValue());
+                    break;
+                case KEY_STICKY:
+                    route.setSticky(parser.getBooleanValue());
+                    break;
+                case KEY_URI:
+                    route.setExternalUri(parser.getText());
+                    break;
+                case KEY_ALERTS:
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        alerts.add(readAlert(parser));
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+
+        route.setAlerts(alerts);
+        return route;
+    }
+
+    @Nonnull
+    private static Alert readAlert(@Nonnull JsonParser parser) throws IOException {
+        Alert alert = new Alert();
+        List<Location> locations = new ArrayList<>();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            parser.nextToken();
+
+            switch (key) {
+                case KEY_ID:
+                    alert.setId(parser.getIntValue());
+                    break;
+                case KEY_ALERT_TYPE:
+                    alert.setType(ALERT_TYPES[parser.getIntValue()]);
+                    break;
+                case KEY_TITLE:
+                    alert.setMessageTitle(parser.getText());
+                    break;
+                case KEY_SUBTITLE:
+                    alert.setMessageSubtitle(parser.getText());
+                    break;
+                case KEY_BODY:
+                    alert.setMessageBody(parser.getText());
+                    break;
+                case KEY_URI:
+                    alert.setExternalUri(parser.getText());
+                    break;
+                case KEY_HIGH_PRIORITY:
+                    alert.setHighPriority(parser.getBooleanValue());
+                    break;
+                case KEY_LAST_UPDATED:
+                    alert.setLastUpdated(toCalendar(parser.getLongValue()));
+                    break;
+                case KEY_LOCATIONS:
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        locations.add(readLocation(parser));
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+
+        alert.setLocations(locations);
+        return alert;
+    }
+
+    @Nonnull
+    private static Location readLocation(@Nonnull JsonParser parser) throws IOException {
+        Location location = new Location();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            parser.nextToken();
+
+            switch (key) {
+                case KEY_ID:
+                    location.setId(parser.getIntValue());
+                    break;
+                case KEY_NAME:
+                    location.setName(parser.getText());
+                    break;
+                case KEY_LATITUDE:
+                    location.setLatitude(parser.getText());
+                    break;
+                case KEY_LONGITUDE:
+                    location.setLongitude(parser.getText());
+                    break;
+                case KEY_MESSAGE:
+                    location.setMessage(parser.getText());
+                    break;
+                case KEY_SEQUENCE:
+                    location.setSequence(parser.getIntValue());
+                    break;
+                case KEY_DATE:
+                    location.setDate(toCalendar(parser.getLongValue()));
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+
+        return location;
+    }
+
+    @Nonnull
+    private static Calendar toCalendar(long timeInMillis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timeInMillis);
+        return calendar;
+    }
+}
@@ -0,0 +1,125 @@
+package serializers;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nonnull;
+
+import akka.Done;
+import akka.NotUsed;
+import akka.japi.Pair;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.StreamConverters;
+import akka.util.ByteString;
+import models.snapshots.AgencySnapshot;
+import models.snapshots.RouteSnapshot;
+import play.Logger;
+import play.libs.Json;
+
+/**
+ * Streams the JSON of an agency and its routes, alerts and locations to a chunked response
+ * through a Jackson {@link JsonGenerator}, without building a JsonNode tree or holding the whole
+ * body in memory. Used when agencies are not pre-encoded.
+ * <p>
+ * The output is identical to {@link Json#toJson(Object)} of the same agency.
+ */
+public class AgencyJsonWriter {
+    private static final String KEY_ID = "id";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_PHONE = "phone";
+    private static final String KEY_URI = "externalUri";
+    private static final String KEY_UTC_OFFSET = "utcOffset";
+    private static final String KEY_ROUTES = "routes";
+
+    /**
+     * Start writing the agency to a response body source. Writes block (on a stream pool thread)
+     * while the client is behind, so only a route's worth of JSON is buffered.
+     * <p>
+     * The writer is submitted before the source is returned, so a full executor fails the request
+     * instead of sending an empty body. If a write fails, the source fails rather than completing,
+     * so a truncated document is never sent as a complete response.
+     *
+     * @param agency       agency to write.
+     * @param executor     executor for the blocking writer.
+     * @param materializer materializer for the body stream.
+     * @return chunked JSON body.
+     * @throws RejectedExecutionException if the executor can't take the writer.
+     */
+    @Nonnull
+    public static Source<ByteString, NotUsed> stream(@Nonnull AgencySnapshot agency, @Nonnull Executor executor,
+                                                     @Nonnull Materializer materializer) {
+        Pair<OutputStream, Source<ByteString, NotUsed>> body =
+                StreamConverters.asOutputStream().preMaterialize(materializer);
+        OutputStream outputStream = body.first();
+
+        CompletableFuture<Done> written = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try (OutputStream responseStream = outputStream) {
+                    write(agency, responseStream);
+
+                } catch (IOException e) {
+                    Logger.error(String.format("Error streaming agency %s.", agency.getId()), e);
+                    written.completeExceptionally(e);
+                    return;
+                }
+                written.complete(Done.getInstance());
+            });
+
+        } catch (RejectedExecutionException e) {
+            Logger.warn(String.format("Not streaming agency %s: %s", agency.getId(), e.getMessage()));
+            try {
+                outputStream.close();
+            } catch (IOException closeException) {
+                e.addSuppressed(closeException);
+            }
+            throw e;
+        }
+
+        // Closing the output stream completes the body, so it only ends once the writer has
+        // finished, failing if the writer did.
+        return body.second().concat(Source.fromCompletionStage(written)
+                .flatMapConcat(done -> Source.<ByteString>empty()));
+    }
+
+    /**
+     * Write an agency and all of its routes as JSON.
+     *
+     * @param agency       agency to write.
+     * @param outputStream stream to write to. It is flushed after every route, but not closed.
+     */
+    public static void write(@Nonnull AgencySnapshot agency, @Nonnull OutputStream outputStream) throws IOException {
+        JsonGenerator generator = Json.mapper().getFactory().createGenerator(outputStream, JsonEncoding.UTF8);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+        generator.writeStartObject();
+        generator.writeStringField(KEY_ID, agency.getId());
+        generator.writeStringField(KEY_NAME, agency.getName());
+        generator.writeStringField(KEY_PHONE, agency.getPhone());
+        generator.writeStringField(KEY_URI, agency.getExternalUri());
+        generator.writeFieldName(KEY_UTC_OFFSET);
+        if (agency.getUtcOffset() != null) {
+            generator.writeNumber(agency.getUtcOffset());
+        } else {
+            generator.writeNull();
+        }
+
+        // Routes are written by their bean serializers, straight into the generator.
+        generator.writeArrayFieldStart(KEY_ROUTES);
+        for (RouteSnapshot route : agency.getRoutes()) {
+            generator.writeObject(route);
+            generator.flush();
+        }
+        generator.writeEndArray();
+
+        generator.writeEndObject();
+        generator.close();
+    }
+}
@@ -0,0 +1,92 @@
+package serializers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import akka.util.ByteString;
+import akka.util.ByteStringBuilder;
+import models.snapshots.AgencySnapshot;
+import models.snapshots.EncodedRoute;
+import models.snapshots.RouteSnapshot;
+
+/**
+ * Assembles the alerts of several routes into a single JSON array response from their
+ * pre-encoded JSON fragments, without serializing the routes again.
+ */
+public class RouteBatchEncoder {
+    private static final ByteString ARRAY_START = ByteString.fromString("[");
+    private static final ByteString ARRAY_SEPARATOR = ByteString.fromString(",");
+    private static final ByteString ARRAY_END = ByteString.fromString("]");
+
+    /**
+     * Encode a batch of an agency's routes. Routes the agency does not have are left out.
+     *
+     * @param agency   agency snapshot which owns the routes.
+     * @param routeIds routeIds to include, in response order.
+     * @return encoded batch of routes.
+     * @throws IOException if a route which was not pre-encoded could not be encoded.
+     */
+    @Nonnull
+    public static RouteBatch encode(@Nonnull AgencySnapshot agency, @Nonnull Collection<String> routeIds)
+            throws IOException {
+        List<String> routeDigests = new ArrayList<>();
+        ByteStringBuilder bodyBuilder = new ByteStringBuilder();
+        bodyBuilder.append(ARRAY_START);
+
+        for (String routeId : routeIds) {
+            EncodedRoute encodedRoute = agency.getEncodedRoute(routeId);
+            if (encodedRoute == null) {
+                RouteSnapshot route = agency.getRoute(routeId);
+                if (route == null) {
+                    continue;
+                }
+                encodedRoute = EncodedRoute.from(route);
+            }
+
+            if (!routeDigests.isEmpty()) {
+                bodyBuilder.append(ARRAY_SEPARATOR);
+            }
+            bodyBuilder.append(encodedRoute.getJson());
+            routeDigests.add(encodedRoute.getDigest());
+        }
+
+        bodyBuilder.append(ARRAY_END);
+        return new RouteBatch(bodyBuilder.result(), "\"" + EncodedRoute.combine(routeDigests) + "\"", routeDigests.size());
+    }
+
+    /**
+     * A JSON array of routes and the entity tag of its contents.
+     */
+    public static class RouteBatch {
+        private final ByteString body;
+        private final String eTag;
+        private final int routeCount;
+
+        private RouteBatch(@Nonnull ByteString body, @Nonnull String eTag, int routeCount) {
+            this.body = body;
+            this.eTag = eTag;
+            this.routeCount = routeCount;
+        }
+
+        @Nonnull
+        public ByteString getBody() {
+            return body;
+        }
+
+        /**
+         * Get the (quoted, strong) entity tag, which changes if any route in the batch changes.
+         */
+        @Nonnull
+        public String getETag() {
+            return eTag;
+        }
+
+        public int getRouteCount() {
+            return routeCount;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import dao.AgencyDao;
+import play.Logger;
+
+/**
+ * Loads every saved agency into the agency cache on startup, so the first requests after a
+ * deploy are served from memory instead of all falling through to the database.
+ * <p>
+ * The application reports itself as ready once the warm-up has finished.
+ */
+@Singleton
+public class AgencyCacheWarmer {
+    private final AtomicBoolean mStarted = new AtomicBoolean(false);
+    private final CompletableFuture<Void> mWarmUp = new CompletableFuture<>();
+
+    private AgencyDao mAgencyDao;
+    private AgencyManager mAgencyManager;
+    private ExecutionPools mExecutionPools;
+
+    @Inject
+    public AgencyCacheWarmer(AgencyDao agencyDao, AgencyManager agencyManager, ExecutionPools executionPools) {
+        mAgencyDao = agencyDao;
+        mAgencyManager = agencyManager;
+        mExecutionPools = executionPools;
+    }
+
+    /**
+     * Load all agencies from the database in parallel and publish them to the cache. Only the
+     * first call starts a warm-up. Failures are logged and still complete the warm-up, as
+     * requests can then fall back to loading agencies on demand.
+     *
+     * @return A stage completing once all agencies are cached.
+     */
+    @Nonnull
+    public CompletionStage<Void> warmUp() {
+        if (mStarted.compareAndSet(false, true)) {
+            final long warmUpStartedAt = System.currentTimeMillis();
+            Logger.info("Warming agency cache.");
+
+            CompletableFuture.supplyAsync(mAgencyDao::getAgencyIds, mExecutionPools.getDatabaseExecutor())
+                    .thenCompose(agencyIds -> {
+                        List<CompletableFuture<Void>> agencyLoads = new ArrayList<>();
+                        for (String agencyId : agencyIds) {
+                            agencyLoads.add(CompletableFuture
+                                    .supplyAsync(() -> mAgencyDao.getAgency(agencyId, true), mExecutionPools.getDatabaseExecutor())
+                                    .thenAccept(mAgencyManager::cacheAgency));
+                        }
+                        return CompletableFuture.allOf(agencyLoads.toArray(new CompletableFuture[0]));
+                    })
+                    .whenComplete((result, throwable) -> {
+                        if (throwable != null) {
+                            Logger.error("Error warming agency cache.", throwable);
+                        } else {
+                            Logger.info(String.format("Warmed %d agencies in %dms.",
+                                    mAgencyManager.getCachedAgencyMetadata().size(),
+                                    System.currentTimeMillis() - warmUpStartedAt));
+                        }
+                        mWarmUp.complete(null);
+                    });
+        }
+        return mWarmUp;
+    }
+
+    /**
+     * Check if the agency cache warm-up has finished.
+     *
+     * @return true if the application is ready to serve traffic.
+     */
+    public boolean isReady() {
+        return mWarmUp.isDone();
+    }
+}
@@ -1,19 +1,29 @@
 package services;
 
-import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
+import javax.inject.Singleton;
 
 import dao.AgencyDao;
+import models.AlertModifications;
 import models.alerts.Agency;
-import models.alerts.Route;
+import models.snapshots.AgencySnapshot;
+import models.snapshots.EncodedRoute;
+import models.snapshots.RouteSnapshot;
 import play.Logger;
-import play.cache.CacheApi;
-import play.cache.NamedCache;
+import play.libs.Json;
 
 /**
  * Receives agency bundles and performs the following actions.
@@ -24,17 +34,28 @@ import play.cache.NamedCache;
  * 5: Get list of subscriptions for route
  * 6: send data in batches of 1000 to google.
  */
+@Singleton
 public class AgencyManager {
-    private static final String CACHE_ALL_KEY = "cache_agency_all";
-    private static final String CACHE_AGENCY_KEY = "cache_agency_%s";
+    // Cached agencies older than two update polls are served stale while being refreshed.
+    private static final long CACHE_AGENCY_FRESH_MS = TimeUnit.SECONDS.toMillis(90);
 
-    private CacheApi mCacheApi;
+    // In-flight datastore loads, shared by all concurrent cache misses for the same agency.
+    private final Map<String, CompletableFuture<AgencySnapshot>> mAgencyLoads = new ConcurrentHashMap<>();
+
+    private AgencySnapshotStore mSnapshotStore;
+    private ResponseCache mResponseCache;
+    private ExecutionPools mExecutionPools;
     private AgencyDao mAgencyDao;
+    private AlertHistoryRecorder mAlertHistoryRecorder;
 
     @Inject
-    public AgencyManager(AgencyDao agencyDao, @NamedCache("agency_cache") CacheApi cacheApi) {
+    public AgencyManager(AgencyDao agencyDao, AgencySnapshotStore snapshotStore, ResponseCache responseCache,
+                         ExecutionPools executionPools, AlertHistoryRecorder alertHistoryRecorder) {
         mAgencyDao = agencyDao;
-        mCacheApi = cacheApi;
+        mAlertHistoryRecorder = alertHistoryRecorder;
+        mSnapshotStore = snapshotStore;
+        mResponseCache = responseCache;
+        mExecutionPools = executionPools;
     }
 
     /**
@@ -49,64 +70,91 @@ public class AgencyManager {
             agencySaved = mAgencyDao.saveAgency(agency);
             cacheAgency(agency);
 
+            if (agencySaved) {
+                mAlertHistoryRecorder.record(agency);
+            }
+
+        }
+        return agencySaved;
+    }
+
+    /**
+     * Persist the modifications of an agency update to the datastore, and cache the agency.
+     *
+     * @param savedAgency   saved agency the modifications were built from.
+     * @param agency        updated agency to persist.
+     * @param modifications updated and stale alerts of the agency.
+     * @return boolean of success.
+     */
+    public boolean saveAgencyModifications(@Nonnull Agency savedAgency, @Nonnull Agency agency,
+                                           @Nonnull AlertModifications modifications) {
+        boolean agencySaved = mAgencyDao.saveAgencyModifications(savedAgency, agency, modifications);
+        cacheAgency(agency);
+
+        if (agencySaved) {
+            mAlertHistoryRecorder.record(agency);
         }
         return agencySaved;
     }
 
     /**
-     * Retrieve an {@link Agency} from either the cache or backing datastore.
+     * Retrieve an {@link Agency} from the backing datastore. The returned agency is a mutable
+     * model and should be used for comparisons and updates only.
      *
      * @param agencyId agencyId for Agency to fetch.
      * @return A saved agency if it exists, or null if not.
      */
     @Nullable
-    public Agency getSavedAgency(String agencyId, boolean useCache) {
-        Agency agency = getCachedAgency(agencyId);
-        if (agency == null || !useCache) {
-            return mAgencyDao.getAgency(agencyId);
-        }
-        return agency;
+    public Agency getSavedAgency(String agencyId) {
+        return mAgencyDao.getAgency(agencyId);
     }
 
     /**
-     * Retrieve an list of {@link Agency} stubs (without any sub objects) from
-     * the agency cache.
+     * Retrieve an {@link AgencySnapshot} from the cache, falling back to the backing datastore on
+     * a miss.
+     * <p>
+     * All concurrent misses for the same agency share one datastore load. Cached agencies which
+     * are stale are still returned immediately, while a single refresh runs in the background.
      *
-     * @return A list of {@link Agency} with all sub-models. Null if never cached or stale.
+     * @param agencyId agencyId for Agency to fetch.
+     * @return A stage completing with the agency, or null if it does not exist.
      */
     @Nonnull
-    public List<Agency> getCachedAgencyMetadata() {
-        List<Agency> agencies = mCacheApi.get(CACHE_ALL_KEY);
-        if (agencies == null || agencies.isEmpty()) {
-
+    public CompletionStage<AgencySnapshot> getAgency(String agencyId) {
+        AgencySnapshot cachedAgency = getCachedAgency(agencyId);
+        if (cachedAgency != null) {
+            if (System.currentTimeMillis() - cachedAgency.getPublishedAt() > CACHE_AGENCY_FRESH_MS) {
+                Logger.info(String.format("Serving stale agency %s while refreshing.", agencyId));
+                loadAgency(agencyId);
+            }
+            return CompletableFuture.completedFuture(cachedAgency);
         }
 
-        return agencies != null ? agencies : new ArrayList<>();
+        return loadAgency(agencyId);
+    }
+
+    /**
+     * Retrieve the list of all cached {@link Agency} snapshots.
+     *
+     * @return A list of {@link AgencySnapshot} with all sub-models. Empty if never cached.
+     */
+    @Nonnull
+    public List<AgencySnapshot> getCachedAgencyMetadata() {
+        return mSnapshotStore.getAll();
     }
 
     /**
-     * Cache an an agency for a period of time. Also cache thes stub - or metadata - (that is the
-     * {@link Agency} *without* corresponding decedent (eg {@link Route}) objects, in a
-     * "master" Agencies cache for other queries.
+     * Cache an agency by publishing an immutable snapshot of it. The snapshot also replaces the
+     * agency within the list of all cached agencies, and cached responses for any of the
+     * agency's routes which changed are invalidated.
      *
      * @param agency agency to set as the cache.
      */
     public void cacheAgency(@Nullable Agency agency) {
         if (agency != null && agency.getId() != null) {
-
-            // Add or overwrite agency to its own cache.
-            String agencyCacheKey = String.format(Locale.US, CACHE_AGENCY_KEY, agency.getId());
-            mCacheApi.set(agencyCacheKey, agency);
-            Logger.info(String.format("Cached agency %s to %s.", agency.getName(), agencyCacheKey));
-
-            // Remove agency from the all agencies cache.
-            List<Agency> cachedAgencies = getCachedAgencyMetadata();
-            cachedAgencies.removeIf(cachedAgency -> agency.getId().equals(cachedAgency.getId()));
-
-            // Add agency back to the all agencies cache.
-            cachedAgencies.add(agency);
-            mCacheApi.set(CACHE_ALL_KEY, cachedAgencies);
-            Logger.info(String.format("Cached agency %s to %s.", agency.getName(), CACHE_ALL_KEY));
+            AgencySnapshot previousAgency = mSnapshotStore.get(agency.getId());
+            invalidateResponses(previousAgency, mSnapshotStore.publish(agency));
+            Logger.info(String.format("Cached agency %s snapshot.", agency.getName()));
         }
     }
 
@@ -114,18 +162,136 @@ public class AgencyManager {
      * Retrieve an agency from the agency cache.
      *
      * @param agencyId the Id of the {@link Agency} to retrieve.
-     * @return An {@link Agency} with all sub-models. Null if never cached or stale.
+     * @return An {@link AgencySnapshot} with all sub-models. Null if never cached.
      */
     @Nullable
-    public Agency getCachedAgency(String agencyId) {
-        String agencyCacheKey = String.format(Locale.US, CACHE_AGENCY_KEY, agencyId);
-        Agency agency = mCacheApi.get(agencyCacheKey);
+    public AgencySnapshot getCachedAgency(String agencyId) {
+        AgencySnapshot agency = mSnapshotStore.get(agencyId);
 
         if (agency != null) {
-            Logger.info(String.format("Cache hit for agency %s :)", agencyCacheKey));
+            Logger.info(String.format("Cache hit for agency %s :)", agencyId));
         } else {
-            Logger.warn(String.format("Cache miss for agency %s :(", agencyCacheKey));
+            Logger.warn(String.format("Cache miss for agency %s :(", agencyId));
         }
         return agency;
     }
+
+    /**
+     * Load an agency from the datastore into the cache. If a load for the agency is already in
+     * flight, the existing load is returned instead of starting another query.
+     *
+     * @param agencyId the Id of the {@link Agency} to load.
+     * @return the shared load for the agency.
+     */
+    @Nonnull
+    private CompletableFuture<AgencySnapshot> loadAgency(String agencyId) {
+        CompletableFuture<AgencySnapshot> agencyLoad = new CompletableFuture<>();
+        CompletableFuture<AgencySnapshot> inFlightLoad = mAgencyLoads.putIfAbsent(agencyId, agencyLoad);
+        if (inFlightLoad != null) {
+            return inFlightLoad;
+        }
+
+        final long loadStartedAt = System.currentTimeMillis();
+        try {
+            CompletableFuture.runAsync(() -> runAgencyLoad(agencyId, agencyLoad, loadStartedAt),
+                    mExecutionPools.getDatabaseExecutor());
+
+        } catch (RejectedExecutionException e) {
+            mAgencyLoads.remove(agencyId, agencyLoad);
+            agencyLoad.completeExceptionally(e);
+        }
+
+        return agencyLoad;
+    }
+
+    /**
+     * Load an agency from the datastore and publish it, completing the shared load.
+     */
+    private void runAgencyLoad(String agencyId, CompletableFuture<AgencySnapshot> agencyLoad, long loadStartedAt) {
+        try {
+            // Agencies which aren't cached can't have been updated recently (updates are cached
+            // as they are saved), so they can be read from the replica.
+            boolean allowStale = mSnapshotStore.get(agencyId) == null;
+
+            // Don't replace an agency cached by an update that finished while loading.
+            Agency agency = mAgencyDao.getAgency(agencyId, allowStale);
+            AgencySnapshot previousAgency = mSnapshotStore.get(agencyId);
+            AgencySnapshot loadedAgency = agency != null
+                    ? mSnapshotStore.publishIfOlder(agency, loadStartedAt)
+                    : null;
+
+            if (loadedAgency != null && loadedAgency != previousAgency) {
+                invalidateResponses(previousAgency, loadedAgency);
+            }
+            agencyLoad.complete(loadedAgency);
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error loading agency %s into the cache.", agencyId), e);
+            agencyLoad.completeExceptionally(e);
+
+        } finally {
+            mAgencyLoads.remove(agencyId, agencyLoad);
+        }
+    }
+
+    /**
+     * Invalidate the cached responses built from the parts of an agency which changed between
+     * two of its snapshots.
+     *
+     * @param previousAgency the agency snapshot which was replaced, if any.
+     * @param currentAgency  the newly published agency snapshot.
+     */
+    private void invalidateResponses(@Nullable AgencySnapshot previousAgency, @Nonnull AgencySnapshot currentAgency) {
+        String agencyId = currentAgency.getId();
+        Set<String> surrogateKeys = new HashSet<>();
+
+        if (previousAgency == null ||
+                !Objects.equals(previousAgency.getName(), currentAgency.getName()) ||
+                !Objects.equals(previousAgency.getPhone(), currentAgency.getPhone()) ||
+                !Objects.equals(previousAgency.getExternalUri(), currentAgency.getExternalUri()) ||
+                !Objects.equals(previousAgency.getUtcOffset(), currentAgency.getUtcOffset())) {
+            surrogateKeys.add(ResponseCache.AGENCIES_KEY);
+        }
+
+        // Routes which were added or changed.
+        for (RouteSnapshot route : currentAgency.getRoutes()) {
+            if (previousAgency == null || !isSameRoute(previousAgency, currentAgency, route.getRouteId())) {
+                surrogateKeys.add(ResponseCache.routeKey(agencyId, route.getRouteId()));
+            }
+        }
+
+        // Routes which were removed.
+        if (previousAgency != null) {
+            for (RouteSnapshot route : previousAgency.getRoutes()) {
+                if (currentAgency.getRoute(route.getRouteId()) == null) {
+                    surrogateKeys.add(ResponseCache.routeKey(agencyId, route.getRouteId()));
+                }
+            }
+        }
+
+        if (!surrogateKeys.isEmpty()) {
+            surrogateKeys.add(ResponseCache.agencyKey(agencyId));
+            mResponseCache.invalidate(surrogateKeys);
+        }
+    }
+
+    /**
+     * Check if a route is identical in two snapshots of the same agency, comparing the route
+     * digests if both snapshots were pre-encoded.
+     */
+    private static boolean isSameRoute(@Nonnull AgencySnapshot previousAgency, @Nonnull AgencySnapshot currentAgency,
+                                       String routeId) {
+        RouteSnapshot previousRoute = previousAgency.getRoute(routeId);
+        RouteSnapshot currentRoute = currentAgency.getRoute(routeId);
+        if (previousRoute == null || currentRoute == null) {
+            return previousRoute == currentRoute;
+        }
+
+        EncodedRoute previousEncodedRoute = previousAgency.getEncodedRoute(routeId);
+        EncodedRoute currentEncodedRoute = currentAgency.getEncodedRoute(routeId);
+        if (previousEncodedRoute != null && currentEncodedRoute != null) {
+            return previousEncodedRoute.getDigest().equals(currentEncodedRoute.getDigest());
+        }
+        return Json.toJson(previousRoute).equals(Json.toJson(currentRoute));
+    }
 }
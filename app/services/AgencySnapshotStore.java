@@ -0,0 +1,171 @@
+package services;
+
+import com.typesafe.config.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import akka.util.ByteString;
+import models.alerts.Agency;
+import models.snapshots.AgencySnapshot;
+import models.snapshots.EncodedRoute;
+import models.snapshots.RouteSnapshot;
+import play.Logger;
+import play.libs.Json;
+import serializers.AgencyCborCodec;
+
+/**
+ * Lock-free store of the current {@link AgencySnapshot} for each agency.
+ * <p>
+ * All agencies are held in a single immutable state which is replaced with an atomic swap, so
+ * the per-agency and "all agencies" views always change together. Readers never lock or copy,
+ * and writers never block readers.
+ * <p>
+ * Unless disabled with "agencies.cache.preEncode", each snapshot (and each of its routes) is also
+ * encoded to its JSON and CBOR response bodies once, when it is published.
+ */
+@Singleton
+public class AgencySnapshotStore {
+    private static final String PRE_ENCODE_CONFIG = "agencies.cache.preEncode";
+
+    private final AtomicReference<Snapshots> mSnapshots = new AtomicReference<>(new Snapshots());
+    private final boolean mPreEncode;
+
+    @Inject
+    public AgencySnapshotStore(Config config) {
+        mPreEncode = !config.hasPath(PRE_ENCODE_CONFIG) || config.getBoolean(PRE_ENCODE_CONFIG);
+    }
+
+    /**
+     * Publish a snapshot of an agency, replacing any previous snapshot of the same agency.
+     *
+     * @param agency agency to publish.
+     * @return the published snapshot.
+     */
+    @Nonnull
+    public AgencySnapshot publish(@Nonnull Agency agency) {
+        AgencySnapshot agencySnapshot = encode(AgencySnapshot.from(agency));
+
+        Snapshots currentSnapshots;
+        do {
+            currentSnapshots = mSnapshots.get();
+        } while (!mSnapshots.compareAndSet(currentSnapshots, currentSnapshots.with(agencySnapshot)));
+
+        return agencySnapshot;
+    }
+
+    /**
+     * Publish a snapshot of an agency only if the agency has not been published since the given
+     * time. Used by loads which may race with a newer agency update.
+     *
+     * @param agency   agency to publish.
+     * @param notSince epoch time in milliseconds that the agency was read.
+     * @return the current snapshot of the agency after the publish attempt.
+     */
+    @Nonnull
+    public AgencySnapshot publishIfOlder(@Nonnull Agency agency, long notSince) {
+        AgencySnapshot agencySnapshot = encode(AgencySnapshot.from(agency));
+
+        Snapshots currentSnapshots;
+        do {
+            currentSnapshots = mSnapshots.get();
+            AgencySnapshot currentSnapshot = currentSnapshots.agencies.get(agency.getId());
+            if (currentSnapshot != null && currentSnapshot.getPublishedAt() >= notSince) {
+                return currentSnapshot;
+            }
+        } while (!mSnapshots.compareAndSet(currentSnapshots, currentSnapshots.with(agencySnapshot)));
+
+        return agencySnapshot;
+    }
+
+    /**
+     * Get the current snapshot of an agency.
+     *
+     * @param agencyId id of the agency.
+     * @return the agency snapshot, or null if it was never published.
+     */
+    @Nullable
+    public AgencySnapshot get(String agencyId) {
+        return agencyId != null ? mSnapshots.get().agencies.get(agencyId) : null;
+    }
+
+    /**
+     * Get the current snapshots of all published agencies.
+     *
+     * @return unmodifiable list of agency snapshots.
+     */
+    @Nonnull
+    public List<AgencySnapshot> getAll() {
+        return mSnapshots.get().allAgencies;
+    }
+
+    /**
+     * Check if snapshots are published with pre-encoded response bodies.
+     *
+     * @return true if pre-encoding is enabled.
+     */
+    public boolean isPreEncoding() {
+        return mPreEncode;
+    }
+
+    /**
+     * Attach the pre-encoded JSON and CBOR bodies to a snapshot, if enabled.
+     */
+    @Nonnull
+    private AgencySnapshot encode(@Nonnull AgencySnapshot agencySnapshot) {
+        if (!mPreEncode) {
+            return agencySnapshot;
+        }
+
+        try {
+            Map<String, EncodedRoute> encodedRoutes = new HashMap<>();
+            for (RouteSnapshot route : agencySnapshot.getRoutes()) {
+                encodedRoutes.put(route.getRouteId(), EncodedRoute.from(route));
+            }
+
+            return agencySnapshot.withEncodings(
+                    ByteString.fromArray(Json.mapper().writeValueAsBytes(agencySnapshot)),
+                    ByteString.fromArray(AgencyCborCodec.encode(agencySnapshot)),
+                    encodedRoutes);
+
+        } catch (IOException e) {
+            Logger.error(String.format("Error pre-encoding agency %s.", agencySnapshot.getId()), e);
+        }
+        return agencySnapshot;
+    }
+
+    /**
+     * Immutable state of every published agency. A new instance is derived for every publish.
+     */
+    private static class Snapshots {
+        private final Map<String, AgencySnapshot> agencies;
+        private final List<AgencySnapshot> allAgencies;
+
+        private Snapshots() {
+            this(new LinkedHashMap<>());
+        }
+
+        private Snapshots(@Nonnull LinkedHashMap<String, AgencySnapshot> agencies) {
+            this.agencies = Collections.unmodifiableMap(agencies);
+            this.allAgencies = Collections.unmodifiableList(new ArrayList<>(agencies.values()));
+        }
+
+        @Nonnull
+        private Snapshots with(@Nonnull AgencySnapshot agencySnapshot) {
+            LinkedHashMap<String, AgencySnapshot> updatedAgencies = new LinkedHashMap<>(agencies);
+            updatedAgencies.put(agencySnapshot.getId(), agencySnapshot);
+            return new Snapshots(updatedAgencies);
+        }
+    }
+}
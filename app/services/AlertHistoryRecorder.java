@@ -0,0 +1,167 @@
+package services;
+
+import com.typesafe.config.Config;
+
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import akka.actor.ActorSystem;
+import dao.AlertHistoryDao;
+import models.alerts.Agency;
+import models.alerts.Alert;
+import models.alerts.AlertHistory;
+import models.alerts.Route;
+import play.Logger;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+/**
+ * Records every alert an agency publishes into the append-only alert history, which is
+ * partitioned by the month alerts were first published.
+ * <p>
+ * Each saved agency is compared (by route and alert identity) against the active history: new
+ * alerts are appended and alerts which disappeared are ended, so unchanged alerts write nothing.
+ * Partitions are created ahead of time, and partitions older than
+ * "alerts.history.retentionMonths" are retired by dropping them.
+ */
+@Singleton
+public class AlertHistoryRecorder {
+    private static final String RETENTION_CONFIG = "alerts.history.retentionMonths";
+    private static final int DEFAULT_RETENTION_MONTHS = 24;
+    private static final FiniteDuration MAINTENANCE_INTERVAL = Duration.create(1, TimeUnit.DAYS);
+
+    private final Set<YearMonth> mPartitions = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean mStarted = new AtomicBoolean(false);
+    private final int mRetentionMonths;
+
+    private final AlertHistoryDao mAlertHistoryDao;
+    private final ActorSystem mActorSystem;
+    private final ExecutionPools mExecutionPools;
+
+    @Inject
+    public AlertHistoryRecorder(Config config, AlertHistoryDao alertHistoryDao, ActorSystem actorSystem,
+                                ExecutionPools executionPools) {
+        mRetentionMonths = config.hasPath(RETENTION_CONFIG)
+                ? config.getInt(RETENTION_CONFIG)
+                : DEFAULT_RETENTION_MONTHS;
+        mAlertHistoryDao = alertHistoryDao;
+        mActorSystem = actorSystem;
+        mExecutionPools = executionPools;
+    }
+
+    /**
+     * Start the daily partition maintenance, unless it has already been started.
+     */
+    public void start() {
+        if (mStarted.compareAndSet(false, true)) {
+            mActorSystem.scheduler().schedule(Duration.Zero(), MAINTENANCE_INTERVAL, () -> {
+                try {
+                    CompletableFuture.runAsync(this::maintainPartitions, mExecutionPools.getDatabaseExecutor());
+
+                } catch (RejectedExecutionException e) {
+                    Logger.warn("Skipped alert history maintenance as the database pool is saturated.");
+                }
+            }, mActorSystem.dispatcher());
+        }
+    }
+
+    /**
+     * Record the alert changes of a saved agency.
+     *
+     * @param agency saved agency.
+     * @return true if the history is up to date with the agency.
+     */
+    public synchronized boolean record(@Nonnull Agency agency) {
+        if (agency.getId() == null || !ensurePartition(YearMonth.now())) {
+            return false;
+        }
+
+        Map<String, Long> activeIds = new HashMap<>();
+        for (AlertHistory activeAlert : mAlertHistoryDao.getActiveAlerts(agency.getId())) {
+            activeIds.put(getAlertKey(activeAlert.getRouteId(), activeAlert.getAlertIdentity()), activeAlert.getId());
+        }
+
+        Date now = new Date();
+        List<AlertHistory> startedAlerts = new ArrayList<>();
+        if (agency.getRoutes() != null) {
+            for (Route route : agency.getRoutes()) {
+                if (route.getAlerts() == null) {
+                    continue;
+                }
+
+                for (Alert alert : route.getAlerts()) {
+                    String alertKey = getAlertKey(route.getRouteId(), alert.getIdentity());
+                    if (activeIds.remove(alertKey) == null) {
+                        // Duplicate alerts on a route are recorded once.
+                        activeIds.put(alertKey, null);
+                        startedAlerts.add(new AlertHistory(agency.getId(), route.getRouteId(), alert, now));
+                    }
+                }
+            }
+        }
+
+        List<Long> endedIds = new ArrayList<>();
+        for (Long activeId : activeIds.values()) {
+            if (activeId != null) {
+                endedIds.add(activeId);
+            }
+        }
+
+        if (startedAlerts.isEmpty() && endedIds.isEmpty()) {
+            return true;
+        }
+
+        Logger.info(String.format("Recording %d started and %d ended alerts for %s.",
+                startedAlerts.size(), endedIds.size(), agency.getId()));
+        return mAlertHistoryDao.saveAlertChanges(startedAlerts, endedIds, now);
+    }
+
+    /**
+     * Create the current and next month's partitions, and drop partitions past the retention
+     * period.
+     */
+    public void maintainPartitions() {
+        YearMonth currentMonth = YearMonth.now();
+        ensurePartition(currentMonth);
+        ensurePartition(currentMonth.plusMonths(1));
+
+        YearMonth oldestMonth = currentMonth.minusMonths(mRetentionMonths);
+        for (YearMonth month : mAlertHistoryDao.getPartitionMonths()) {
+            if (month.isBefore(oldestMonth) && mAlertHistoryDao.dropPartition(month)) {
+                mPartitions.remove(month);
+                Logger.info(String.format("Retired alert history for %s.", month));
+            }
+        }
+    }
+
+    private boolean ensurePartition(@Nonnull YearMonth month) {
+        if (mPartitions.contains(month)) {
+            return true;
+        }
+
+        if (mAlertHistoryDao.createPartition(month)) {
+            mPartitions.add(month);
+            return true;
+        }
+        return false;
+    }
+
+    @Nonnull
+    private static String getAlertKey(String routeId, String alertIdentity) {
+        return routeId + "|" + alertIdentity;
+    }
+}
@@ -0,0 +1,271 @@
+package services;
+
+import com.typesafe.config.Config;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.sql.DataSource;
+
+import akka.actor.ActorSystem;
+import io.ebean.Ebean;
+import io.ebean.EbeanServer;
+import io.ebean.datasource.DataSourceConfig;
+import io.ebean.datasource.DataSourcePool;
+import io.ebean.datasource.PoolStatus;
+import main.Constants;
+import play.Logger;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+/**
+ * Watches the database connection pools, configured under "connectionpools".
+ * <p>
+ * The commutealerts (and replica) pools are created here as {@link InstrumentedDataSource}s, so
+ * their acquisitions are timed and their borrowed connections are checked for leaks. The
+ * pushservices pool is created by its library, so only its pool status is read.
+ * <p>
+ * In adaptive mode, each pool's maximum size is grown by a step whenever borrowers waited during
+ * the last interval, and shrunk by a step after several intervals without waits, between the
+ * adaptive bounds. The database executor is sized to the commutealerts pool, so its work queues
+ * for a thread rather than for a connection: queued database work also grows that pool, and the
+ * executor is resized with it.
+ */
+@Singleton
+public class ConnectionPoolMonitor {
+    public static final String PUSH_SERVICES_POOL = "pushservices";
+
+    private static final String POOLS_CONFIG = "connectionpools";
+    private static final long DEFAULT_SLOW_ACQUIRE_MS = 250;
+    private static final long DEFAULT_LEAK_MS = TimeUnit.MINUTES.toMillis(2);
+    private static final FiniteDuration DEFAULT_INTERVAL = Duration.create(15, TimeUnit.SECONDS);
+
+    private final Map<String, Pool> mPools = new ConcurrentHashMap<>();
+    private final AtomicBoolean mStarted = new AtomicBoolean(false);
+
+    private final long mSlowAcquireMillis;
+    private final long mLeakMillis;
+    private final FiniteDuration mInterval;
+    private final boolean mAdaptive;
+    private final int mAdaptiveMinSize;
+    private final int mAdaptiveMaxSize;
+    private final int mAdaptiveStep;
+    private final int mAdaptiveIdleIntervals;
+
+    private final ActorSystem mActorSystem;
+    private final ExecutionPools mExecutionPools;
+
+    @Inject
+    public ConnectionPoolMonitor(Config config, ActorSystem actorSystem, ExecutionPools executionPools) {
+        Config poolsConfig = config.hasPath(POOLS_CONFIG)
+                ? config.getConfig(POOLS_CONFIG)
+                : null;
+        Config adaptiveConfig = poolsConfig != null && poolsConfig.hasPath("adaptive")
+                ? poolsConfig.getConfig("adaptive")
+                : null;
+
+        mSlowAcquireMillis = poolsConfig != null && poolsConfig.hasPath("slowAcquireMillis")
+                ? poolsConfig.getLong("slowAcquireMillis")
+                : DEFAULT_SLOW_ACQUIRE_MS;
+        mLeakMillis = poolsConfig != null && poolsConfig.hasPath("leakSeconds")
+                ? TimeUnit.SECONDS.toMillis(poolsConfig.getLong("leakSeconds"))
+                : DEFAULT_LEAK_MS;
+        mInterval = poolsConfig != null && poolsConfig.hasPath("interval")
+                ? Duration.create(poolsConfig.getDuration("interval", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS)
+                : DEFAULT_INTERVAL;
+
+        mAdaptive = adaptiveConfig != null && adaptiveConfig.hasPath("enabled") && adaptiveConfig.getBoolean("enabled");
+        mAdaptiveMinSize = adaptiveConfig != null && adaptiveConfig.hasPath("minConnections")
+                ? adaptiveConfig.getInt("minConnections")
+                : 10;
+        mAdaptiveMaxSize = adaptiveConfig != null && adaptiveConfig.hasPath("maxConnections")
+                ? adaptiveConfig.getInt("maxConnections")
+                : 100;
+        mAdaptiveStep = adaptiveConfig != null && adaptiveConfig.hasPath("step")
+                ? adaptiveConfig.getInt("step")
+                : 5;
+        mAdaptiveIdleIntervals = adaptiveConfig != null && adaptiveConfig.hasPath("idleIntervals")
+                ? adaptiveConfig.getInt("idleIntervals")
+                : 8;
+
+        mActorSystem = actorSystem;
+        mExecutionPools = executionPools;
+    }
+
+    /**
+     * Create an instrumented pool for an Ebean datasource, to be set as its server's datasource.
+     *
+     * @param name             name of the pool.
+     * @param dataSourceConfig Ebean datasource configuration.
+     * @return instrumented pool.
+     */
+    @Nonnull
+    public DataSource createDataSource(@Nonnull String name, @Nonnull DataSourceConfig dataSourceConfig) {
+        InstrumentedDataSource dataSource = new InstrumentedDataSource(name, dataSourceConfig, mSlowAcquireMillis);
+        mPools.put(name, new Pool(dataSource.getPool(), dataSource));
+        return dataSource;
+    }
+
+    /**
+     * Start checking for leaks (and resizing the pools in adaptive mode), unless it has already
+     * been started.
+     */
+    public void start() {
+        if (mStarted.compareAndSet(false, true)) {
+            addPushServicesPool();
+
+            Logger.info(String.format("Monitoring %d connection pools%s.", mPools.size(),
+                    mAdaptive ? String.format(", adaptively sized from %d to %d connections", mAdaptiveMinSize, mAdaptiveMaxSize) : ""));
+            mActorSystem.scheduler().schedule(mInterval, mInterval, this::checkPools, mActorSystem.dispatcher());
+        }
+    }
+
+    /**
+     * Get the status (and for instrumented pools, the acquisition metrics) of every pool.
+     *
+     * @return metrics keyed by pool name, and then by metric.
+     */
+    @Nonnull
+    public Map<String, Map<String, Object>> getMetrics() {
+        Map<String, Map<String, Object>> metrics = new LinkedHashMap<>();
+        for (Map.Entry<String, Pool> poolEntry : mPools.entrySet()) {
+            Pool pool = poolEntry.getValue();
+            PoolStatus status = pool.pool.getStatus(false);
+
+            Map<String, Object> poolMetrics = new LinkedHashMap<>();
+            poolMetrics.put("minSize", status.getMinSize());
+            poolMetrics.put("maxSize", status.getMaxSize());
+            poolMetrics.put("active", status.getBusy());
+            poolMetrics.put("idle", status.getFree());
+            poolMetrics.put("waiters", status.getWaiting());
+            poolMetrics.put("highWaterMark", status.getHighWaterMark());
+            poolMetrics.put("waitCount", status.getWaitCount());
+            poolMetrics.put("hitCount", status.getHitCount());
+            poolMetrics.put("adaptive", mAdaptive);
+            if (pool.instrumented != null) {
+                poolMetrics.putAll(pool.instrumented.getMetrics());
+            }
+            metrics.put(poolEntry.getKey(), poolMetrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * Close the instrumented pools, after their EbeanServers were shut down.
+     */
+    public void shutdown() {
+        for (Pool pool : mPools.values()) {
+            if (pool.instrumented != null) {
+                pool.pool.shutdown(false);
+            }
+        }
+    }
+
+    private void checkPools() {
+        for (Map.Entry<String, Pool> poolEntry : mPools.entrySet()) {
+            try {
+                Pool pool = poolEntry.getValue();
+                if (pool.instrumented != null) {
+                    pool.instrumented.checkLeaks(mLeakMillis);
+                }
+                if (mAdaptive) {
+                    resizePool(poolEntry.getKey(), pool);
+                }
+
+            } catch (Exception e) {
+                Logger.error(String.format("Error checking the %s connection pool.", poolEntry.getKey()), e);
+            }
+        }
+    }
+
+    /**
+     * Grow a pool by a step if borrowers waited for connections since the last check, or shrink
+     * it by a step once it has gone several checks without waits. For the commutealerts pool,
+     * work queued for the database executor counts as waiting, and the executor is resized too.
+     */
+    private void resizePool(@Nonnull String name, @Nonnull Pool pool) {
+        boolean executorPool = Constants.DATABASE_SERVER_NAME.equals(name);
+        int queuedTasks = executorPool ? mExecutionPools.getDatabaseQueueLength() : 0;
+        PoolStatus status = pool.pool.getStatus(false);
+        long waits = status.getWaitCount() - pool.lastWaitCount;
+        pool.lastWaitCount = status.getWaitCount();
+
+        long slowAcquisitions = 0;
+        int peakBorrowed = status.getBusy();
+        if (pool.instrumented != null) {
+            slowAcquisitions = pool.instrumented.getSlowAcquisitions() - pool.lastSlowAcquisitions;
+            pool.lastSlowAcquisitions = pool.instrumented.getSlowAcquisitions();
+            peakBorrowed = pool.instrumented.resetPeakBorrowed();
+        }
+
+        int maxSize = status.getMaxSize();
+        if (waits > 0 || slowAcquisitions > 0 || status.getWaiting() > 0 || queuedTasks > 0) {
+            pool.idleIntervals = 0;
+            int grownSize = Math.min(mAdaptiveMaxSize, maxSize + mAdaptiveStep);
+            if (grownSize > maxSize) {
+                setMaxSize(pool, grownSize, executorPool);
+                Logger.info(String.format("Grew the %s connection pool from %d to %d after %d waits and "
+                        + "%d queued tasks.", name, maxSize, grownSize, waits, queuedTasks));
+            }
+            return;
+        }
+
+        if (++pool.idleIntervals >= mAdaptiveIdleIntervals) {
+            pool.idleIntervals = 0;
+            int shrunkSize = Math.max(mAdaptiveMinSize, Math.max(peakBorrowed + mAdaptiveStep, maxSize - mAdaptiveStep));
+            if (shrunkSize < maxSize) {
+                setMaxSize(pool, shrunkSize, executorPool);
+                Logger.info(String.format("Shrunk the idle %s connection pool from %d to %d.", name, maxSize, shrunkSize));
+            }
+        }
+    }
+
+    private void setMaxSize(@Nonnull Pool pool, int maxSize, boolean executorPool) {
+        pool.pool.setMaxSize(maxSize);
+        if (executorPool) {
+            mExecutionPools.resizeDatabasePool(maxSize);
+        }
+    }
+
+    /**
+     * Add the pushservices pool, if its library registered an EbeanServer backed by an Ebean
+     * pool.
+     */
+    private void addPushServicesPool() {
+        try {
+            EbeanServer pushServicesServer = Ebean.getServer(PUSH_SERVICES_POOL);
+            DataSource dataSource = pushServicesServer != null
+                    ? pushServicesServer.getPluginApi().getDataSource()
+                    : null;
+            if (dataSource instanceof DataSourcePool) {
+                mPools.put(PUSH_SERVICES_POOL, new Pool((DataSourcePool) dataSource, null));
+            }
+
+        } catch (Exception e) {
+            Logger.warn(String.format("Not monitoring the %s connection pool: %s", PUSH_SERVICES_POOL, e.getMessage()));
+        }
+    }
+
+    /**
+     * A monitored pool, and its state between checks.
+     */
+    private static class Pool {
+        private final DataSourcePool pool;
+        private final InstrumentedDataSource instrumented;
+        private long lastWaitCount;
+        private long lastSlowAcquisitions;
+        private int idleIntervals;
+
+        private Pool(@Nonnull DataSourcePool pool, @Nullable InstrumentedDataSource instrumented) {
+            this.pool = pool;
+            this.instrumented = instrumented;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package services;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import akka.actor.ActorSystem;
+import dao.DeviceDao;
+import play.Logger;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+/**
+ * Fills in the deviceId and token digest columns of devices saved before the columns were
+ * added, a small batch at a time with a pause between batches. A failed batch is retried with
+ * an increasing pause, and the backfill gives up (until the next start) after repeated failures.
+ * {@link DeviceDao} only relies on the digests alone once the columns are made NOT NULL.
+ */
+@Singleton
+public class DeviceDigestBackfill {
+    private static final int BATCH_SIZE = 1000;
+    private static final int MAX_FAILURES = 10;
+    private static final FiniteDuration BATCH_INTERVAL = Duration.create(200, TimeUnit.MILLISECONDS);
+    private static final FiniteDuration MAX_RETRY_INTERVAL = Duration.create(5, TimeUnit.MINUTES);
+
+    private final AtomicBoolean mStarted = new AtomicBoolean(false);
+    private final DeviceDao mDeviceDao;
+    private final ActorSystem mActorSystem;
+    private final ExecutionPools mExecutionPools;
+
+    @Inject
+    public DeviceDigestBackfill(DeviceDao deviceDao, ActorSystem actorSystem, ExecutionPools executionPools) {
+        mDeviceDao = deviceDao;
+        mActorSystem = actorSystem;
+        mExecutionPools = executionPools;
+    }
+
+    /**
+     * Start the backfill, unless it has already been started.
+     */
+    public void start() {
+        if (mStarted.compareAndSet(false, true)) {
+            Logger.info("Backfilling device digests.");
+            scheduleBatch(null, 0, Duration.Zero());
+        }
+    }
+
+    private void scheduleBatch(@Nullable Long afterDeviceId, int failures, @Nonnull FiniteDuration delay) {
+        mActorSystem.scheduler().scheduleOnce(delay, () -> {
+            try {
+                CompletableFuture.runAsync(() -> {
+                    Long lastDeviceId = mDeviceDao.backfillDigests(afterDeviceId, BATCH_SIZE);
+                    if (lastDeviceId == null) {
+                        Logger.info("Backfilled device digests.");
+
+                    } else if (lastDeviceId.equals(afterDeviceId != null ? afterDeviceId : 0L)) {
+                        retryBatch(afterDeviceId, failures + 1);
+
+                    } else {
+                        scheduleBatch(lastDeviceId, 0, BATCH_INTERVAL);
+                    }
+                }, mExecutionPools.getDatabaseExecutor());
+
+            } catch (RejectedExecutionException e) {
+                scheduleBatch(afterDeviceId, failures, BATCH_INTERVAL);
+            }
+        }, mActorSystem.dispatcher());
+    }
+
+    /**
+     * Retry a failed batch after doubling the pause for each consecutive failure.
+     */
+    private void retryBatch(@Nullable Long afterDeviceId, int failures) {
+        if (failures >= MAX_FAILURES) {
+            Logger.error(String.format("Stopped backfilling device digests after %d failed batches.", failures));
+            return;
+        }
+
+        long retryMillis = Math.min(MAX_RETRY_INTERVAL.toMillis(), BATCH_INTERVAL.toMillis() << failures);
+        Logger.warn(String.format("Retrying device digest batch in %dms.", retryMillis));
+        scheduleBatch(afterDeviceId, failures, Duration.create(retryMillis, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,190 @@
+package services;
+
+import com.typesafe.config.Config;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import play.Logger;
+
+/**
+ * Bounded thread pools for work that shouldn't run on the JVM common pool (or Play's request
+ * dispatcher), configured under "executors".
+ * <p>
+ * The database pool runs blocking Ebean/JDBC work and is sized to the connection pool, so
+ * queued work waits for a thread rather than holding a thread while waiting for a connection.
+ * The cpu pool runs encoding work, and the stream pool runs chunked response writers, which
+ * block while slow clients catch up. When a pool's queue is full, new work is rejected with a
+ * {@link RejectedExecutionException}, which the error handler answers with 503.
+ */
+@Singleton
+public class ExecutionPools {
+    public static final String DATABASE_POOL = "database";
+    public static final String CPU_POOL = "cpu";
+    public static final String STREAM_POOL = "stream";
+
+    private static final String EXECUTORS_CONFIG = "executors";
+    private static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    private final Pool mDatabasePool;
+    private final Pool mCpuPool;
+    private final Pool mStreamPool;
+
+    @Inject
+    public ExecutionPools(Config config) {
+        Config executorsConfig = config.hasPath(EXECUTORS_CONFIG)
+                ? config.getConfig(EXECUTORS_CONFIG)
+                : null;
+
+        mDatabasePool = createPool(DATABASE_POOL, executorsConfig, 16);
+        mCpuPool = createPool(CPU_POOL, executorsConfig, Runtime.getRuntime().availableProcessors());
+        mStreamPool = createPool(STREAM_POOL, executorsConfig, 32);
+    }
+
+    /**
+     * Get the executor for blocking database work.
+     *
+     * @return bounded database executor.
+     */
+    @Nonnull
+    public Executor getDatabaseExecutor() {
+        return mDatabasePool.executor;
+    }
+
+    /**
+     * Get the executor for non-blocking, CPU bound work.
+     *
+     * @return bounded cpu executor.
+     */
+    @Nonnull
+    public Executor getCpuExecutor() {
+        return mCpuPool.executor;
+    }
+
+    /**
+     * Get the executor for response writers which block on the client.
+     *
+     * @return bounded stream executor.
+     */
+    @Nonnull
+    public Executor getStreamExecutor() {
+        return mStreamPool.executor;
+    }
+
+    /**
+     * Get the number of tasks waiting for a database pool thread.
+     *
+     * @return queued database task count.
+     */
+    public int getDatabaseQueueLength() {
+        return mDatabasePool.executor.getQueue().size();
+    }
+
+    /**
+     * Resize the database pool, so that it follows its connection pool when that is resized.
+     *
+     * @param poolSize number of threads.
+     */
+    public void resizeDatabasePool(int poolSize) {
+        mDatabasePool.resize(poolSize);
+    }
+
+    /**
+     * Get the saturation of each pool.
+     *
+     * @return metrics keyed by pool name, and then by metric.
+     */
+    @Nonnull
+    public Map<String, Map<String, Long>> getMetrics() {
+        Map<String, Map<String, Long>> metrics = new HashMap<>();
+        metrics.put(DATABASE_POOL, mDatabasePool.getMetrics());
+        metrics.put(CPU_POOL, mCpuPool.getMetrics());
+        metrics.put(STREAM_POOL, mStreamPool.getMetrics());
+        return metrics;
+    }
+
+    /**
+     * Stop accepting work, and let queued work finish.
+     */
+    public void shutdown() {
+        mDatabasePool.executor.shutdown();
+        mCpuPool.executor.shutdown();
+        mStreamPool.executor.shutdown();
+    }
+
+    @Nonnull
+    private static Pool createPool(@Nonnull String name, Config executorsConfig, int defaultPoolSize) {
+        Config poolConfig = executorsConfig != null && executorsConfig.hasPath(name)
+                ? executorsConfig.getConfig(name)
+                : null;
+
+        int poolSize = poolConfig != null && poolConfig.hasPath("poolSize") && poolConfig.getInt("poolSize") > 0
+                ? poolConfig.getInt("poolSize")
+                : defaultPoolSize;
+        int queueSize = poolConfig != null && poolConfig.hasPath("queueSize")
+                ? poolConfig.getInt("queueSize")
+                : DEFAULT_QUEUE_SIZE;
+
+        Logger.info(String.format("Creating %s pool with %d threads and %d queued tasks.", name, poolSize, queueSize));
+        return new Pool(name, poolSize, queueSize);
+    }
+
+    /**
+     * A fixed size pool with a bounded queue.
+     */
+    private static class Pool {
+        private final ThreadPoolExecutor executor;
+        private final int queueSize;
+        private final LongAdder rejected = new LongAdder();
+
+        private Pool(@Nonnull String name, int poolSize, int queueSize) {
+            AtomicInteger threadCount = new AtomicInteger();
+            ThreadFactory threadFactory = runnable -> {
+                Thread thread = new Thread(runnable, String.format("%s-pool-%d", name, threadCount.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            };
+
+            this.queueSize = queueSize;
+            this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize), threadFactory, (runnable, pool) -> {
+                rejected.increment();
+                throw new RejectedExecutionException(String.format("The %s pool is saturated.", name));
+            });
+        }
+
+        private void resize(int poolSize) {
+            // The core size may never be above the maximum size.
+            if (poolSize > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(poolSize);
+                executor.setCorePoolSize(poolSize);
+            } else {
+                executor.setCorePoolSize(poolSize);
+                executor.setMaximumPoolSize(poolSize);
+            }
+        }
+
+        private Map<String, Long> getMetrics() {
+            Map<String, Long> metrics = new HashMap<>();
+            metrics.put("poolSize", (long) executor.getMaximumPoolSize());
+            metrics.put("active", (long) executor.getActiveCount());
+            metrics.put("queued", (long) executor.getQueue().size());
+            metrics.put("queueSize", (long) queueSize);
+            metrics.put("completed", executor.getCompletedTaskCount());
+            metrics.put("rejected", rejected.sum());
+            return metrics;
+        }
+    }
+}
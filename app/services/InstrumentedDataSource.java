@@ -0,0 +1,284 @@
+package services;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+import javax.sql.DataSource;
+
+import io.ebean.datasource.DataSourceConfig;
+import io.ebean.datasource.DataSourceFactory;
+import io.ebean.datasource.DataSourcePool;
+import io.ebean.datasource.DataSourcePoolListener;
+import play.Logger;
+
+/**
+ * An Ebean connection pool which times every connection acquisition and tracks the connections
+ * that are borrowed from it.
+ * <p>
+ * Waits are counted in a histogram, and acquisitions slower than the slow threshold are logged
+ * with the DAO method that asked for the connection. Connections held past the leak threshold
+ * are reported once each (see {@link #checkLeaks(long)}) with the stack of the holding thread.
+ */
+public class InstrumentedDataSource implements DataSource {
+    private static final long[] WAIT_BUCKETS_MS = {1, 5, 10, 50, 100, 500, 1000, 5000};
+    private static final String DAO_PACKAGE = "dao.";
+
+    private final String mName;
+    private final DataSourcePool mPool;
+    private final long mSlowAcquireNanos;
+
+    private final LongAdder[] mWaitHistogram = new LongAdder[WAIT_BUCKETS_MS.length + 1];
+    private final LongAdder mAcquisitions = new LongAdder();
+    private final LongAdder mFailedAcquisitions = new LongAdder();
+    private final LongAdder mSlowAcquisitions = new LongAdder();
+    private final LongAdder mLeaks = new LongAdder();
+    private final AtomicLong mMaxWaitNanos = new AtomicLong();
+
+    private final Map<Connection, Borrow> mBorrows = new ConcurrentHashMap<>();
+    private final AtomicInteger mPeakBorrowed = new AtomicInteger();
+
+    /**
+     * Create the pool for a datasource.
+     *
+     * @param name              name of the pool.
+     * @param dataSourceConfig  Ebean datasource configuration.
+     * @param slowAcquireMillis acquisitions taking at least this long are logged.
+     */
+    InstrumentedDataSource(@Nonnull String name, @Nonnull DataSourceConfig dataSourceConfig, long slowAcquireMillis) {
+        for (int i = 0; i < mWaitHistogram.length; i++) {
+            mWaitHistogram[i] = new LongAdder();
+        }
+
+        mName = name;
+        mSlowAcquireNanos = TimeUnit.MILLISECONDS.toNanos(slowAcquireMillis);
+
+        dataSourceConfig.setListener(new BorrowListener());
+        Iterator<DataSourceFactory> factories = ServiceLoader.load(DataSourceFactory.class).iterator();
+        if (!factories.hasNext()) {
+            throw new IllegalStateException("No Ebean DataSourceFactory found on the classpath.");
+        }
+        mPool = factories.next().createPool(name, dataSourceConfig);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            Connection connection = mPool.getConnection();
+            recordAcquisition(System.nanoTime() - startNanos);
+            return connection;
+
+        } catch (SQLException e) {
+            mFailedAcquisitions.increment();
+            recordAcquisition(System.nanoTime() - startNanos);
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            Connection connection = mPool.getConnection(username, password);
+            recordAcquisition(System.nanoTime() - startNanos);
+            return connection;
+
+        } catch (SQLException e) {
+            mFailedAcquisitions.increment();
+            recordAcquisition(System.nanoTime() - startNanos);
+            throw e;
+        }
+    }
+
+    /**
+     * Get the underlying Ebean pool, for its status and sizing.
+     *
+     * @return connection pool.
+     */
+    @Nonnull
+    public DataSourcePool getPool() {
+        return mPool;
+    }
+
+    /**
+     * Get the number of acquisitions which took at least the slow threshold.
+     *
+     * @return slow acquisition count.
+     */
+    public long getSlowAcquisitions() {
+        return mSlowAcquisitions.sum();
+    }
+
+    /**
+     * Get the most connections borrowed at once since the last call, and start counting again
+     * from the connections borrowed now.
+     *
+     * @return peak borrowed connections.
+     */
+    public int resetPeakBorrowed() {
+        return mPeakBorrowed.getAndSet(mBorrows.size());
+    }
+
+    /**
+     * Report connections which have been borrowed for longer than the leak threshold. Each
+     * borrow is only reported once.
+     *
+     * @param leakMillis time after which a borrowed connection is considered leaked.
+     * @return number of newly reported leaks.
+     */
+    public int checkLeaks(long leakMillis) {
+        long leakNanos = TimeUnit.MILLISECONDS.toNanos(leakMillis);
+        long now = System.nanoTime();
+        int leaks = 0;
+
+        for (Borrow borrow : mBorrows.values()) {
+            if (!borrow.reported && now - borrow.borrowedAtNanos >= leakNanos) {
+                borrow.reported = true;
+                leaks++;
+                mLeaks.increment();
+                Logger.warn(String.format("A %s connection has been held for %d ms by thread %s in %s.", mName,
+                        TimeUnit.NANOSECONDS.toMillis(now - borrow.borrowedAtNanos), borrow.thread.getName(),
+                        getDaoMethod(borrow.thread.getStackTrace())));
+            }
+        }
+        return leaks;
+    }
+
+    /**
+     * Get the acquisition counters, wait histogram and borrowed connections of the pool.
+     *
+     * @return metrics keyed by name.
+     */
+    @Nonnull
+    public Map<String, Object> getMetrics() {
+        Map<String, Long> waitHistogram = new LinkedHashMap<>();
+        for (int i = 0; i < WAIT_BUCKETS_MS.length; i++) {
+            waitHistogram.put(String.format("<%dms", WAIT_BUCKETS_MS[i]), mWaitHistogram[i].sum());
+        }
+        waitHistogram.put(String.format(">=%dms", WAIT_BUCKETS_MS[WAIT_BUCKETS_MS.length - 1]),
+                mWaitHistogram[WAIT_BUCKETS_MS.length].sum());
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("acquisitions", mAcquisitions.sum());
+        metrics.put("failedAcquisitions", mFailedAcquisitions.sum());
+        metrics.put("slowAcquisitions", mSlowAcquisitions.sum());
+        metrics.put("maxWaitMs", TimeUnit.NANOSECONDS.toMillis(mMaxWaitNanos.get()));
+        metrics.put("waitHistogram", waitHistogram);
+        metrics.put("borrowed", mBorrows.size());
+        metrics.put("peakBorrowed", mPeakBorrowed.get());
+        metrics.put("leaks", mLeaks.sum());
+        return metrics;
+    }
+
+    private void recordAcquisition(long waitNanos) {
+        mAcquisitions.increment();
+        mMaxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+
+        long waitMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        int bucket = 0;
+        while (bucket < WAIT_BUCKETS_MS.length && waitMillis >= WAIT_BUCKETS_MS[bucket]) {
+            bucket++;
+        }
+        mWaitHistogram[bucket].increment();
+
+        if (waitNanos >= mSlowAcquireNanos) {
+            mSlowAcquisitions.increment();
+            Logger.warn(String.format("Waited %d ms for a %s connection in %s.", waitMillis, mName,
+                    getDaoMethod(Thread.currentThread().getStackTrace())));
+        }
+    }
+
+    /**
+     * Find the DAO method in a stack, which is the closest caller that knows what the connection
+     * is for.
+     */
+    @Nonnull
+    private static String getDaoMethod(@Nonnull StackTraceElement[] stackTrace) {
+        for (StackTraceElement element : stackTrace) {
+            if (element.getClassName().startsWith(DAO_PACKAGE)) {
+                return element.getClassName() + "." + element.getMethodName();
+            }
+        }
+        return "an unknown caller";
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return mPool.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        mPool.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        mPool.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return mPool.getLoginTimeout();
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return mPool.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(mPool)) {
+            return iface.cast(mPool);
+        }
+        return mPool.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(mPool) || mPool.isWrapperFor(iface);
+    }
+
+    /**
+     * Tracks each connection from when the pool lends it until it is returned.
+     */
+    private class BorrowListener implements DataSourcePoolListener {
+        @Override
+        public void onAfterBorrowConnection(Connection connection) {
+            mBorrows.put(connection, new Borrow(Thread.currentThread()));
+            mPeakBorrowed.accumulateAndGet(mBorrows.size(), Math::max);
+        }
+
+        @Override
+        public void onBeforeReturnConnection(Connection connection) {
+            mBorrows.remove(connection);
+        }
+    }
+
+    /**
+     * A borrowed connection.
+     */
+    private static class Borrow {
+        private final Thread thread;
+        private final long borrowedAtNanos;
+        private volatile boolean reported;
+
+        private Borrow(@Nonnull Thread thread) {
+            this.thread = thread;
+            this.borrowedAtNanos = System.nanoTime();
+        }
+    }
+}
@@ -5,7 +5,9 @@ import com.google.inject.Inject;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.Nonnull;
@@ -19,6 +21,7 @@ import helpers.AlertHelper;
 import interfaces.pushservices.TaskQueueListener;
 import javafx.util.Pair;
 import models.AlertModifications;
+import models.SubscriberToken;
 import models.accounts.Account;
 import models.accounts.PlatformAccount;
 import models.alerts.Alert;
@@ -94,6 +97,7 @@ public class PushMessageManager {
      * subscribed clients by fetching the subscriptions, devices, and sender API accounts.
      * <p>
      * Creates a list of separate messages for every {@link PlatformAccount} in every {@link Account}.
+     * Only the subscribers' tokens and the platform credentials are loaded, as flat rows.
      *
      * @param agencyId       The agencyId for the route.
      * @param route          Route ID to fetch sending accounts for.
@@ -103,21 +107,26 @@ public class PushMessageManager {
     @Nonnull
     private List<Message> createAlertMessages(String agencyId, @Nonnull Route route, @Nonnull List<Alert> updatedAlerts, boolean isCancellation) {
         List<Message> messages = new ArrayList<>();
-        List<Account> accounts = mAccountDao.getAccounts(PlatformType.SERVICE_GCM, agencyId, route.getRouteId());
+
+        // Group the subscribed device tokens by API account.
+        Map<Long, Set<String>> accountTokens = new LinkedHashMap<>();
+        for (SubscriberToken subscriberToken : mDeviceDao.getRouteSubscriberTokens(agencyId, route.getRouteId())) {
+            accountTokens.computeIfAbsent(subscriberToken.getAccountId(), accountId -> new HashSet<>())
+                    .add(subscriberToken.getToken());
+        }
 
         // Build a new message for the platform task per API and then Platform account.
-        for (Account account : accounts) {
-            if (account.devices != null
-                    && account.platformAccounts != null
-                    && !account.devices.isEmpty()
-                    && !account.platformAccounts.isEmpty()) {
+        for (PlatformAccount platformAccount : mAccountDao.getPlatformAccounts(PlatformType.SERVICE_GCM, accountTokens.keySet())) {
+            Set<String> deviceTokens = platformAccount.account != null
+                    ? accountTokens.get(platformAccount.account.id)
+                    : null;
+
+            if (deviceTokens != null && !deviceTokens.isEmpty()) {
 
                 // Create a message for each new alert in the route.
-                for (PlatformAccount platformAccount : account.platformAccounts) {
-                    for (Alert alert : updatedAlerts) {
-                        List<Message> alertMessages = AlertHelper.getAlertMessages(alert, route, account.devices, platformAccount, isCancellation);
-                        messages.addAll(alertMessages);
-                    }
+                for (Alert alert : updatedAlerts) {
+                    List<Message> alertMessages = AlertHelper.getAlertMessages(alert, route, deviceTokens, platformAccount, isCancellation);
+                    messages.addAll(alertMessages);
                 }
             }
         }
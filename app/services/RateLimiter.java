@@ -0,0 +1,237 @@
+package services;
+
+import com.typesafe.config.Config;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import play.Logger;
+
+/**
+ * Token bucket rate limits for API clients (by IP address or api_key), configured per route
+ * group under "ratelimit.groups".
+ * <p>
+ * Each bucket is a single atomic timestamp of when it will next be full (the generic cell rate
+ * algorithm), so taking a token is one compare-and-set with no locks. Buckets live in a bounded
+ * map which is trimmed in batches to a low-water mark; idle buckets are evicted first, then the
+ * fullest, and an evicted bucket simply starts again full.
+ */
+@Singleton
+public class RateLimiter {
+    public static final String GROUP_API_KEY = "apiKey";
+
+    private static final String GROUPS_CONFIG = "ratelimit.groups";
+    private static final String MAX_CLIENTS_CONFIG = "ratelimit.maxClients";
+    private static final int DEFAULT_MAX_CLIENTS = 10000;
+    private static final double LOW_WATER_RATIO = 0.9;
+
+    private final Map<String, Limit> mLimits = new HashMap<>();
+    private final Map<String, AtomicLong> mBuckets = new ConcurrentHashMap<>();
+    private final AtomicBoolean mEvicting = new AtomicBoolean();
+    private final LongAdder mEvicted = new LongAdder();
+    private final int mMaxClients;
+    private final int mLowWaterClients;
+
+    @Inject
+    public RateLimiter(Config config) {
+        mMaxClients = config.hasPath(MAX_CLIENTS_CONFIG)
+                ? config.getInt(MAX_CLIENTS_CONFIG)
+                : DEFAULT_MAX_CLIENTS;
+        mLowWaterClients = Math.min(mMaxClients - 1, (int) (mMaxClients * LOW_WATER_RATIO));
+
+        if (config.hasPath(GROUPS_CONFIG)) {
+            Config groupsConfig = config.getConfig(GROUPS_CONFIG);
+            for (String group : groupsConfig.root().keySet()) {
+                Config groupConfig = groupsConfig.getConfig(group);
+                mLimits.put(group, new Limit(group,
+                        groupConfig.getInt("capacity"),
+                        groupConfig.getDouble("refillPerSecond"),
+                        groupConfig.hasPath("paths") ? groupConfig.getStringList("paths") : Collections.emptyList()));
+            }
+        }
+    }
+
+    /**
+     * Find the rate limit group of a request path.
+     *
+     * @param path request path.
+     * @return the group name, or null if the path is not rate limited.
+     */
+    @Nullable
+    public String getGroup(@Nonnull String path) {
+        for (Limit limit : mLimits.values()) {
+            for (String pathPrefix : limit.paths) {
+                if (path.startsWith(pathPrefix)) {
+                    return limit.group;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Take a token from a client's bucket for a group.
+     *
+     * @param group  rate limit group.
+     * @param client client IP address or api_key.
+     * @return true if the request may proceed, false if it should be rejected.
+     */
+    public boolean tryAcquire(@Nonnull String group, @Nullable String client) {
+        Limit limit = mLimits.get(group);
+        if (limit == null || client == null) {
+            return true;
+        }
+
+        String bucketKey = group + "|" + client;
+        AtomicLong bucket = mBuckets.get(bucketKey);
+        if (bucket == null) {
+            if (mBuckets.size() >= mMaxClients) {
+                evictBuckets();
+            }
+            bucket = mBuckets.computeIfAbsent(bucketKey, key -> new AtomicLong(System.nanoTime()));
+        }
+
+        long now = System.nanoTime();
+        while (true) {
+            long fullAt = bucket.get();
+            long nextFullAt = (fullAt - now > 0 ? fullAt : now) + limit.tokenIntervalNanos;
+
+            // Taking a token would leave the bucket "emptier" than its capacity.
+            if (nextFullAt - now > limit.capacityNanos) {
+                limit.rejected.increment();
+                return false;
+            }
+
+            if (bucket.compareAndSet(fullAt, nextFullAt)) {
+                limit.allowed.increment();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Get the number of seconds a rejected client of a group should wait for its next token.
+     *
+     * @param group rate limit group.
+     * @return seconds to wait.
+     */
+    public long getRetryAfterSeconds(@Nonnull String group) {
+        Limit limit = mLimits.get(group);
+        return limit != null
+                ? Math.max(1, TimeUnit.NANOSECONDS.toSeconds(limit.tokenIntervalNanos))
+                : 1;
+    }
+
+    /**
+     * Get the allowed and rejected request counters of every group.
+     *
+     * @return counters, keyed by group and then "allowed" or "rejected".
+     */
+    @Nonnull
+    public Map<String, Map<String, Long>> getCounters() {
+        Map<String, Map<String, Long>> counters = new HashMap<>();
+        for (Limit limit : mLimits.values()) {
+            Map<String, Long> groupCounters = new HashMap<>();
+            groupCounters.put("allowed", limit.allowed.sum());
+            groupCounters.put("rejected", limit.rejected.sum());
+            counters.put(limit.group, groupCounters);
+        }
+        return counters;
+    }
+
+    /**
+     * Get the number of clients currently tracked.
+     *
+     * @return tracked bucket count.
+     */
+    public int getClientCount() {
+        return mBuckets.size();
+    }
+
+    /**
+     * Get the number of buckets evicted to make room for new clients.
+     *
+     * @return evicted bucket count.
+     */
+    public long getEvictedCount() {
+        return mEvicted.sum();
+    }
+
+    /**
+     * Trim the map to its low-water mark, so the scan runs once per batch of new clients rather
+     * than for each one. Full (idle) buckets are removed first, then the buckets closest to full.
+     * Only one thread trims at a time; others carry on and the map briefly runs over.
+     */
+    private void evictBuckets() {
+        if (!mEvicting.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            long now = System.nanoTime();
+            int evicted = 0;
+
+            for (Iterator<AtomicLong> it = mBuckets.values().iterator(); it.hasNext(); ) {
+                if (it.next().get() - now <= 0) {
+                    it.remove();
+                    evicted++;
+                }
+            }
+
+            if (mBuckets.size() > mLowWaterClients) {
+                List<Map.Entry<String, Long>> fullAtTimes = new ArrayList<>(mBuckets.size());
+                for (Map.Entry<String, AtomicLong> entry : mBuckets.entrySet()) {
+                    fullAtTimes.add(new AbstractMap.SimpleEntry<>(entry.getKey(), entry.getValue().get()));
+                }
+                fullAtTimes.sort((first, second) -> Long.compare(first.getValue() - now, second.getValue() - now));
+
+                for (Iterator<Map.Entry<String, Long>> it = fullAtTimes.iterator();
+                     it.hasNext() && mBuckets.size() > mLowWaterClients; ) {
+                    if (mBuckets.remove(it.next().getKey()) != null) {
+                        evicted++;
+                    }
+                }
+            }
+
+            mEvicted.add(evicted);
+            Logger.debug(String.format("Evicted %d rate limit buckets.", evicted));
+
+        } finally {
+            mEvicting.set(false);
+        }
+    }
+
+    /**
+     * The limit of a route group.
+     */
+    private static class Limit {
+        private final String group;
+        private final long tokenIntervalNanos;
+        private final long capacityNanos;
+        private final List<String> paths;
+        private final LongAdder allowed = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+
+        private Limit(@Nonnull String group, int capacity, double refillPerSecond, @Nonnull List<String> paths) {
+            this.group = group;
+            this.tokenIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / refillPerSecond);
+            this.capacityNanos = tokenIntervalNanos * capacity;
+            this.paths = new ArrayList<>(paths);
+        }
+    }
+}
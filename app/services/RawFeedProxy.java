@@ -0,0 +1,184 @@
+package services;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import agency.InAppMessageUpdate;
+import agency.SeptaAgencyUpdate;
+import akka.util.ByteString;
+import main.Constants;
+import play.Logger;
+import play.libs.ws.WSClient;
+import play.libs.ws.WSRequest;
+import play.libs.ws.WSResponse;
+
+/**
+ * Caching proxy for the raw upstream agency alert feeds.
+ * <p>
+ * Feed bodies are kept in memory for a short time, and concurrent requests for the same feed
+ * share a single upstream download. If the upstream agency server fails, the last good body is
+ * served for a while longer instead of an error.
+ */
+@Singleton
+public class RawFeedProxy {
+    // TODO Remove
+    // private static final String SEPTA_RAW_JSON_FEED = "http://localhost:8181/alerts/v1/agency/1/raw";
+    private static final String SEPTA_RAW_JSON_FEED = "http://www3.septa.org/hackathon/Alerts/get_alert_data.php";
+    private static final String INAPP_RAW_JSON_FEED = String.format(Locale.US,
+            "%s/alerts/inapp", Constants.PROD_API_SERVER_HOST);
+
+    private static final int RAW_FEED_TIMEOUT_MS = 1000 * 30;
+    private static final long RAW_FEED_FRESH_MS = TimeUnit.SECONDS.toMillis(15);
+    private static final long RAW_FEED_STALE_IF_ERROR_MS = TimeUnit.MINUTES.toMillis(30);
+    private static final int RAW_FEED_MAX_ENTRIES = 256;
+
+    private final Map<String, RawFeed> mFeeds = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<RawFeed>> mFeedDownloads = new ConcurrentHashMap<>();
+
+    private WSClient mWsClient;
+
+    @Inject
+    public RawFeedProxy(WSClient wsClient) {
+        mWsClient = wsClient;
+    }
+
+    /**
+     * Check whether there is an upstream raw feed for an agency.
+     *
+     * @param agencyId id of the agency.
+     * @return true if the agency feed can be proxied.
+     */
+    public boolean hasFeed(@Nullable String agencyId) {
+        return SeptaAgencyUpdate.AGENCY_ID.equals(agencyId) || InAppMessageUpdate.AGENCY_ID.equals(agencyId);
+    }
+
+    /**
+     * Get the raw feed body for an agency, from memory if fresh, or else from a (shared)
+     * upstream download.
+     *
+     * @param agencyId id of the agency.
+     * @param route    optional SEPTA req1 route parameter.
+     * @return A stage completing with the feed, or null if there is no feed available.
+     */
+    @Nonnull
+    public CompletionStage<RawFeed> getFeed(@Nonnull String agencyId, @Nullable String route) {
+        if (!hasFeed(agencyId)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        String feedKey = String.format(Locale.US, "%s|%s", agencyId, route);
+        RawFeed cachedFeed = mFeeds.get(feedKey);
+        if (cachedFeed != null && cachedFeed.getAge() < RAW_FEED_FRESH_MS) {
+            return CompletableFuture.completedFuture(cachedFeed);
+        }
+
+        CompletableFuture<RawFeed> feedDownload = new CompletableFuture<>();
+        CompletableFuture<RawFeed> inFlightDownload = mFeedDownloads.putIfAbsent(feedKey, feedDownload);
+        if (inFlightDownload != null) {
+            return inFlightDownload;
+        }
+
+        try {
+            downloadFeed(agencyId, route).whenComplete((response, throwable) -> {
+                try {
+                    feedDownload.complete(handleResponse(feedKey, response, throwable));
+                } finally {
+                    mFeedDownloads.remove(feedKey, feedDownload);
+                }
+            });
+
+        } catch (Exception e) {
+            feedDownload.complete(handleResponse(feedKey, null, e));
+            mFeedDownloads.remove(feedKey, feedDownload);
+        }
+
+        return feedDownload;
+    }
+
+    /**
+     * Start the upstream download of a feed.
+     */
+    @Nonnull
+    private CompletionStage<WSResponse> downloadFeed(@Nonnull String agencyId, @Nullable String route) {
+        WSRequest request;
+        if (SeptaAgencyUpdate.AGENCY_ID.equals(agencyId)) {
+            request = mWsClient
+                    .url(SEPTA_RAW_JSON_FEED)
+                    .setQueryString(route != null ? String.format(Locale.US, "req1=%s", route) : "all");
+        } else {
+            request = mWsClient.url(INAPP_RAW_JSON_FEED);
+        }
+
+        return request
+                .setRequestTimeout(RAW_FEED_TIMEOUT_MS)
+                .setFollowRedirects(true)
+                .get();
+    }
+
+    /**
+     * Cache a successful upstream response, or fall back to the last good feed body if
+     * the upstream download failed.
+     */
+    @Nullable
+    private RawFeed handleResponse(@Nonnull String feedKey, @Nullable WSResponse response, @Nullable Throwable throwable) {
+        if (throwable == null && response != null && response.getStatus() == 200) {
+            ByteString body = response.getBodyAsBytes();
+            if (body != null && !body.isEmpty()) {
+                RawFeed feed = new RawFeed(body);
+                cacheFeed(feedKey, feed);
+                return feed;
+            }
+        }
+
+        RawFeed staleFeed = mFeeds.get(feedKey);
+        if (staleFeed != null && staleFeed.getAge() < RAW_FEED_STALE_IF_ERROR_MS) {
+            Logger.warn(String.format("Upstream feed %s failed. Serving %ds old copy.",
+                    feedKey, TimeUnit.MILLISECONDS.toSeconds(staleFeed.getAge())));
+            return staleFeed;
+        }
+
+        Logger.error(String.format("Upstream feed %s failed with no stored copy.", feedKey), throwable);
+        return null;
+    }
+
+    private void cacheFeed(@Nonnull String feedKey, @Nonnull RawFeed feed) {
+        if (mFeeds.size() >= RAW_FEED_MAX_ENTRIES && !mFeeds.containsKey(feedKey)) {
+            mFeeds.values().removeIf(cachedFeed -> cachedFeed.getAge() > RAW_FEED_STALE_IF_ERROR_MS);
+            if (mFeeds.size() >= RAW_FEED_MAX_ENTRIES) {
+                return;
+            }
+        }
+        mFeeds.put(feedKey, feed);
+    }
+
+    /**
+     * An immutable upstream feed body and the time it was downloaded.
+     */
+    public static class RawFeed {
+        private final ByteString body;
+        private final long downloadedAt;
+
+        private RawFeed(@Nonnull ByteString body) {
+            this.body = body;
+            this.downloadedAt = System.currentTimeMillis();
+        }
+
+        @Nonnull
+        public ByteString getBody() {
+            return body;
+        }
+
+        public long getAge() {
+            return System.currentTimeMillis() - downloadedAt;
+        }
+    }
+}
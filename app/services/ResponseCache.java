@@ -0,0 +1,263 @@
+package services;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Singleton;
+
+import akka.util.ByteString;
+import play.Logger;
+
+/**
+ * In-memory cache of public API responses, tagged with surrogate keys so that an agency update
+ * only purges the responses built from the agencies and routes that changed.
+ * <p>
+ * The same keys are sent in the "Surrogate-Key" response header, so an edge cache in front of the
+ * app can be purged the same way.
+ */
+@Singleton
+public class ResponseCache {
+    public static final String SURROGATE_KEY_HEADER = "Surrogate-Key";
+    public static final String AGENCIES_KEY = "agencies";
+
+    private static final int MAX_ENTRIES = 2048;
+    private static final long ENTRY_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private final Map<String, CachedResponse> mResponses = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> mResponseKeys = new ConcurrentHashMap<>();
+
+    // Bumped on every invalidation, so responses built before it are never stored after it.
+    private final AtomicLong mGeneration = new AtomicLong();
+
+    /**
+     * Get the surrogate key for every response built from an agency.
+     *
+     * @param agencyId id of the agency.
+     * @return surrogate key.
+     */
+    @Nonnull
+    public static String agencyKey(@Nonnull String agencyId) {
+        return String.format("agency/%s", agencyId);
+    }
+
+    /**
+     * Get the surrogate key for every response built from a single route.
+     *
+     * @param agencyId id of the route's agency.
+     * @param routeId  id of the route.
+     * @return surrogate key.
+     */
+    @Nonnull
+    public static String routeKey(@Nonnull String agencyId, @Nonnull String routeId) {
+        return String.format("route/%s/%s", agencyId, routeId);
+    }
+
+    /**
+     * Get the current cache generation, to be passed back to {@link #put} once the response is
+     * built.
+     *
+     * @return cache generation.
+     */
+    public long getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Get a cached response.
+     *
+     * @param cacheKey request cache key.
+     * @return the response, or null if it is not cached or has expired.
+     */
+    @Nullable
+    public CachedResponse get(@Nonnull String cacheKey) {
+        CachedResponse response = mResponses.get(cacheKey);
+        if (response != null && response.isExpired()) {
+            removeResponse(cacheKey, response);
+            return null;
+        }
+        return response;
+    }
+
+    /**
+     * Cache a response, unless any of the cache was invalidated after the response was started.
+     * When the cache is full, expired responses are dropped, or the oldest response if none have
+     * expired.
+     *
+     * @param cacheKey   request cache key.
+     * @param response   response to cache.
+     * @param generation cache generation from before the response was built.
+     */
+    public void put(@Nonnull String cacheKey, @Nonnull CachedResponse response, long generation) {
+        if (mResponses.size() >= MAX_ENTRIES && !mResponses.containsKey(cacheKey)) {
+            evictResponses();
+        }
+
+        // Index after storing, so a concurrent unlink of the same cache key can see this response.
+        CachedResponse previous = mResponses.put(cacheKey, response);
+        for (String surrogateKey : response.getSurrogateKeys()) {
+            mResponseKeys.computeIfAbsent(surrogateKey, key -> ConcurrentHashMap.newKeySet()).add(cacheKey);
+        }
+        if (previous != null) {
+            unlinkResponse(cacheKey, previous);
+        }
+
+        // An invalidation ran while the response was being built or stored.
+        if (mGeneration.get() != generation) {
+            removeResponse(cacheKey, response);
+        }
+    }
+
+    /**
+     * Get the number of surrogate keys which tag at least one cached response.
+     *
+     * @return indexed surrogate key count.
+     */
+    public int getSurrogateKeyCount() {
+        return mResponseKeys.size();
+    }
+
+    /**
+     * Get the number of cached responses, including any which have expired but not been removed.
+     *
+     * @return cached response count.
+     */
+    public int getResponseCount() {
+        return mResponses.size();
+    }
+
+    /**
+     * Remove every cached response tagged with any of the surrogate keys.
+     *
+     * @param surrogateKeys keys to purge.
+     */
+    public void invalidate(@Nonnull Collection<String> surrogateKeys) {
+        if (surrogateKeys.isEmpty()) {
+            return;
+        }
+
+        mGeneration.incrementAndGet();
+        int removedResponses = 0;
+        for (String surrogateKey : surrogateKeys) {
+            Set<String> cacheKeys = mResponseKeys.remove(surrogateKey);
+            if (cacheKeys != null) {
+                for (String cacheKey : cacheKeys) {
+                    CachedResponse response = mResponses.get(cacheKey);
+                    if (response != null && removeResponse(cacheKey, response)) {
+                        removedResponses++;
+                    }
+                }
+            }
+        }
+
+        Logger.info(String.format("Invalidated %d cached responses for %d surrogate keys.",
+                removedResponses, surrogateKeys.size()));
+    }
+
+    /**
+     * Remove every expired response, or the oldest response if none have expired.
+     */
+    private void evictResponses() {
+        boolean removedExpired = false;
+        Map.Entry<String, CachedResponse> oldest = null;
+        for (Map.Entry<String, CachedResponse> entry : mResponses.entrySet()) {
+            if (entry.getValue().isExpired()) {
+                removedExpired |= removeResponse(entry.getKey(), entry.getValue());
+            } else if (oldest == null || entry.getValue().cachedAt < oldest.getValue().cachedAt) {
+                oldest = entry;
+            }
+        }
+
+        if (!removedExpired && oldest != null) {
+            removeResponse(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    /**
+     * Remove a cached response and its entries in the surrogate key index.
+     *
+     * @return true if the response was still cached under the key.
+     */
+    private boolean removeResponse(@Nonnull String cacheKey, @Nonnull CachedResponse response) {
+        if (!mResponses.remove(cacheKey, response)) {
+            return false;
+        }
+        unlinkResponse(cacheKey, response);
+        return true;
+    }
+
+    /**
+     * Remove a response's cache key from the index of each of its surrogate keys, dropping keys
+     * which no longer tag any response. A key is kept if a newer response stored under the same
+     * cache key is still tagged with it.
+     */
+    private void unlinkResponse(@Nonnull String cacheKey, @Nonnull CachedResponse response) {
+        for (String surrogateKey : response.getSurrogateKeys()) {
+            mResponseKeys.computeIfPresent(surrogateKey, (key, cacheKeys) -> {
+                cacheKeys.remove(cacheKey);
+                return cacheKeys.isEmpty() ? null : cacheKeys;
+            });
+
+            CachedResponse current = mResponses.get(cacheKey);
+            if (current != null && current.getSurrogateKeys().contains(surrogateKey)) {
+                mResponseKeys.computeIfAbsent(surrogateKey, key -> ConcurrentHashMap.newKeySet()).add(cacheKey);
+            }
+        }
+    }
+
+    /**
+     * A complete cached response body and the headers needed to replay it.
+     */
+    public static class CachedResponse {
+        private final int status;
+        private final ByteString body;
+        private final String contentType;
+        private final Map<String, String> headers;
+        private final Set<String> surrogateKeys;
+        private final long cachedAt;
+
+        public CachedResponse(int status, @Nonnull ByteString body, @Nullable String contentType,
+                              @Nonnull Map<String, String> headers, @Nonnull Set<String> surrogateKeys) {
+            this.status = status;
+            this.body = body;
+            this.contentType = contentType;
+            this.headers = Collections.unmodifiableMap(headers);
+            this.surrogateKeys = Collections.unmodifiableSet(surrogateKeys);
+            this.cachedAt = System.currentTimeMillis();
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        @Nonnull
+        public ByteString getBody() {
+            return body;
+        }
+
+        @Nullable
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Nonnull
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        @Nonnull
+        public Set<String> getSurrogateKeys() {
+            return surrogateKeys;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() - cachedAt > ENTRY_TTL_MS;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package services;
+
+import com.typesafe.config.Config;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import akka.actor.ActorSystem;
+import dao.AccountDao;
+import dao.DeviceDao;
+import dao.ResubscribeJobDao;
+import enums.pushservices.FailureType;
+import enums.pushservices.PlatformType;
+import exceptions.pushservices.MessageValidationException;
+import helpers.AlertHelper;
+import interfaces.pushservices.TaskQueueListener;
+import models.accounts.Account;
+import models.accounts.PlatformAccount;
+import models.devices.Device;
+import models.devices.ResubscribeJob;
+import models.pushservices.app.UpdatedRecipient;
+import models.pushservices.db.Message;
+import models.pushservices.db.PlatformFailure;
+import models.pushservices.db.Recipient;
+import play.Logger;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+import services.pushservices.TaskQueue;
+
+/**
+ * Runs resubscribe broadcasts, which ask every device of an account to resend its route
+ * subscriptions, as background jobs.
+ * <p>
+ * Only device ids and tokens are read, a page at a time, and each page is sent as one wave.
+ * Waves of "resubscribe.waveSize" devices are sent every "resubscribe.waveInterval", so the
+ * devices' subscribe requests are spread out rather than all arriving at once. Progress is saved
+ * after every wave, and running jobs are resumed when the application starts. Every wave is
+ * claimed in the datastore first, so a job resumed by several servers only runs on one.
+ */
+@Singleton
+public class ResubscribeBroadcaster {
+    private static final String WAVE_SIZE_CONFIG = "resubscribe.waveSize";
+    private static final String WAVE_INTERVAL_CONFIG = "resubscribe.waveInterval";
+    private static final int DEFAULT_WAVE_SIZE = 500;
+    private static final long DEFAULT_WAVE_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private final ResubscribeJobDao mJobDao;
+    private final DeviceDao mDeviceDao;
+    private final AccountDao mAccountDao;
+    private final TaskQueue mTaskQueue;
+    private final ActorSystem mActorSystem;
+    private final ExecutionPools mExecutionPools;
+    private final int mWaveSize;
+    private final FiniteDuration mWaveInterval;
+
+    @Inject
+    public ResubscribeBroadcaster(Config config, ResubscribeJobDao jobDao, DeviceDao deviceDao, AccountDao accountDao,
+                                  TaskQueue taskQueue, ActorSystem actorSystem, ExecutionPools executionPools) {
+        mJobDao = jobDao;
+        mDeviceDao = deviceDao;
+        mAccountDao = accountDao;
+        mTaskQueue = taskQueue;
+        mActorSystem = actorSystem;
+        mExecutionPools = executionPools;
+
+        mWaveSize = config.hasPath(WAVE_SIZE_CONFIG)
+                ? config.getInt(WAVE_SIZE_CONFIG)
+                : DEFAULT_WAVE_SIZE;
+        mWaveInterval = Duration.create(config.hasPath(WAVE_INTERVAL_CONFIG)
+                ? config.getDuration(WAVE_INTERVAL_CONFIG, TimeUnit.MILLISECONDS)
+                : DEFAULT_WAVE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start a resubscribe broadcast to all of an account's devices, unless one is already running.
+     *
+     * @param account account whose devices should resubscribe.
+     * @return the new or running job, or null if the job couldn't be saved.
+     */
+    @Nullable
+    public synchronized ResubscribeJob startJob(@Nonnull Account account) {
+        List<ResubscribeJob> runningJobs = mJobDao.getRunningJobs(account.apiKey);
+        if (!runningJobs.isEmpty()) {
+            return runningJobs.get(0);
+        }
+
+        ResubscribeJob job = new ResubscribeJob();
+        job.setApiKey(account.apiKey);
+        job.setStatus(ResubscribeJob.Status.RUNNING);
+        job.setDeviceCount(mDeviceDao.getAccountDeviceCount(account.apiKey));
+        if (!mJobDao.saveJob(job)) {
+            return null;
+        }
+
+        Logger.info(String.format("Started resubscribe job %d for %d devices.", job.getId(), job.getDeviceCount()));
+        scheduleWave(job.getId(), job.getTimeUpdated(), Duration.Zero());
+        return job;
+    }
+
+    /**
+     * Resume the jobs which were running when the application stopped.
+     */
+    public void resumeJobs() {
+        for (ResubscribeJob job : mJobDao.getRunningJobs(null)) {
+            Logger.info(String.format("Resuming resubscribe job %d after device %d.", job.getId(), job.getLastDeviceId()));
+            scheduleWave(job.getId(), job.getTimeUpdated(), mWaveInterval);
+        }
+    }
+
+    /**
+     * Get the progress of a job.
+     *
+     * @param jobId id of the job.
+     * @return the job, or null if there is no job for the id.
+     */
+    @Nullable
+    public ResubscribeJob getJob(long jobId) {
+        return mJobDao.getJob(jobId);
+    }
+
+    private void scheduleWave(long jobId, @Nonnull Date lastTimeUpdated, @Nonnull FiniteDuration delay) {
+        mActorSystem.scheduler().scheduleOnce(delay, () -> {
+            try {
+                CompletableFuture.runAsync(() -> sendWave(jobId, lastTimeUpdated), mExecutionPools.getDatabaseExecutor());
+
+            } catch (RejectedExecutionException e) {
+                Logger.warn(String.format("Delaying resubscribe job %d: %s", jobId, e.getMessage()));
+                scheduleWave(jobId, lastTimeUpdated, mWaveInterval);
+            }
+        }, mActorSystem.dispatcher());
+    }
+
+    /**
+     * Claim and send the next wave of a job, save its progress, and schedule the wave after it.
+     *
+     * @param lastTimeUpdated update time of the job when this server last saw or saved it.
+     */
+    private void sendWave(long jobId, @Nonnull Date lastTimeUpdated) {
+        Date claimedAt = mJobDao.claimWave(jobId, lastTimeUpdated);
+        if (claimedAt == null) {
+            Logger.info(String.format("Resubscribe job %d is finished or running on another server.", jobId));
+            return;
+        }
+
+        ResubscribeJob job = mJobDao.getJob(jobId);
+        if (job == null || job.getStatus() != ResubscribeJob.Status.RUNNING) {
+            return;
+        }
+
+        try {
+            Account account = mAccountDao.getAccountForKey(job.getApiKey());
+            if (account == null || !account.active || account.platformAccounts == null) {
+                Logger.error(String.format("Resubscribe job %d has no active account.", jobId));
+                job.setStatus(ResubscribeJob.Status.FAILED);
+                mJobDao.saveJob(job);
+                return;
+            }
+
+            List<Device> devices = mDeviceDao.getAccountDeviceTokens(job.getApiKey(), job.getLastDeviceId(), mWaveSize);
+            if (!devices.isEmpty()) {
+                sendMessages(devices, account);
+                job.setLastDeviceId(devices.get(devices.size() - 1).getId());
+                job.setSentCount(job.getSentCount() + devices.size());
+            }
+
+            if (devices.size() < mWaveSize) {
+                job.setStatus(ResubscribeJob.Status.COMPLETED);
+                Logger.info(String.format("Completed resubscribe job %d for %d devices.", jobId, job.getSentCount()));
+            }
+            mJobDao.saveJob(job);
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error sending resubscribe job %d wave.", jobId), e);
+        }
+
+        if (job.getStatus() == ResubscribeJob.Status.RUNNING) {
+            ResubscribeJob savedJob = mJobDao.getJob(jobId);
+            scheduleWave(jobId, savedJob != null ? savedJob.getTimeUpdated() : claimedAt, mWaveInterval);
+        }
+    }
+
+    /**
+     * Send a resubscribe message to a wave of devices, using one of each platform.
+     */
+    private void sendMessages(@Nonnull List<Device> devices, @Nonnull Account account) {
+        for (PlatformAccount platformAccount : account.platformAccounts) {
+            if (platformAccount.platformType.equals(PlatformType.SERVICE_GCM)) {
+                List<Message> messages = AlertHelper.getResubscribeMessages(devices, platformAccount);
+                if (!messages.isEmpty()) {
+                    try {
+                        mTaskQueue.queueMessages(messages, new ResubscribeCallback());
+
+                    } catch (MessageValidationException e) {
+                        Logger.error(String.format("Error sending Task to push-services: %s", e.getMessage()));
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Callback received from provider with results of device message.
+     */
+    private class ResubscribeCallback implements TaskQueueListener {
+        @Override
+        public void updatedRecipients(@Nonnull List<UpdatedRecipient> updatedRecipients) {
+            Logger.info(String.format("%d recipients require registration updates.", updatedRecipients.size()));
+
+            for (UpdatedRecipient recipientUpdate : updatedRecipients) {
+                Recipient staleRecipient = recipientUpdate.getStaleRecipient();
+                Recipient updatedRecipient = recipientUpdate.getUpdatedRecipient();
+
+                mDeviceDao.saveUpdatedToken(staleRecipient.getToken(), updatedRecipient.getToken());
+            }
+        }
+
+        @Override
+        public void failedRecipients(@Nonnull List<Recipient> failedRecipients) {
+            Logger.warn(String.format("%d recipients failed fatally.", failedRecipients.size()));
+
+            for (Recipient recipient : failedRecipients) {
+                FailureType failure = recipient.getPlatformFailure().getFailureType();
+
+                if (failure != null && (failure == FailureType.RECIPIENT_REGISTRATION_INVALID ||
+                        failure == FailureType.RECIPIENT_NOT_REGISTERED ||
+                        failure == FailureType.MESSAGE_PACKAGE_INVALID)) {
+                    mDeviceDao.removeDevice(recipient.getToken());
+                }
+            }
+        }
+
+        @Override
+        public void messageCompleted(@Nonnull Message originalMessage) {
+            Logger.info(String.format("Message %d completed.", originalMessage.getId()));
+        }
+
+        @Override
+        public void messageFailed(@Nonnull Message originalMessage, PlatformFailure failure) {
+            Logger.info(String.format("Message %d failed - %s.", originalMessage.getId(), failure.getFailureMessage()));
+        }
+    }
+}
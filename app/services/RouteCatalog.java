@@ -0,0 +1,153 @@
+package services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import dao.AgencyDao;
+import models.alerts.Route;
+import models.snapshots.AgencySnapshot;
+import models.snapshots.RouteSnapshot;
+
+/**
+ * The valid routeIds of each agency, by canonical (trimmed, lower case) id, for validating route
+ * subscriptions without loading any routes, alerts or locations.
+ * <p>
+ * Catalogs are built from the published agency snapshots, so they are refreshed whenever an
+ * agency is saved. Agencies which have not been published fall back to querying only their
+ * routeIds, and are only kept if they have any.
+ */
+@Singleton
+public class RouteCatalog {
+    private static final long FALLBACK_CATALOG_TTL_MS = TimeUnit.SECONDS.toMillis(90);
+
+    private final Map<String, Catalog> mCatalogs = new ConcurrentHashMap<>();
+    private final AgencySnapshotStore mSnapshotStore;
+    private final AgencyDao mAgencyDao;
+
+    @Inject
+    public RouteCatalog(AgencySnapshotStore snapshotStore, AgencyDao agencyDao) {
+        mSnapshotStore = snapshotStore;
+        mAgencyDao = agencyDao;
+    }
+
+    /**
+     * Get the canonical form of a routeId, as used for matching.
+     *
+     * @param routeId a routeId.
+     * @return trimmed, lower case routeId.
+     */
+    @Nonnull
+    public static String canonicalRouteId(@Nonnull String routeId) {
+        return routeId.trim().toLowerCase(Locale.US);
+    }
+
+    /**
+     * Match requested routeIds against an agency's routes, ignoring case and whitespace.
+     *
+     * @param agencyId id of the agency.
+     * @param routeIds requested routeIds.
+     * @return references to the matched routes (holding only their routeId), in request order.
+     */
+    @Nonnull
+    public List<Route> getRoutes(String agencyId, @Nonnull List<String> routeIds) {
+        List<Route> routes = new ArrayList<>();
+        if (agencyId == null) {
+            return routes;
+        }
+
+        Catalog catalog = getCatalog(agencyId);
+        Set<String> matchedRouteIds = new LinkedHashSet<>();
+        for (String routeId : routeIds) {
+            String savedRouteId = routeId != null ? catalog.routeIds.get(canonicalRouteId(routeId)) : null;
+            if (savedRouteId != null) {
+                matchedRouteIds.add(savedRouteId);
+            }
+        }
+
+        for (String routeId : matchedRouteIds) {
+            routes.add(mAgencyDao.getRouteReference(routeId));
+        }
+        return routes;
+    }
+
+    /**
+     * Get the number of agencies with a catalog.
+     *
+     * @return cached catalog count.
+     */
+    public int getCatalogCount() {
+        return mCatalogs.size();
+    }
+
+    /**
+     * Get the current catalog of an agency, rebuilding it if a newer snapshot of the agency has
+     * been published since it was built.
+     */
+    @Nonnull
+    private Catalog getCatalog(@Nonnull String agencyId) {
+        Catalog catalog = mCatalogs.get(agencyId);
+        AgencySnapshot agencySnapshot = mSnapshotStore.get(agencyId);
+
+        if (agencySnapshot != null) {
+            if (catalog == null || catalog.snapshot != agencySnapshot) {
+                List<String> routeIds = new ArrayList<>();
+                for (RouteSnapshot route : agencySnapshot.getRoutes()) {
+                    routeIds.add(route.getRouteId());
+                }
+                catalog = new Catalog(agencySnapshot, routeIds);
+                mCatalogs.put(agencyId, catalog);
+            }
+
+        } else if (catalog == null || catalog.isExpired()) {
+            catalog = new Catalog(null, mAgencyDao.getRouteIds(agencyId));
+
+            // Unknown agency ids come from clients, so only agencies with saved routes are kept
+            // (a repeated miss is answered by the route query cache).
+            if (!catalog.routeIds.isEmpty()) {
+                mCatalogs.put(agencyId, catalog);
+            } else {
+                mCatalogs.remove(agencyId);
+            }
+        }
+        return catalog;
+    }
+
+    /**
+     * Immutable catalog of one agency's routeIds.
+     */
+    private static class Catalog {
+        private final AgencySnapshot snapshot;
+        private final Map<String, String> routeIds;
+        private final long builtAt;
+
+        private Catalog(@Nullable AgencySnapshot snapshot, @Nonnull List<String> savedRouteIds) {
+            Map<String, String> canonicalRouteIds = new HashMap<>();
+            for (String routeId : savedRouteIds) {
+                if (routeId != null && !routeId.trim().isEmpty()) {
+                    canonicalRouteIds.putIfAbsent(canonicalRouteId(routeId), routeId);
+                }
+            }
+
+            this.snapshot = snapshot;
+            this.routeIds = Collections.unmodifiableMap(canonicalRouteIds);
+            this.builtAt = System.currentTimeMillis();
+        }
+
+        private boolean isExpired() {
+            return snapshot == null && System.currentTimeMillis() - builtAt > FALLBACK_CATALOG_TTL_MS;
+        }
+    }
+}
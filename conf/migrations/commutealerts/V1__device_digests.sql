@@ -0,0 +1,12 @@
+-- Fixed width digests of devices.device_id and devices.token for indexed device lookups.
+-- The digest is the first 64 bits of the SHA-256 of the value (see Device.digest()).
+--
+-- Adding nullable columns without a default doesn't rewrite the table, and the indexes are
+-- built concurrently so writes continue while they build. Existing rows are filled in by the
+-- DeviceDigestBackfill job in small batches after the application starts.
+
+alter table device_information.devices add column if not exists device_id_digest bigint;
+alter table device_information.devices add column if not exists token_digest bigint;
+
+create index concurrently if not exists ix_devices_device_id_digest on device_information.devices (device_id_digest);
+create index concurrently if not exists ix_devices_token_digest on device_information.devices (token_digest);
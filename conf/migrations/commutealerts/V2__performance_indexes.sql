@@ -0,0 +1,13 @@
+-- Indexes for the subscription fanout and the device, route and alert lookups. Most of these
+-- were created by hand on production; "if not exists" makes this a no-op where they already are.
+--
+-- Subscriptions are fanned out by route, then joined to their devices, so the composite index
+-- answers the fanout from the index alone. Account devices are paged by (account_id, id).
+
+create index concurrently if not exists ix_subscriptions_route_id_device_id on device_information.subscriptions (route_id, device_id);
+create index concurrently if not exists ix_subscriptions_device_id on device_information.subscriptions (device_id);
+create index concurrently if not exists ix_devices_account_id_id on device_information.devices (account_id, id);
+create index concurrently if not exists ix_routes_agency_id on agency_alerts.routes (agency_id);
+create index concurrently if not exists ix_alerts_route_id on agency_alerts.alerts (route_id);
+create index concurrently if not exists ix_locations_alert_id on agency_alerts.locations (alert_id);
+create index concurrently if not exists ix_accounts_api_key on api_accounts.accounts (api_key);
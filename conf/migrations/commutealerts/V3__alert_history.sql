@@ -0,0 +1,27 @@
+-- Append-only alert history, partitioned by the month each alert was first published.
+--
+-- Rows are only ever inserted, and updated once to set ended_at when the alert is removed from
+-- the feed. Alerts which are still published (ended_at is null) are the active set. Monthly
+-- partitions are created ahead of time by the AlertHistoryRecorder, which also retires old
+-- history by dropping whole partitions.
+
+create sequence if not exists alert_history_id_seq increment by 1;
+
+create table if not exists agency_alerts.alert_history (
+  id                            bigint not null,
+  agency_id                     varchar(255) not null,
+  route_id                      varchar(255) not null,
+  alert_identity                varchar(64) not null,
+  type                          varchar(255),
+  message_title                 text,
+  message_subtitle              text,
+  message_body                  text,
+  external_uri                  text,
+  high_priority                 boolean default false,
+  last_updated                  timestamp without time zone,
+  started_at                    timestamp without time zone not null,
+  ended_at                      timestamp without time zone
+) partition by range (started_at);
+
+create or replace view agency_alerts.active_alert_history as
+  select * from agency_alerts.alert_history where ended_at is null;
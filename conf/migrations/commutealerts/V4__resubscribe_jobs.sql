@@ -0,0 +1,17 @@
+-- Resubscribe jobs, which record the progress of each device resubscribe push so that a job
+-- interrupted by a restart resumes from the last device it sent to.
+
+create sequence if not exists resubscribe_job_id_seq increment by 1;
+
+create table if not exists device_information.resubscribe_jobs (
+  id                            bigint not null,
+  api_key                       varchar(255),
+  status                        varchar(9),
+  last_device_id                bigint,
+  sent_count                    bigint not null,
+  device_count                  bigint not null,
+  time_started                  timestamp without time zone,
+  time_updated                  timestamp without time zone,
+  constraint ck_resubscribe_jobs_status check ( status in ('RUNNING','COMPLETED','FAILED')),
+  constraint pk_resubscribe_jobs primary key (id)
+);
@@ -13,6 +13,8 @@ import models.accounts.PlatformAccount;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -72,4 +74,21 @@ public class AccountDaoTest extends CommuteTestApplication {
         // Remove it.
         assertTrue(mAccountDao.removeAccount(updatedAccount.id));
     }
+
+    @Test
+    public void testAccountDirectory() {
+        Account newAccount = testModelHelper.createTestAccount();
+
+        // The missing account is remembered until an account is saved for the key.
+        assertNull(mAccountDao.getAccountForKey(newAccount.apiKey));
+        assertTrue(mAccountDao.saveAccount(newAccount));
+
+        Account savedAccount = mAccountDao.getAccountForKey(newAccount.apiKey);
+        assertNotNull(savedAccount);
+        assertSame(savedAccount, mAccountDao.getAccountForKey(newAccount.apiKey));
+
+        // Removing the account forgets it.
+        assertTrue(mAccountDao.removeAccount(savedAccount.id));
+        assertNull(mAccountDao.getAccountForKey(newAccount.apiKey));
+    }
 }
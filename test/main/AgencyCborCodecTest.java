@@ -0,0 +1,97 @@
+package main;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import models.alerts.Agency;
+import models.snapshots.AgencySnapshot;
+import models.snapshots.RouteSnapshot;
+import play.Logger;
+import play.libs.Json;
+import serializers.AgencyCborCodec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compact agency encoding test, including a size and speed comparison against JSON.
+ */
+public class AgencyCborCodecTest extends CommuteTestApplication {
+    private static final int BENCHMARK_ITERATIONS = 200;
+    private static AgencySnapshot septaAgency;
+
+    @BeforeClass
+    public static void setup() throws IOException {
+        septaAgency = AgencySnapshot.from(TestModelHelper.loadSeptaAgency());
+    }
+
+    @Test
+    public void testAgencyRoundTrip() throws IOException {
+        byte[] cborBytes = AgencyCborCodec.encode(septaAgency);
+        Agency decodedAgency = AgencyCborCodec.decode(cborBytes);
+
+        assertNotNull(decodedAgency);
+        assertEquals(Json.toJson(septaAgency), Json.toJson(AgencySnapshot.from(decodedAgency)));
+    }
+
+    @Test
+    public void testMetadataExcludesRoutes() throws IOException {
+        byte[] agencyBytes = AgencyCborCodec.encode(septaAgency);
+        byte[] metadataBytes = AgencyCborCodec.encodeMetadata(Collections.singletonList(septaAgency));
+
+        assertTrue(metadataBytes.length < agencyBytes.length);
+    }
+
+    @Test
+    public void testRouteEncoding() throws IOException {
+        assertFalse(septaAgency.getRoutes().isEmpty());
+        RouteSnapshot route = septaAgency.getRoutes().get(0);
+        byte[] routeBytes = AgencyCborCodec.encode(route);
+
+        assertTrue(routeBytes.length > 0);
+        assertTrue(routeBytes.length < Json.mapper().writeValueAsBytes(route).length);
+    }
+
+    @Test
+    public void testCompareWithJson() throws IOException {
+        byte[] jsonBytes = Json.mapper().writeValueAsBytes(septaAgency);
+        byte[] cborBytes = AgencyCborCodec.encode(septaAgency);
+
+        long jsonEncodeStart = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            Json.mapper().writeValueAsBytes(septaAgency);
+        }
+        long jsonEncodeNanos = System.nanoTime() - jsonEncodeStart;
+
+        long cborEncodeStart = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            AgencyCborCodec.encode(septaAgency);
+        }
+        long cborEncodeNanos = System.nanoTime() - cborEncodeStart;
+
+        long jsonDecodeStart = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            Json.mapper().readTree(jsonBytes);
+        }
+        long jsonDecodeNanos = System.nanoTime() - jsonDecodeStart;
+
+        long cborDecodeStart = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            AgencyCborCodec.decode(cborBytes);
+        }
+        long cborDecodeNanos = System.nanoTime() - cborDecodeStart;
+
+        Logger.info(String.format("Agency size: json %d bytes, cbor %d bytes.", jsonBytes.length, cborBytes.length));
+        Logger.info(String.format("Agency encode: json %dus, cbor %dus.",
+                jsonEncodeNanos / BENCHMARK_ITERATIONS / 1000, cborEncodeNanos / BENCHMARK_ITERATIONS / 1000));
+        Logger.info(String.format("Agency decode: json %dus, cbor %dus.",
+                jsonDecodeNanos / BENCHMARK_ITERATIONS / 1000, cborDecodeNanos / BENCHMARK_ITERATIONS / 1000));
+
+        assertTrue(cborBytes.length < jsonBytes.length);
+    }
+}
@@ -12,15 +12,23 @@ import java.util.TimeZone;
 
 import enums.AlertType;
 import enums.TransitType;
+import helpers.AlertHelper;
+import io.ebean.EbeanServer;
+import models.AlertModifications;
+import models.accounts.Account;
 import models.alerts.Agency;
 import models.alerts.Alert;
 import models.alerts.Location;
 import models.alerts.Route;
+import models.devices.Device;
+import models.devices.Subscription;
+import play.inject.BindingKey;
 
 import static java.util.Collections.singletonList;
 import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertFalse;
 import static junit.framework.TestCase.assertNotNull;
+import static junit.framework.TestCase.assertSame;
 import static junit.framework.TestCase.assertTrue;
 
 /**
@@ -64,6 +72,22 @@ public class AgencyDaoTest extends CommuteTestApplication {
         assertEquals(1, updatedAgency.getRoutes().get(0).getAlerts().get(0).getLocations().size());
     }
 
+    @Test
+    public void testDatabaseAgencyReplicaRead() {
+        // Without a configured replica, stale-tolerant reads use the primary server.
+        EbeanServer ebeanServer = application.injector().instanceOf(EbeanServer.class);
+        EbeanServer readEbeanServer = application.injector().instanceOf(
+                new BindingKey<>(EbeanServer.class).qualifiedWith(Constants.REPLICA_DATABASE_SERVER_NAME));
+        assertSame(ebeanServer, readEbeanServer);
+
+        assertTrue(mAgencyDao.saveAgency(testModelHelper.createTestAgency()));
+        assertTrue(mAgencyDao.getAgencyIds().contains(TestModelHelper.AGENCY_ID));
+
+        Agency staleAgency = mAgencyDao.getAgency(TestModelHelper.AGENCY_ID, true);
+        assertNotNull(staleAgency);
+        assertEquals(1, staleAgency.getRoutes().size());
+    }
+
     @Test
     public void testDatabaseAgencyUpdate() {
         Agency initialAgency = testModelHelper.createTestAgency();
@@ -294,4 +318,116 @@ public class AgencyDaoTest extends CommuteTestApplication {
         assertFalse(routes.get(0).getAlerts().get(0).getLocations().isEmpty());
         assertEquals("new message", routes.get(0).getAlerts().get(0).getLocations().get(0).getMessage());
     }
+
+    @Test
+    public void testDatabaseModificationsSave() {
+        String unchangedRouteId = "test_route_2";
+        Agency initialAgency = testModelHelper.createTestAgency();
+        initialAgency.setRoutes(new ArrayList<>(Arrays.asList(testModelHelper.createTestRoute(),
+                testModelHelper.createTestRoute(unchangedRouteId))));
+        assertTrue(mAgencyDao.saveAgency(initialAgency));
+
+        Agency savedAgency = mAgencyDao.getAgency(TestModelHelper.AGENCY_ID);
+        assertNotNull(savedAgency);
+        Integer unchangedAlertId = mAgencyDao.getRoute(TestModelHelper.AGENCY_ID, unchangedRouteId)
+                .getAlerts().get(0).getId();
+
+        // Add a detour alert to the first route and rename it.
+        Alert newAlert = testModelHelper.createTestAlert();
+        newAlert.setType(AlertType.TYPE_DETOUR);
+        newAlert.setMessageBody("New Alert Message Body");
+
+        Route updatedRoute = testModelHelper.createTestRoute();
+        updatedRoute.setRouteName("Updated Route Name");
+        updatedRoute.setAlerts(Arrays.asList(testModelHelper.createTestAlert(), newAlert));
+
+        Agency updatedAgency = testModelHelper.createTestAgency();
+        updatedAgency.setRoutes(new ArrayList<>(Arrays.asList(updatedRoute,
+                testModelHelper.createTestRoute(unchangedRouteId))));
+
+        AlertModifications modifications = AlertHelper.getAgencyModifications(savedAgency, updatedAgency);
+        assertTrue(mAgencyDao.saveAgencyModifications(savedAgency, updatedAgency, modifications));
+
+        Route fetchedRoute = mAgencyDao.getRoute(TestModelHelper.AGENCY_ID, TestModelHelper.ROUTE_ID);
+        assertNotNull(fetchedRoute);
+        assertEquals("Updated Route Name", fetchedRoute.getRouteName());
+        assertEquals(2, fetchedRoute.getAlerts().size());
+
+        // The unchanged route's alert was not rewritten.
+        Route unchangedRoute = mAgencyDao.getRoute(TestModelHelper.AGENCY_ID, unchangedRouteId);
+        assertNotNull(unchangedRoute);
+        assertEquals(1, unchangedRoute.getAlerts().size());
+        assertEquals(unchangedAlertId, unchangedRoute.getAlerts().get(0).getId());
+    }
+
+    @Test
+    public void testDatabaseModificationsRemove() {
+        assertTrue(mAgencyDao.saveAgency(testModelHelper.createTestAgency()));
+        Agency savedAgency = mAgencyDao.getAgency(TestModelHelper.AGENCY_ID);
+        assertNotNull(savedAgency);
+
+        Agency updatedAgency = testModelHelper.createTestAgency();
+        updatedAgency.getRoutes().get(0).setAlerts(null);
+
+        AlertModifications modifications = AlertHelper.getAgencyModifications(savedAgency, updatedAgency);
+        assertTrue(modifications.hasChangedAlerts());
+        assertTrue(mAgencyDao.saveAgencyModifications(savedAgency, updatedAgency, modifications));
+
+        Route fetchedRoute = mAgencyDao.getRoute(TestModelHelper.AGENCY_ID, TestModelHelper.ROUTE_ID);
+        assertNotNull(fetchedRoute);
+        assertTrue(fetchedRoute.getAlerts() == null || fetchedRoute.getAlerts().isEmpty());
+    }
+
+    @Test
+    public void testDatabaseModificationsSubscribedRouteMissing() {
+        String subscribedRouteId = "test_route_2";
+        Agency initialAgency = testModelHelper.createTestAgency();
+        initialAgency.setRoutes(new ArrayList<>(Arrays.asList(testModelHelper.createTestRoute(),
+                testModelHelper.createTestRoute(subscribedRouteId))));
+        assertTrue(mAgencyDao.saveAgency(initialAgency));
+
+        Account testAccount = testModelHelper.createTestAccount();
+        mAccountDao.saveAccount(testAccount);
+
+        Subscription subscription = new Subscription();
+        subscription.setRoute(mAgencyDao.getRoute(TestModelHelper.AGENCY_ID, subscribedRouteId));
+        Device testDevice = testModelHelper.createTestDevice();
+        subscription.setDevice(testDevice);
+        testDevice.setAccount(testAccount);
+        testDevice.setSubscriptions(singletonList(subscription));
+        assertTrue(mDeviceDao.saveDevice(testDevice));
+
+        try {
+            // The subscribed route drops out of the feed.
+            Agency savedAgency = mAgencyDao.getAgency(TestModelHelper.AGENCY_ID);
+            assertNotNull(savedAgency);
+            Agency updatedAgency = testModelHelper.createTestAgency();
+
+            AlertModifications modifications = AlertHelper.getAgencyModifications(savedAgency, updatedAgency);
+            assertTrue(modifications.hasChangedAlerts());
+            assertTrue(mAgencyDao.saveAgencyModifications(savedAgency, updatedAgency, modifications));
+
+            // The published agency holds the kept route too, as a reload would.
+            assertEquals(2, updatedAgency.getRoutes().size());
+            assertEquals(subscribedRouteId, updatedAgency.getRoutes().get(1).getRouteId());
+            assertTrue(updatedAgency.getRoutes().get(1).getAlerts().isEmpty());
+
+            // The route is kept for its subscription, without its stale alerts.
+            Route missingRoute = mAgencyDao.getRoute(TestModelHelper.AGENCY_ID, subscribedRouteId);
+            assertNotNull(missingRoute);
+            assertTrue(missingRoute.getAlerts() == null || missingRoute.getAlerts().isEmpty());
+
+            // So the next update finds no modifications to send again.
+            Agency resavedAgency = mAgencyDao.getAgency(TestModelHelper.AGENCY_ID);
+            assertFalse(AlertHelper.getAgencyModifications(resavedAgency, testModelHelper.createTestAgency())
+                    .hasChangedAlerts());
+
+        } finally {
+            mDeviceDao.removeDevice(TestModelHelper.TEST_DEVICE_TOKEN);
+            Account savedAccount = mAccountDao.getAccountForKey(TestModelHelper.ACCOUNT_API_KEY);
+            if (savedAccount != null) {
+                mAccountDao.removeAccount(savedAccount.id);
+            }
+        }
+    }
 }
@@ -0,0 +1,58 @@
+package main;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.util.ByteString;
+import models.snapshots.AgencySnapshot;
+import play.libs.Json;
+import serializers.AgencyJsonWriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Streaming agency JSON test.
+ */
+public class AgencyJsonWriterTest extends CommuteTestApplication {
+    private static AgencySnapshot septaAgency;
+
+    @BeforeClass
+    public static void setup() throws IOException {
+        septaAgency = AgencySnapshot.from(TestModelHelper.loadSeptaAgency());
+    }
+
+    @Test
+    public void testStreamMatchesTree() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        AgencyJsonWriter.write(septaAgency, outputStream);
+
+        assertEquals(Json.toJson(septaAgency), Json.parse(outputStream.toByteArray()));
+        assertArrayEquals(Json.mapper().writeValueAsBytes(septaAgency), outputStream.toByteArray());
+    }
+
+    @Test
+    public void testStreamMatchesWrite() throws Exception {
+        Materializer materializer = application.injector().instanceOf(Materializer.class);
+        ByteString body = AgencyJsonWriter.stream(septaAgency, ForkJoinPool.commonPool(), materializer)
+                .runWith(Sink.fold(ByteString.empty(), ByteString::concat), materializer)
+                .toCompletableFuture().get();
+
+        assertArrayEquals(Json.mapper().writeValueAsBytes(septaAgency), body.toArray());
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testStreamRejected() {
+        Materializer materializer = application.injector().instanceOf(Materializer.class);
+        AgencyJsonWriter.stream(septaAgency, command -> {
+            throw new RejectedExecutionException("Executor full");
+        }, materializer);
+    }
+}
@@ -0,0 +1,119 @@
+package main;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.YearMonth;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import dao.AlertHistoryDao;
+import io.ebean.EbeanServer;
+import models.alerts.Agency;
+import models.alerts.AlertHistory;
+import services.AlertHistoryRecorder;
+
+import static main.TestModelHelper.AGENCY_ID;
+import static main.TestModelHelper.ROUTE_ID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Recording, paging and retiring of the partitioned alert history.
+ */
+public class AlertHistoryTest extends CommuteTestApplication {
+    private static final YearMonth RETIRED_MONTH = YearMonth.of(2000, 1);
+
+    private static EbeanServer mEbeanServer;
+    private static AlertHistoryDao mAlertHistoryDao;
+    private static AlertHistoryRecorder mAlertHistoryRecorder;
+
+    private TestModelHelper mTestModelHelper = new TestModelHelper(null);
+
+    @BeforeClass
+    public static void migrate() {
+        // The LifecycleListener (which migrates at startup) is disabled in tests.
+        application.injector().instanceOf(SchemaMigrator.class).migrate();
+
+        mEbeanServer = application.injector().instanceOf(EbeanServer.class);
+        mAlertHistoryDao = application.injector().instanceOf(AlertHistoryDao.class);
+        mAlertHistoryRecorder = application.injector().instanceOf(AlertHistoryRecorder.class);
+    }
+
+    @Before
+    public void setup() {
+        mEbeanServer.createSqlUpdate("delete from agency_alerts.alert_history where agency_id = :agencyId")
+                .setParameter("agencyId", AGENCY_ID)
+                .execute();
+    }
+
+    @Test
+    public void testUnchangedAgency() {
+        assertTrue(mAlertHistoryRecorder.record(mTestModelHelper.createTestAgency()));
+        assertTrue(mAlertHistoryRecorder.record(mTestModelHelper.createTestAgency()));
+
+        List<AlertHistory> activeAlerts = mAlertHistoryDao.getActiveAlerts(AGENCY_ID);
+        assertEquals(1, activeAlerts.size());
+        assertEquals(ROUTE_ID, activeAlerts.get(0).getRouteId());
+        assertEquals(1, getHistory(null, 10).size());
+    }
+
+    @Test
+    public void testChangedAlert() {
+        assertTrue(mAlertHistoryRecorder.record(mTestModelHelper.createTestAgency()));
+
+        Agency agency = mTestModelHelper.createTestAgency();
+        agency.getRoutes().get(0).getAlerts().get(0).setMessageBody("Updated Alert Message Body");
+        assertTrue(mAlertHistoryRecorder.record(agency));
+
+        // The old alert ended and the updated alert started.
+        List<AlertHistory> history = getHistory(null, 10);
+        assertEquals(2, history.size());
+        assertEquals("Updated Alert Message Body", history.get(0).getMessageBody());
+        assertNull(history.get(0).getEndedAt());
+        assertNotNull(history.get(1).getEndedAt());
+        assertEquals(1, mAlertHistoryDao.getActiveAlerts(AGENCY_ID).size());
+    }
+
+    @Test
+    public void testHistoryPages() {
+        for (int i = 0; i < 3; i++) {
+            Agency agency = mTestModelHelper.createTestAgency();
+            agency.getRoutes().get(0).getAlerts().get(0).setMessageBody("Alert Message Body " + i);
+            assertTrue(mAlertHistoryRecorder.record(agency));
+        }
+
+        List<AlertHistory> firstPage = getHistory(null, 2);
+        assertEquals(2, firstPage.size());
+
+        List<AlertHistory> secondPage = getHistory(firstPage.get(1).getId(), 2);
+        assertEquals(1, secondPage.size());
+        assertEquals("Alert Message Body 0", secondPage.get(0).getMessageBody());
+
+        // Alerts which ended before the range are not returned.
+        Date future = new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1));
+        List<AlertHistory> laterHistory = mAlertHistoryDao.getRouteHistory(AGENCY_ID, ROUTE_ID, future,
+                new Date(future.getTime() + TimeUnit.DAYS.toMillis(1)), null, 10);
+        assertEquals(1, laterHistory.size());
+    }
+
+    @Test
+    public void testRetirePartition() {
+        assertTrue(mAlertHistoryDao.createPartition(RETIRED_MONTH));
+        assertTrue(mAlertHistoryDao.getPartitionMonths().contains(RETIRED_MONTH));
+
+        assertTrue(mAlertHistoryDao.dropPartition(RETIRED_MONTH));
+        assertFalse(mAlertHistoryDao.getPartitionMonths().contains(RETIRED_MONTH));
+    }
+
+    private List<AlertHistory> getHistory(Long beforeId, int limit) {
+        Date now = new Date();
+        return mAlertHistoryDao.getRouteHistory(AGENCY_ID, ROUTE_ID, new Date(now.getTime() - TimeUnit.DAYS.toMillis(1)),
+                new Date(now.getTime() + TimeUnit.DAYS.toMillis(1)), beforeId, limit);
+    }
+}
@@ -0,0 +1,59 @@
+package main;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import helpers.BulkRecordReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streamed reading of bulk device records.
+ */
+public class BulkRecordReaderTest extends CommuteTestApplication {
+
+    @Test
+    public void testJsonArray() throws IOException {
+        List<JsonNode> records = readRecords("[{\"device_uuid\": \"a\"}, {\"device_uuid\": \"b\"}]");
+        assertEquals(2, records.size());
+        assertEquals("b", records.get(1).path("device_uuid").asText());
+    }
+
+    @Test
+    public void testNewlineDelimitedJson() throws IOException {
+        List<JsonNode> records = readRecords("{\"device_uuid\": \"a\"}\n{\"device_uuid\": \"b\"}\n\n");
+        assertEquals(2, records.size());
+        assertEquals("a", records.get(0).path("device_uuid").asText());
+    }
+
+    @Test
+    public void testEmptyBody() throws IOException {
+        assertTrue(readRecords("").isEmpty());
+        assertTrue(readRecords("[]").isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidJson() throws IOException {
+        readRecords("{\"device_uuid\": \"a\"}\n{\"device_uuid\": ");
+    }
+
+    private static List<JsonNode> readRecords(String body) throws IOException {
+        List<JsonNode> records = new ArrayList<>();
+        try (BulkRecordReader reader = new BulkRecordReader(
+                new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)))) {
+            JsonNode record;
+            while ((record = reader.next()) != null) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+}
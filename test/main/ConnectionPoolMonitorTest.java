@@ -0,0 +1,50 @@
+package main;
+
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import io.ebean.EbeanServer;
+import services.ConnectionPoolMonitor;
+import services.InstrumentedDataSource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instrumentation of the commutealerts connection pool.
+ */
+public class ConnectionPoolMonitorTest extends CommuteTestApplication {
+
+    @Test
+    public void testPoolMetrics() {
+        EbeanServer ebeanServer = application.injector().instanceOf(EbeanServer.class);
+        ebeanServer.createSqlQuery("select 1 as one").findOne();
+
+        ConnectionPoolMonitor connectionPoolMonitor = application.injector().instanceOf(ConnectionPoolMonitor.class);
+        Map<String, Object> poolMetrics = connectionPoolMonitor.getMetrics().get(Constants.DATABASE_SERVER_NAME);
+        assertNotNull(poolMetrics);
+        assertTrue((Long) poolMetrics.get("acquisitions") > 0);
+        assertNotNull(poolMetrics.get("waitHistogram"));
+        assertNotNull(poolMetrics.get("maxSize"));
+    }
+
+    @Test
+    public void testLeakDetection() throws Exception {
+        EbeanServer ebeanServer = application.injector().instanceOf(EbeanServer.class);
+        DataSource dataSource = ebeanServer.getPluginApi().getDataSource();
+        assertTrue(dataSource instanceof InstrumentedDataSource);
+
+        InstrumentedDataSource instrumentedDataSource = (InstrumentedDataSource) dataSource;
+        try (Connection ignored = instrumentedDataSource.getConnection()) {
+            // The held connection is reported once.
+            assertEquals(1, instrumentedDataSource.checkLeaks(0));
+            assertEquals(0, instrumentedDataSource.checkLeaks(0));
+        }
+        assertEquals(0, instrumentedDataSource.checkLeaks(0));
+    }
+}
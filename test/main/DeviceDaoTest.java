@@ -10,7 +10,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 
 import models.accounts.Account;
@@ -20,6 +22,7 @@ import models.devices.Device;
 import models.devices.Subscription;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -245,4 +248,178 @@ public class DeviceDaoTest extends CommuteTestApplication {
         assertNotNull(fetchedDevice.getSubscriptions());
         assertTrue(CollectionUtils.isEmpty(fetchedDevice.getSubscriptions()));
     }
+
+    @Test
+    public void testDatabaseSubscriptionDiff() {
+        Route route1 = new Route();
+        route1.setRouteId("test_route_1");
+        Route route2 = new Route();
+        route2.setRouteId("test_route_2");
+        Route route3 = new Route();
+        route3.setRouteId("test_route_3");
+
+        Agency updatedAgency = testModelHelper.createTestAgency();
+        updatedAgency.setRoutes(Arrays.asList(route1, route2, route3));
+        mAgencyDao.saveAgency(updatedAgency);
+
+        assertTrue(mDeviceDao.saveDevice(createSubscribedDevice("test_route_1", "test_route_2")));
+        Map<String, Long> initialSubscriptions = getSubscriptionIds();
+        assertEquals(2, initialSubscriptions.size());
+
+        // Resubscribing to the same routes keeps the same rows.
+        assertTrue(mDeviceDao.saveDevice(createSubscribedDevice("test_route_2", "test_route_1")));
+        assertEquals(initialSubscriptions, getSubscriptionIds());
+
+        // Only the changed routes are removed and added.
+        assertTrue(mDeviceDao.saveDevice(createSubscribedDevice("test_route_2", "test_route_3")));
+        Map<String, Long> updatedSubscriptions = getSubscriptionIds();
+        assertEquals(2, updatedSubscriptions.size());
+        assertEquals(initialSubscriptions.get("test_route_2"), updatedSubscriptions.get("test_route_2"));
+        assertFalse(updatedSubscriptions.containsKey("test_route_1"));
+        assertNotNull(updatedSubscriptions.get("test_route_3"));
+    }
+
+    @Test
+    public void testDatabaseBatchSave() {
+        Device subscribedDevice = createSubscribedDevice("test_route_1");
+        assertTrue(mDeviceDao.saveDevice(subscribedDevice));
+        Map<String, Long> initialSubscriptions = getSubscriptionIds();
+
+        // An existing device without subscriptions keeps them, and new devices are added.
+        Device updatedDevice = testModelHelper.createTestDevice();
+        updatedDevice.setAccount(mAccountDao.getAccountForKey(TestModelHelper.ACCOUNT_API_KEY));
+        updatedDevice.setSubscriptions(null);
+        updatedDevice.setUserKey("updated_user");
+
+        Device newDevice = testModelHelper.createTestDevice();
+        newDevice.setDeviceId("batch_id");
+        newDevice.setToken("batch_token");
+        newDevice.setAccount(mAccountDao.getAccountForKey(TestModelHelper.ACCOUNT_API_KEY));
+
+        assertTrue(mDeviceDao.saveDevices(Arrays.asList(updatedDevice, newDevice)));
+        assertEquals(initialSubscriptions, getSubscriptionIds());
+        assertEquals("updated_user", mDeviceDao.getDevice(TestModelHelper.TEST_DEVICE_ID).getUserKey());
+        assertNotNull(mDeviceDao.getDevice("batch_id"));
+
+        // Two records for the same saved device fail the whole batch.
+        Device duplicateDevice = testModelHelper.createTestDevice();
+        duplicateDevice.setDeviceId("other_id");
+        duplicateDevice.setAccount(mAccountDao.getAccountForKey(TestModelHelper.ACCOUNT_API_KEY));
+        Device otherDevice = testModelHelper.createTestDevice();
+        otherDevice.setToken("other_token");
+        otherDevice.setAccount(mAccountDao.getAccountForKey(TestModelHelper.ACCOUNT_API_KEY));
+        assertFalse(mDeviceDao.saveDevices(Arrays.asList(duplicateDevice, otherDevice)));
+
+        mDeviceDao.removeDevice("batch_token");
+    }
+
+    @Test
+    public void testDatabaseDeviceTokenPages() {
+        Device firstDevice = testModelHelper.createTestDevice();
+        firstDevice.setAccount(mAccountDao.getAccountForKey(TestModelHelper.ACCOUNT_API_KEY));
+        assertTrue(mDeviceDao.saveDevice(firstDevice));
+
+        Device secondDevice = testModelHelper.createTestDevice();
+        secondDevice.setDeviceId("paged_id");
+        secondDevice.setToken("paged_token");
+        secondDevice.setAccount(mAccountDao.getAccountForKey(TestModelHelper.ACCOUNT_API_KEY));
+        assertTrue(mDeviceDao.saveDevice(secondDevice));
+
+        assertEquals(2, mDeviceDao.getAccountDeviceCount(TestModelHelper.ACCOUNT_API_KEY));
+
+        // Each page starts after the last device id of the previous page.
+        List<Device> firstPage = mDeviceDao.getAccountDeviceTokens(TestModelHelper.ACCOUNT_API_KEY, null, 1);
+        assertEquals(1, firstPage.size());
+        assertEquals(TestModelHelper.TEST_DEVICE_TOKEN, firstPage.get(0).getToken());
+
+        List<Device> secondPage = mDeviceDao.getAccountDeviceTokens(TestModelHelper.ACCOUNT_API_KEY, firstPage.get(0).getId(), 1);
+        assertEquals(1, secondPage.size());
+        assertEquals("paged_token", secondPage.get(0).getToken());
+
+        assertTrue(mDeviceDao.getAccountDeviceTokens(TestModelHelper.ACCOUNT_API_KEY, secondPage.get(0).getId(), 1).isEmpty());
+
+        mDeviceDao.removeDevice("paged_token");
+    }
+
+    @Test
+    public void testRegistrationCache() {
+        Device device = testModelHelper.createTestDevice();
+        device.setAccount(mAccountDao.getAccountForKey(TestModelHelper.ACCOUNT_API_KEY));
+        assertTrue(mDeviceDao.saveDevice(device));
+
+        assertTrue(mDeviceDao.isRegistered(TestModelHelper.TEST_DEVICE_ID, TestModelHelper.TEST_DEVICE_TOKEN));
+        assertFalse(mDeviceDao.isRegistered("other_id", TestModelHelper.TEST_DEVICE_TOKEN));
+
+        // Refreshed tokens are forgotten, and the new registration is cached once it is read.
+        String newDeviceToken = "refreshed_test_token";
+        assertTrue(mDeviceDao.saveUpdatedToken(TestModelHelper.TEST_DEVICE_TOKEN, newDeviceToken));
+        assertFalse(mDeviceDao.isRegistered(TestModelHelper.TEST_DEVICE_ID, TestModelHelper.TEST_DEVICE_TOKEN));
+        assertFalse(mDeviceDao.isRegistered(TestModelHelper.TEST_DEVICE_ID, newDeviceToken));
+
+        assertNotNull(mDeviceDao.getDevice(TestModelHelper.TEST_DEVICE_ID, newDeviceToken));
+        assertTrue(mDeviceDao.isRegistered(TestModelHelper.TEST_DEVICE_ID, newDeviceToken));
+
+        // Removed devices are forgotten.
+        assertTrue(mDeviceDao.removeDevice(newDeviceToken));
+        assertFalse(mDeviceDao.isRegistered(TestModelHelper.TEST_DEVICE_ID, newDeviceToken));
+    }
+
+    @Test
+    public void testDeviceDigests() {
+        assertEquals(Device.digest(TestModelHelper.TEST_DEVICE_TOKEN), Device.digest(TestModelHelper.TEST_DEVICE_TOKEN));
+        assertFalse(Device.digest(TestModelHelper.TEST_DEVICE_TOKEN).equals(Device.digest(TestModelHelper.TEST_DEVICE_ID)));
+        assertNull(Device.digest(null));
+
+        Device device = testModelHelper.createTestDevice();
+        device.setAccount(mAccountDao.getAccountForKey(TestModelHelper.ACCOUNT_API_KEY));
+        assertTrue(mDeviceDao.saveDevice(device));
+
+        // Backfill until every device has digests, then look the device up.
+        Long lastDeviceId = null;
+        for (int batch = 0; batch < 1000; batch++) {
+            Long batchLastDeviceId = mDeviceDao.backfillDigests(lastDeviceId, 100);
+            if (batchLastDeviceId == null) {
+                break;
+            }
+            assertFalse(batchLastDeviceId.equals(lastDeviceId != null ? lastDeviceId : 0L));
+            lastDeviceId = batchLastDeviceId;
+        }
+
+        Device fetchedDevice = mDeviceDao.getDevice(TestModelHelper.TEST_DEVICE_ID, TestModelHelper.TEST_DEVICE_TOKEN);
+        assertNotNull(fetchedDevice);
+        assertEquals(Device.digest(TestModelHelper.TEST_DEVICE_TOKEN), fetchedDevice.getTokenDigest());
+        assertEquals(Device.digest(TestModelHelper.TEST_DEVICE_ID), fetchedDevice.getDeviceIdDigest());
+
+        String newDeviceToken = "digested_test_token";
+        assertTrue(mDeviceDao.saveUpdatedToken(TestModelHelper.TEST_DEVICE_TOKEN, newDeviceToken));
+        assertNotNull(mDeviceDao.getDevice(TestModelHelper.TEST_DEVICE_ID, newDeviceToken));
+        assertTrue(mDeviceDao.removeDevice(newDeviceToken));
+        assertNull(mDeviceDao.getDevice(TestModelHelper.TEST_DEVICE_ID));
+    }
+
+    private Device createSubscribedDevice(String... routeIds) {
+        Device device = testModelHelper.createTestDevice();
+        device.setAccount(mAccountDao.getAccountForKey(TestModelHelper.ACCOUNT_API_KEY));
+
+        List<Subscription> subscriptions = new ArrayList<>();
+        for (String routeId : routeIds) {
+            Subscription subscription = new Subscription();
+            subscription.setRoute(mAgencyDao.getRoute(TestModelHelper.AGENCY_ID, routeId));
+            subscriptions.add(subscription);
+        }
+        device.setSubscriptions(subscriptions);
+        return device;
+    }
+
+    private Map<String, Long> getSubscriptionIds() {
+        Device fetchedDevice = mDeviceDao.getDevice(TestModelHelper.TEST_DEVICE_ID);
+        assertNotNull(fetchedDevice);
+        assertNotNull(fetchedDevice.getSubscriptions());
+
+        Map<String, Long> subscriptionIds = new HashMap<>();
+        for (Subscription subscription : fetchedDevice.getSubscriptions()) {
+            subscriptionIds.put(subscription.getRoute().getRouteId(), subscription.getId());
+        }
+        return subscriptionIds;
+    }
 }
@@ -0,0 +1,77 @@
+package main;
+
+import com.typesafe.config.ConfigFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import services.ExecutionPools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Bounded database and cpu execution pools.
+ */
+public class ExecutionPoolsTest extends CommuteTestApplication {
+    private ExecutionPools mExecutionPools;
+
+    @Before
+    public void setup() {
+        mExecutionPools = new ExecutionPools(ConfigFactory.parseString(
+                "executors.database { poolSize = 1, queueSize = 1 }\n" +
+                "executors.cpu { poolSize = 0 }"));
+    }
+
+    @After
+    public void cleanup() {
+        mExecutionPools.shutdown();
+    }
+
+    @Test
+    public void testPoolSizes() {
+        Map<String, Map<String, Long>> metrics = mExecutionPools.getMetrics();
+        assertEquals(Long.valueOf(1), metrics.get(ExecutionPools.DATABASE_POOL).get("poolSize"));
+        assertEquals(Long.valueOf(Runtime.getRuntime().availableProcessors()),
+                metrics.get(ExecutionPools.CPU_POOL).get("poolSize"));
+    }
+
+    @Test
+    public void testSaturatedPoolRejects() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Executor databaseExecutor = mExecutionPools.getDatabaseExecutor();
+
+        databaseExecutor.execute(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        started.await();
+        databaseExecutor.execute(() -> {
+        });
+
+        try {
+            databaseExecutor.execute(() -> {
+            });
+            fail("Expected the saturated pool to reject work.");
+
+        } catch (RejectedExecutionException expected) {
+            Map<String, Long> metrics = mExecutionPools.getMetrics().get(ExecutionPools.DATABASE_POOL);
+            assertEquals(Long.valueOf(1), metrics.get("active"));
+            assertEquals(Long.valueOf(1), metrics.get("queued"));
+            assertEquals(Long.valueOf(1), metrics.get("rejected"));
+
+        } finally {
+            release.countDown();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package main;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+
+import enums.pushservices.PlatformType;
+import io.ebean.EbeanServer;
+import io.ebean.FetchConfig;
+import models.SubscriberToken;
+import models.accounts.Account;
+import models.accounts.PlatformAccount;
+import models.devices.Device;
+import models.devices.Subscription;
+import play.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Alert fanout queries load only device tokens and platform credentials.
+ * <p>
+ * The synthetic dataset defaults to 1000 subscribed devices. Run with -Dfanout.devices=100000 to
+ * compare the full bean, projected bean and flat row fanouts on 100k devices.
+ */
+public class FanoutQueryTest extends CommuteTestApplication {
+    private static final String DEVICE_PREFIX = "fanout_device_";
+    private static final int DEVICE_COUNT = Integer.getInteger("fanout.devices", 1000);
+    private static final int BATCH_SIZE = 500;
+
+    private static EbeanServer mEbeanServer;
+    private static Long mAccountId;
+
+    @BeforeClass
+    public static void initialise() {
+        mEbeanServer = application.injector().instanceOf(EbeanServer.class);
+        TestModelHelper testModelHelper = new TestModelHelper(Calendar.getInstance(TimeZone.getTimeZone("EST")));
+
+        // A large certificate body, which GCM fanouts should never load.
+        Account testAccount = testModelHelper.createTestAccount();
+        testAccount.passwordHash = "password_hash";
+        testAccount.platformAccounts.get(0).certificateBody = String.join("", Collections.nCopies(4096, "c"));
+        mAccountDao.saveAccount(testAccount);
+        mAgencyDao.saveAgency(testModelHelper.createTestAgency());
+
+        Account account = mAccountDao.getAccountForKey(TestModelHelper.ACCOUNT_API_KEY);
+        assertNotNull(account);
+        mAccountId = account.id;
+
+        List<Device> batch = new ArrayList<>();
+        for (int i = 0; i < DEVICE_COUNT; i++) {
+            Subscription subscription = new Subscription();
+            subscription.setRoute(mAgencyDao.getRouteReference(TestModelHelper.ROUTE_ID));
+
+            Device device = testModelHelper.createTestDevice();
+            device.setDeviceId(DEVICE_PREFIX + i);
+            device.setToken(DEVICE_PREFIX + "token_" + i);
+            device.setUserKey("user_" + i);
+            device.setAppKey("app_" + i);
+            device.setAccount(account);
+            device.setSubscriptions(new ArrayList<>(Collections.singletonList(subscription)));
+            batch.add(device);
+
+            if (batch.size() == BATCH_SIZE || i == DEVICE_COUNT - 1) {
+                assertTrue(mDeviceDao.saveDevices(batch));
+                batch = new ArrayList<>();
+            }
+        }
+    }
+
+    @AfterClass
+    public static void shutdown() {
+        mEbeanServer.createSqlUpdate("delete from device_information.subscriptions where device_id in " +
+                "(select id from device_information.devices where device_id like :prefix)")
+                .setParameter("prefix", DEVICE_PREFIX + "%")
+                .execute();
+        mEbeanServer.createSqlUpdate("delete from device_information.devices where device_id like :prefix")
+                .setParameter("prefix", DEVICE_PREFIX + "%")
+                .execute();
+
+        mAgencyDao.removeAgency(TestModelHelper.AGENCY_ID);
+        mAccountDao.removeAccount(mAccountId);
+    }
+
+    @Test
+    public void testSubscriberTokenRows() {
+        List<SubscriberToken> subscriberTokens = mDeviceDao.getRouteSubscriberTokens(TestModelHelper.AGENCY_ID, TestModelHelper.ROUTE_ID);
+        assertEquals(DEVICE_COUNT, subscriberTokens.size());
+
+        Set<String> tokens = new HashSet<>();
+        for (SubscriberToken subscriberToken : subscriberTokens) {
+            assertEquals(mAccountId.longValue(), subscriberToken.getAccountId());
+            tokens.add(subscriberToken.getToken());
+        }
+        assertTrue(tokens.contains(DEVICE_PREFIX + "token_0"));
+        assertEquals(DEVICE_COUNT, tokens.size());
+
+        List<PlatformAccount> platformAccounts = mAccountDao.getPlatformAccounts(PlatformType.SERVICE_GCM,
+                Collections.singleton(mAccountId));
+        assertEquals(1, platformAccounts.size());
+        assertEquals(mAccountId, platformAccounts.get(0).account.id);
+        assertEquals("test_auth_key", platformAccounts.get(0).authorisationKey);
+        assertNotLoaded(platformAccounts.get(0), "certificateBody");
+    }
+
+    @Test
+    public void testFanoutFootprint() {
+        // Rows the original fanout read: every device, subscription and platform account column.
+        // The full and projected bean queries are baselines for the token rows which replaced them.
+        long fullBytes = getFanoutBytes("pg_column_size(d.*) + pg_column_size(s.*)") + getPlatformAccountBytes(true);
+        long projectedBytes = getFanoutBytes("pg_column_size(d.id) + pg_column_size(d.token)") + getPlatformAccountBytes(false);
+        long rowBytes = getFanoutBytes("pg_column_size(d.account_id) + pg_column_size(d.token)") + getPlatformAccountBytes(false);
+
+        long startedAt = System.currentTimeMillis();
+        long heapBefore = getUsedHeap();
+        List<Account> fullAccounts = mEbeanServer.find(Account.class)
+                .fetch("devices", new FetchConfig().query())
+                .fetch("devices.subscriptions", new FetchConfig().query())
+                .fetch("platformAccounts", new FetchConfig().query())
+                .where()
+                .eq("devices.subscriptions.route.routeId", TestModelHelper.ROUTE_ID)
+                .filterMany("devices").eq("subscriptions.route.routeId", TestModelHelper.ROUTE_ID)
+                .findList();
+        long fullHeap = getUsedHeap() - heapBefore;
+        long fullMs = System.currentTimeMillis() - startedAt;
+
+        startedAt = System.currentTimeMillis();
+        heapBefore = getUsedHeap();
+        List<Account> projectedAccounts = mEbeanServer.find(Account.class)
+                .setDisableLazyLoading(true)
+                .select("apiKey")
+                .fetch("devices", "token", new FetchConfig().query())
+                .fetch("platformAccounts", "platformType, packageUri, authorisationKey", new FetchConfig().query())
+                .where()
+                .eq("devices.subscriptions.route.routeId", TestModelHelper.ROUTE_ID)
+                .filterMany("devices").eq("subscriptions.route.routeId", TestModelHelper.ROUTE_ID)
+                .findList();
+        long projectedHeap = getUsedHeap() - heapBefore;
+        long projectedMs = System.currentTimeMillis() - startedAt;
+
+        startedAt = System.currentTimeMillis();
+        heapBefore = getUsedHeap();
+        List<SubscriberToken> subscriberTokens = mDeviceDao.getRouteSubscriberTokens(TestModelHelper.AGENCY_ID, TestModelHelper.ROUTE_ID);
+        long rowHeap = getUsedHeap() - heapBefore;
+        long rowMs = System.currentTimeMillis() - startedAt;
+
+        Logger.info(String.format("Fanout of %d devices: full beans %d bytes, %d heap bytes, %dms; " +
+                        "projected beans %d bytes, %d heap bytes, %dms; token rows %d bytes, %d heap bytes, %dms.",
+                DEVICE_COUNT, fullBytes, fullHeap, fullMs, projectedBytes, projectedHeap, projectedMs,
+                rowBytes, rowHeap, rowMs));
+
+        assertFalse(fullAccounts.isEmpty());
+        assertFalse(projectedAccounts.isEmpty());
+        assertEquals(DEVICE_COUNT, subscriberTokens.size());
+        assertTrue(projectedBytes < fullBytes);
+        assertTrue(rowBytes < fullBytes);
+    }
+
+    private static void assertNotLoaded(Object bean, String property) {
+        Set<String> loadedProperties = mEbeanServer.getBeanState(bean).getLoadedProps();
+        assertNotNull(String.format("%s is fully loaded", bean.getClass().getSimpleName()), loadedProperties);
+        assertFalse(String.format("%s.%s is loaded", bean.getClass().getSimpleName(), property),
+                loadedProperties.contains(property));
+    }
+
+    private static long getFanoutBytes(String columnSizes) {
+        return mEbeanServer.createSqlQuery("select coalesce(sum(" + columnSizes + "), 0) as bytes " +
+                "from device_information.subscriptions s " +
+                "join device_information.devices d on d.id = s.device_id " +
+                "where s.route_id = :routeId")
+                .setParameter("routeId", TestModelHelper.ROUTE_ID)
+                .findOne()
+                .getLong("bytes");
+    }
+
+    private static long getPlatformAccountBytes(boolean allColumns) {
+        return mEbeanServer.createSqlQuery("select coalesce(sum(" + (allColumns
+                ? "pg_column_size(p.*)"
+                : "pg_column_size(p.account_id) + pg_column_size(p.platform) + " +
+                "pg_column_size(p.package_uri) + pg_column_size(p.authorisation_key)") + "), 0) as bytes " +
+                "from api_accounts.platform_accounts p where p.account_id = :accountId")
+                .setParameter("accountId", mAccountId)
+                .findOne()
+                .getLong("bytes");
+    }
+
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
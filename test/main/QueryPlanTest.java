@@ -0,0 +1,281 @@
+package main;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import io.ebean.EbeanServer;
+import io.ebean.SqlRow;
+import io.ebean.Transaction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the main DAO queries through EXPLAIN against the local database, and fails if any of them
+ * would scan a large table sequentially.
+ * <p>
+ * Each DAO method is called with Ebean's SQL logging enabled, and every statement it ran is
+ * explained with its logged bind values. Sequential scans are disabled for the EXPLAIN so the
+ * (small) test tables are planned as if they were large: a "Seq Scan" in the plan then means
+ * there is no index the query can use.
+ */
+public class QueryPlanTest extends CommuteTestApplication {
+    private static final List<String> LARGE_TABLES = Arrays.asList(
+            "devices", "subscriptions", "alerts", "locations", "routes");
+    private static final String SQL_LOGGER = "io.ebean.SQL";
+    private static final String BIND_LOG_START = "--bind(";
+    private static final Pattern STATEMENT_START = Pattern.compile("(?i)\\b(select|with)\\b");
+
+    private static EbeanServer mEbeanServer;
+
+    @BeforeClass
+    public static void migrate() {
+        mEbeanServer = application.injector().instanceOf(EbeanServer.class);
+
+        // The LifecycleListener (which migrates at startup) is disabled in tests.
+        SchemaMigrator schemaMigrator = application.injector().instanceOf(SchemaMigrator.class);
+        schemaMigrator.migrate();
+        assertEquals(0, schemaMigrator.migrate());
+
+        // Saved routes, so the alert and location queries which follow a route query also run.
+        mAgencyDao.saveAgency(new TestModelHelper(null).createTestAgency());
+    }
+
+    @AfterClass
+    public static void removeAgency() {
+        mAgencyDao.removeAgency(TestModelHelper.AGENCY_ID);
+    }
+
+    @Test
+    public void testMigrationStatements() {
+        List<String> statements = SchemaMigrator.getStatements(
+                "-- comment;\n" +
+                "create index a\n  on b (c);\n" +
+                "\n" +
+                "drop index d;");
+
+        assertEquals(Arrays.asList("create index a\n  on b (c)", "drop index d"), statements);
+    }
+
+    @Test
+    public void testInvalidIndexRebuilt() throws SQLException {
+        String createIndex = "create unique index concurrently if not exists ix_migration_test_value " +
+                "on public.migration_test (value)";
+
+        try (Connection connection = mEbeanServer.getPluginApi().getDataSource().getConnection()) {
+            connection.setAutoCommit(true);
+            try {
+                executeStatement(connection, "drop table if exists public.migration_test");
+                executeStatement(connection, "create table public.migration_test (value integer)");
+                executeStatement(connection, "insert into public.migration_test values (1), (1)");
+
+                // A failed concurrent build leaves an invalid index, which "if not exists" skips.
+                try {
+                    SchemaMigrator.executeConcurrently(connection, createIndex);
+                    fail("Unique index built over duplicate values");
+                } catch (SQLException expected) {
+                    assertEquals(Boolean.FALSE, isValidIndex(connection, "ix_migration_test_value"));
+                }
+
+                executeStatement(connection, "delete from public.migration_test " +
+                        "where ctid not in (select min(ctid) from public.migration_test)");
+                SchemaMigrator.executeConcurrently(connection, createIndex);
+                assertEquals(Boolean.TRUE, isValidIndex(connection, "ix_migration_test_value"));
+
+            } finally {
+                executeStatement(connection, "drop table if exists public.migration_test");
+                connection.setAutoCommit(false);
+            }
+        }
+    }
+
+    @Test
+    public void testDeviceLookups() {
+        assertIndexed("getDevice(deviceId)", () -> mDeviceDao.getDevice(TestModelHelper.TEST_DEVICE_ID));
+        assertIndexed("getDevice(deviceId, token)", () -> mDeviceDao.getDevice(TestModelHelper.TEST_DEVICE_ID,
+                TestModelHelper.TEST_DEVICE_TOKEN));
+        assertIndexed("getAccountDeviceTokens", () -> mDeviceDao.getAccountDeviceTokens(
+                TestModelHelper.ACCOUNT_API_KEY, 0L, 500));
+    }
+
+    @Test
+    public void testSubscriptionFanout() {
+        assertIndexed("getRouteSubscriberTokens", () -> mDeviceDao.getRouteSubscriberTokens(
+                TestModelHelper.AGENCY_ID, TestModelHelper.ROUTE_ID));
+    }
+
+    @Test
+    public void testAgencyLookups() {
+        assertIndexed("getRoute", () -> mAgencyDao.getRoute(TestModelHelper.AGENCY_ID, TestModelHelper.ROUTE_ID));
+        assertIndexed("getRouteIds", () -> mAgencyDao.getRouteIds(TestModelHelper.AGENCY_ID));
+
+        // An unknown key, so the account directory loads it rather than serving it from memory.
+        assertIndexed("getAccountForKey", () -> mAccountDao.getAccountForKey("plan_" + System.nanoTime()));
+    }
+
+    private void assertIndexed(String daoMethod, Runnable daoCall) {
+        List<String> statements = captureStatements(daoCall);
+        assertFalse(String.format("No SQL logged for %s", daoMethod), statements.isEmpty());
+
+        for (String statement : statements) {
+            List<String> plan = explain(statement);
+            for (String planLine : plan) {
+                for (String table : LARGE_TABLES) {
+                    assertFalse(String.format("Sequential scan of %s by %s in plan:\n%s\n%s", table, daoMethod,
+                            statement, String.join("\n", plan)),
+                            planLine.contains("Seq Scan on " + table + " "));
+                }
+            }
+        }
+    }
+
+    /**
+     * Run a DAO call with SQL logging enabled, and return each query it ran with its bind values
+     * inlined.
+     */
+    private List<String> captureStatements(Runnable daoCall) {
+        Logger sqlLogger = (Logger) LoggerFactory.getLogger(SQL_LOGGER);
+        Level level = sqlLogger.getLevel();
+        ListAppender<ILoggingEvent> appender = new ListAppender<>();
+        appender.start();
+
+        // Cached beans and query results would skip the queries being checked.
+        mEbeanServer.getServerCacheManager().clearAll();
+
+        sqlLogger.addAppender(appender);
+        sqlLogger.setLevel(Level.DEBUG);
+        try {
+            daoCall.run();
+
+        } finally {
+            sqlLogger.setLevel(level);
+            sqlLogger.detachAppender(appender);
+            appender.stop();
+        }
+
+        List<String> statements = new ArrayList<>();
+        for (ILoggingEvent event : appender.list) {
+            String statement = getStatement(event.getFormattedMessage());
+            if (statement != null) {
+                statements.add(statement);
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * Get the SQL of a logged query ("txn[id] select ...; --bind(a,b) --micros(n)") with each
+     * placeholder replaced by its bind value as an untyped literal.
+     */
+    private static String getStatement(String logMessage) {
+        Matcher statementStart = STATEMENT_START.matcher(logMessage);
+        if (!statementStart.find()) {
+            return null;
+        }
+
+        int bindLogStart = logMessage.indexOf(BIND_LOG_START);
+        String sql = logMessage.substring(statementStart.start(), bindLogStart >= 0 ? bindLogStart : logMessage.length())
+                .trim();
+        if (sql.endsWith(";")) {
+            sql = sql.substring(0, sql.length() - 1);
+        }
+
+        List<String> bindValues = new ArrayList<>();
+        if (bindLogStart >= 0) {
+            String bindLog = logMessage.substring(bindLogStart + BIND_LOG_START.length());
+            int bindLogEnd = bindLog.indexOf(") --");
+            bindValues = splitBindValues(bindLogEnd >= 0
+                    ? bindLog.substring(0, bindLogEnd)
+                    : bindLog.substring(0, Math.max(0, bindLog.lastIndexOf(')'))));
+        }
+
+        StringBuilder statement = new StringBuilder();
+        int bindIndex = 0;
+        for (char c : sql.toCharArray()) {
+            if (c == '?' && bindIndex < bindValues.size()) {
+                statement.append(toLiteral(bindValues.get(bindIndex++)));
+            } else {
+                statement.append(c);
+            }
+        }
+        return statement.toString();
+    }
+
+    /**
+     * Split a bind log on its commas, keeping array values ("[a, b]") whole.
+     */
+    private static List<String> splitBindValues(String bindLog) {
+        List<String> bindValues = new ArrayList<>();
+        int depth = 0;
+        StringBuilder bindValue = new StringBuilder();
+        for (char c : bindLog.toCharArray()) {
+            if (c == ',' && depth == 0) {
+                bindValues.add(bindValue.toString().trim());
+                bindValue.setLength(0);
+                continue;
+            }
+            depth += c == '[' ? 1 : c == ']' ? -1 : 0;
+            bindValue.append(c);
+        }
+        if (bindValue.toString().trim().length() > 0) {
+            bindValues.add(bindValue.toString().trim());
+        }
+        return bindValues;
+    }
+
+    private static String toLiteral(String bindValue) {
+        if (bindValue.equals("null")) {
+            return "null";
+        }
+
+        // Array binds (such as "= any(?)") are logged as [a, b].
+        String value = bindValue.startsWith("[") && bindValue.endsWith("]")
+                ? "{" + bindValue.substring(1, bindValue.length() - 1).replace(" ", "") + "}"
+                : bindValue;
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    private static void executeStatement(Connection connection, String sql) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    private static Boolean isValidIndex(Connection connection, String indexName) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet results = statement.executeQuery("select i.indisvalid from pg_index i " +
+                     "join pg_class c on c.oid = i.indexrelid where c.relname = '" + indexName + "'")) {
+            return results.next() ? results.getBoolean(1) : null;
+        }
+    }
+
+    private List<String> explain(String sql) {
+        List<String> plan = new ArrayList<>();
+        try (Transaction transaction = mEbeanServer.beginTransaction()) {
+            mEbeanServer.createSqlUpdate("set local enable_seqscan = off").execute();
+
+            for (SqlRow row : mEbeanServer.createSqlQuery("explain " + sql).findList()) {
+                plan.add(String.valueOf(row.values().iterator().next()));
+            }
+            transaction.rollback();
+        }
+        return plan;
+    }
+}
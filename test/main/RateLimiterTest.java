@@ -0,0 +1,73 @@
+package main;
+
+import com.typesafe.config.ConfigFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import services.RateLimiter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Token bucket rate limiter test.
+ */
+public class RateLimiterTest extends CommuteTestApplication {
+    private static final String GROUP = "test";
+    private static final int CAPACITY = 5;
+
+    private RateLimiter mRateLimiter;
+
+    @Before
+    public void setup() {
+        mRateLimiter = new RateLimiter(ConfigFactory.parseString(
+                "ratelimit.maxClients = 3\n" +
+                "ratelimit.groups.test { capacity = " + CAPACITY + ", refillPerSecond = 0.001, paths = [\"/test/\"] }"));
+    }
+
+    @Test
+    public void testGroups() {
+        assertEquals(GROUP, mRateLimiter.getGroup("/test/path"));
+        assertNull(mRateLimiter.getGroup("/other/path"));
+    }
+
+    @Test
+    public void testBurstCapacity() {
+        for (int i = 0; i < CAPACITY; i++) {
+            assertTrue(mRateLimiter.tryAcquire(GROUP, "client_1"));
+        }
+        assertFalse(mRateLimiter.tryAcquire(GROUP, "client_1"));
+
+        // Other clients and unconfigured groups are not affected.
+        assertTrue(mRateLimiter.tryAcquire(GROUP, "client_2"));
+        assertTrue(mRateLimiter.tryAcquire("unknown", "client_1"));
+
+        assertEquals(Long.valueOf(1), mRateLimiter.getCounters().get(GROUP).get("rejected"));
+        assertEquals(Long.valueOf(CAPACITY + 1), mRateLimiter.getCounters().get(GROUP).get("allowed"));
+    }
+
+    @Test
+    public void testBoundedClients() {
+        for (int i = 0; i < 10; i++) {
+            mRateLimiter.tryAcquire(GROUP, "client_" + i);
+        }
+        assertTrue(mRateLimiter.getClientCount() <= 3);
+    }
+
+    @Test
+    public void testEvictionPrefersIdleBuckets() {
+        // The busy client has drained its bucket, so it is the last to be evicted.
+        for (int i = 0; i < CAPACITY; i++) {
+            mRateLimiter.tryAcquire(GROUP, "busy_client");
+        }
+        for (int i = 0; i < 10; i++) {
+            mRateLimiter.tryAcquire(GROUP, "client_" + i);
+        }
+
+        assertFalse(mRateLimiter.tryAcquire(GROUP, "busy_client"));
+        assertTrue(mRateLimiter.getEvictedCount() > 0);
+    }
+}
@@ -0,0 +1,99 @@
+package main;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import io.ebean.EbeanServer;
+import models.alerts.Agency;
+import models.alerts.Route;
+
+import static main.TestModelHelper.AGENCY_ID;
+import static main.TestModelHelper.ROUTE_ID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ebean L2 caching of reference data, which must never serve deleted routes.
+ */
+public class ReferenceCacheTest extends CommuteTestApplication {
+    private static final String SECOND_ROUTE_ID = "test_route_2";
+
+    private EbeanServer mEbeanServer;
+    private TestModelHelper mTestModelHelper = new TestModelHelper(null);
+
+    @Before
+    public void setup() {
+        mEbeanServer = application.injector().instanceOf(EbeanServer.class);
+        mAgencyDao.removeAgency(AGENCY_ID);
+
+        Agency agency = mTestModelHelper.createTestAgency();
+        agency.setRoutes(Arrays.asList(
+                mTestModelHelper.createTestRoute(ROUTE_ID),
+                mTestModelHelper.createTestRoute(SECOND_ROUTE_ID)));
+        assertTrue(mAgencyDao.saveAgency(agency));
+        warmCaches();
+    }
+
+    @After
+    public void afterTest() {
+        mAgencyDao.removeAgency(AGENCY_ID);
+    }
+
+    @Test
+    public void testCacheStatistics() {
+        mAgencyDao.getCacheStatistics(true);
+        mEbeanServer.find(Route.class, SECOND_ROUTE_ID);
+        mAgencyDao.getRouteIds(AGENCY_ID);
+
+        Map<String, Map<String, Object>> statistics = mAgencyDao.getCacheStatistics(false);
+        long hits = 0;
+        for (Map<String, Object> cacheStatistics : statistics.values()) {
+            hits += ((Number) cacheStatistics.get("hits")).longValue();
+        }
+        assertFalse(statistics.isEmpty());
+        assertTrue(hits >= 2);
+    }
+
+    @Test
+    public void testRewrittenRoutesNotServed() {
+        Agency emptyAgency = mTestModelHelper.createTestAgency();
+        emptyAgency.setRoutes(null);
+        assertTrue(mAgencyDao.saveAgency(emptyAgency));
+
+        assertNull(mEbeanServer.find(Route.class, ROUTE_ID));
+        assertNull(mEbeanServer.find(Route.class, SECOND_ROUTE_ID));
+        assertTrue(mAgencyDao.getRouteIds(AGENCY_ID).isEmpty());
+
+        Agency cachedAgency = mEbeanServer.find(Agency.class, AGENCY_ID);
+        assertNotNull(cachedAgency);
+        assertTrue(cachedAgency.getRoutes() == null || cachedAgency.getRoutes().isEmpty());
+    }
+
+    @Test
+    public void testRemovedAgencyRoutesNotServed() {
+        assertTrue(mAgencyDao.removeAgency(AGENCY_ID));
+
+        assertNull(mEbeanServer.find(Agency.class, AGENCY_ID));
+        assertNull(mEbeanServer.find(Route.class, SECOND_ROUTE_ID));
+        assertTrue(mAgencyDao.getRouteIds(AGENCY_ID).isEmpty());
+    }
+
+    private void warmCaches() {
+        for (int i = 0; i < 2; i++) {
+            assertNotNull(mEbeanServer.find(Route.class, ROUTE_ID));
+            assertNotNull(mEbeanServer.find(Route.class, SECOND_ROUTE_ID));
+            assertEquals(2, mAgencyDao.getRouteIds(AGENCY_ID).size());
+
+            Agency cachedAgency = mEbeanServer.find(Agency.class, AGENCY_ID);
+            assertNotNull(cachedAgency);
+            assertEquals(2, cachedAgency.getRoutes().size());
+        }
+    }
+}
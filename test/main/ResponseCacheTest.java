@@ -0,0 +1,139 @@
+package main;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import akka.util.ByteString;
+import filters.ResponseCacheFilter;
+import models.alerts.Agency;
+import models.alerts.Route;
+import services.AgencyManager;
+import services.ResponseCache;
+
+import static main.TestModelHelper.AGENCY_ID;
+import static main.TestModelHelper.ROUTE_ID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static play.test.Helpers.fakeRequest;
+
+/**
+ * Surrogate key invalidation of cached API responses.
+ */
+public class ResponseCacheTest extends CommuteTestApplication {
+    private static final String SECOND_ROUTE_ID = "test_route_2";
+
+    private ResponseCache mResponseCache;
+    private AgencyManager mAgencyManager;
+    private TestModelHelper mTestModelHelper = new TestModelHelper(null);
+
+    @Before
+    public void setup() {
+        mResponseCache = application.injector().instanceOf(ResponseCache.class);
+        mAgencyManager = application.injector().instanceOf(AgencyManager.class);
+        mAgencyManager.cacheAgency(createAgency("Route Name"));
+
+        cacheResponse("agency", ResponseCache.agencyKey(AGENCY_ID));
+        cacheResponse("route1", ResponseCache.routeKey(AGENCY_ID, ROUTE_ID));
+        cacheResponse("route2", ResponseCache.routeKey(AGENCY_ID, SECOND_ROUTE_ID));
+        cacheResponse("agencies", ResponseCache.AGENCIES_KEY);
+    }
+
+    @Test
+    public void testUnchangedAgency() {
+        mAgencyManager.cacheAgency(createAgency("Route Name"));
+
+        assertNotNull(mResponseCache.get("agency"));
+        assertNotNull(mResponseCache.get("route1"));
+        assertNotNull(mResponseCache.get("route2"));
+        assertNotNull(mResponseCache.get("agencies"));
+    }
+
+    @Test
+    public void testChangedRoute() {
+        mAgencyManager.cacheAgency(createAgency("Updated Route Name"));
+
+        assertNull(mResponseCache.get("agency"));
+        assertNull(mResponseCache.get("route2"));
+        assertNotNull(mResponseCache.get("route1"));
+        assertNotNull(mResponseCache.get("agencies"));
+    }
+
+    @Test
+    public void testStaleGeneration() {
+        long generation = mResponseCache.getGeneration();
+        mResponseCache.invalidate(Collections.singletonList(ResponseCache.agencyKey("other")));
+
+        mResponseCache.put("stale", new ResponseCache.CachedResponse(200, ByteString.fromString("{}"), null,
+                Collections.emptyMap(), Collections.singleton(ResponseCache.AGENCIES_KEY)), generation);
+        assertNull(mResponseCache.get("stale"));
+    }
+
+    @Test
+    public void testIndexPruned() {
+        int surrogateKeyCount = mResponseCache.getSurrogateKeyCount();
+
+        // Responses dropped before they were ever served leave nothing in the index.
+        for (int i = 0; i < 100; i++) {
+            long generation = mResponseCache.getGeneration();
+            mResponseCache.invalidate(Collections.singletonList(ResponseCache.agencyKey("other")));
+            mResponseCache.put("unknown" + i, new ResponseCache.CachedResponse(200, ByteString.fromString("{}"),
+                    null, Collections.emptyMap(),
+                    Collections.singleton(ResponseCache.routeKey(AGENCY_ID, "unknown_" + i))), generation);
+        }
+        assertEquals(surrogateKeyCount, mResponseCache.getSurrogateKeyCount());
+
+        // Purging a multi-key response also unlinks it from its other keys.
+        mResponseCache.put("multi", new ResponseCache.CachedResponse(200, ByteString.fromString("{}"), null,
+                Collections.emptyMap(), new HashSet<>(Arrays.asList(ResponseCache.agencyKey("other"),
+                ResponseCache.routeKey("other", "other_route")))), mResponseCache.getGeneration());
+        assertEquals(surrogateKeyCount + 2, mResponseCache.getSurrogateKeyCount());
+
+        mResponseCache.invalidate(Collections.singletonList(ResponseCache.agencyKey("other")));
+        assertNull(mResponseCache.get("multi"));
+        assertEquals(surrogateKeyCount, mResponseCache.getSurrogateKeyCount());
+    }
+
+    @Test
+    public void testFullCacheEvicts() {
+        int responses = 5000;
+        for (int i = 0; i < responses; i++) {
+            cacheResponse("filler" + i, ResponseCache.routeKey(AGENCY_ID, "filler_" + i));
+        }
+
+        assertNotNull(mResponseCache.get("filler" + (responses - 1)));
+        assertTrue(mResponseCache.getResponseCount() < responses);
+        assertTrue(mResponseCache.getSurrogateKeyCount() < responses);
+    }
+
+    @Test
+    public void testCacheKeyIgnoresUnreadParameters() {
+        String cacheKey = ResponseCacheFilter.getCacheKey(fakeRequest("GET",
+                "/alerts/v1/agency/1/routes?type=DETOUR&routes=a,b&fields=routeId").build());
+
+        assertEquals(cacheKey, ResponseCacheFilter.getCacheKey(fakeRequest("GET",
+                "/alerts/v1/agency/1/routes?fields=routeId&x=1&routes=a,b&type=DETOUR").build()));
+        assertNotEquals(cacheKey, ResponseCacheFilter.getCacheKey(fakeRequest("GET",
+                "/alerts/v1/agency/1/routes?fields=routeId&routes=a,b").build()));
+    }
+
+    private void cacheResponse(String cacheKey, String surrogateKey) {
+        mResponseCache.put(cacheKey, new ResponseCache.CachedResponse(200, ByteString.fromString("{}"), null,
+                Collections.emptyMap(), new HashSet<>(Collections.singletonList(surrogateKey))),
+                mResponseCache.getGeneration());
+    }
+
+    private Agency createAgency(String secondRouteName) {
+        Agency agency = mTestModelHelper.createTestAgency();
+        Route secondRoute = mTestModelHelper.createTestRoute(SECOND_ROUTE_ID);
+        secondRoute.setRouteName(secondRouteName);
+        agency.setRoutes(Arrays.asList(mTestModelHelper.createTestRoute(ROUTE_ID), secondRoute));
+        return agency;
+    }
+}
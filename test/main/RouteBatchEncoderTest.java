@@ -0,0 +1,85 @@
+package main;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import models.snapshots.AgencySnapshot;
+import models.snapshots.EncodedRoute;
+import models.snapshots.RouteSnapshot;
+import play.libs.Json;
+import serializers.RouteBatchEncoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Multi-route batch response test.
+ */
+public class RouteBatchEncoderTest extends CommuteTestApplication {
+    private static AgencySnapshot septaAgency;
+    private static AgencySnapshot encodedSeptaAgency;
+
+    @BeforeClass
+    public static void setup() throws IOException {
+        septaAgency = AgencySnapshot.from(TestModelHelper.loadSeptaAgency());
+
+        Map<String, EncodedRoute> encodedRoutes = new HashMap<>();
+        for (RouteSnapshot route : septaAgency.getRoutes()) {
+            encodedRoutes.put(route.getRouteId(), EncodedRoute.from(route));
+        }
+        encodedSeptaAgency = septaAgency.withEncodings(null, null, encodedRoutes);
+    }
+
+    @Test
+    public void testBatchMatchesRoutes() throws IOException {
+        List<String> routeIds = new ArrayList<>();
+        for (RouteSnapshot route : septaAgency.getRoutes().subList(0, 3)) {
+            routeIds.add(route.getRouteId());
+        }
+        routeIds.add("not_a_route");
+
+        RouteBatchEncoder.RouteBatch routeBatch = RouteBatchEncoder.encode(encodedSeptaAgency, routeIds);
+        JsonNode batchJson = Json.parse(routeBatch.getBody().toArray());
+
+        assertEquals(3, routeBatch.getRouteCount());
+        assertTrue(batchJson.isArray());
+        assertEquals(3, batchJson.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Json.toJson(septaAgency.getRoute(routeIds.get(i))), batchJson.get(i));
+        }
+    }
+
+    @Test
+    public void testETag() throws IOException {
+        List<String> routeIds = Arrays.asList(
+                septaAgency.getRoutes().get(0).getRouteId(),
+                septaAgency.getRoutes().get(1).getRouteId());
+
+        // Pre-encoded and on-request fragments are identical.
+        RouteBatchEncoder.RouteBatch encodedBatch = RouteBatchEncoder.encode(encodedSeptaAgency, routeIds);
+        RouteBatchEncoder.RouteBatch batch = RouteBatchEncoder.encode(septaAgency, routeIds);
+        assertEquals(encodedBatch.getETag(), batch.getETag());
+        assertEquals(encodedBatch.getBody(), batch.getBody());
+
+        RouteBatchEncoder.RouteBatch singleBatch = RouteBatchEncoder.encode(septaAgency, routeIds.subList(0, 1));
+        assertNotEquals(batch.getETag(), singleBatch.getETag());
+    }
+
+    @Test
+    public void testEmptyBatch() throws IOException {
+        RouteBatchEncoder.RouteBatch routeBatch = RouteBatchEncoder.encode(septaAgency, Arrays.asList("x", "y"));
+
+        assertEquals(0, routeBatch.getRouteCount());
+        assertEquals("[]", routeBatch.getBody().utf8String());
+    }
+}
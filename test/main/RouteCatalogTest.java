@@ -0,0 +1,72 @@
+package main;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import models.alerts.Agency;
+import models.alerts.Route;
+import services.AgencyManager;
+import services.RouteCatalog;
+
+import static main.TestModelHelper.AGENCY_ID;
+import static main.TestModelHelper.ROUTE_ID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Route id validation for subscriptions.
+ */
+public class RouteCatalogTest extends CommuteTestApplication {
+    private static final String SECOND_ROUTE_ID = "test_route_2";
+
+    private RouteCatalog mRouteCatalog;
+    private AgencyManager mAgencyManager;
+    private TestModelHelper mTestModelHelper = new TestModelHelper(null);
+
+    @Before
+    public void setup() {
+        mRouteCatalog = application.injector().instanceOf(RouteCatalog.class);
+        mAgencyManager = application.injector().instanceOf(AgencyManager.class);
+
+        Agency agency = mTestModelHelper.createTestAgency();
+        agency.setRoutes(Arrays.asList(mTestModelHelper.createTestRoute(ROUTE_ID)));
+        mAgencyManager.cacheAgency(agency);
+    }
+
+    @Test
+    public void testCanonicalRouteIds() {
+        List<Route> routes = mRouteCatalog.getRoutes(AGENCY_ID,
+                Arrays.asList(" TEST_Route_1 ", ROUTE_ID, "unknown_route"));
+
+        assertEquals(1, routes.size());
+        assertEquals(ROUTE_ID, routes.get(0).getRouteId());
+        assertTrue(mRouteCatalog.getRoutes("unknown_agency", Arrays.asList(ROUTE_ID)).isEmpty());
+    }
+
+    @Test
+    public void testRefreshedOnAgencySave() {
+        assertTrue(mRouteCatalog.getRoutes(AGENCY_ID, Arrays.asList(SECOND_ROUTE_ID)).isEmpty());
+
+        Agency agency = mTestModelHelper.createTestAgency();
+        agency.setRoutes(Arrays.asList(
+                mTestModelHelper.createTestRoute(ROUTE_ID),
+                mTestModelHelper.createTestRoute(SECOND_ROUTE_ID)));
+        mAgencyManager.cacheAgency(agency);
+
+        assertEquals(1, mRouteCatalog.getRoutes(AGENCY_ID, Arrays.asList(SECOND_ROUTE_ID)).size());
+    }
+
+    @Test
+    public void testUnknownAgenciesNotKept() {
+        mRouteCatalog.getRoutes(AGENCY_ID, Arrays.asList(ROUTE_ID));
+        int catalogCount = mRouteCatalog.getCatalogCount();
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(mRouteCatalog.getRoutes("unknown_agency_" + i, Arrays.asList(ROUTE_ID)).isEmpty());
+        }
+        assertEquals(catalogCount, mRouteCatalog.getCatalogCount());
+    }
+}
@@ -0,0 +1,105 @@
+package main;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import enums.AlertType;
+import enums.TransitType;
+import helpers.RouteQuery;
+import models.snapshots.AgencySnapshot;
+import models.snapshots.RouteSnapshot;
+import play.libs.Json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Public alert endpoint projection and filter test.
+ */
+public class RouteQueryTest extends CommuteTestApplication {
+    private static AgencySnapshot septaAgency;
+
+    @BeforeClass
+    public static void setup() throws IOException {
+        septaAgency = AgencySnapshot.from(TestModelHelper.loadSeptaAgency());
+    }
+
+    @Test
+    public void testNoQuery() {
+        assertNull(RouteQuery.parse(null, null, null, null));
+    }
+
+    @Test
+    public void testNotHighPriorityFilter() {
+        RouteQuery routeQuery = RouteQuery.parse(null, null, null, "false");
+        assertNotNull(routeQuery);
+
+        // highPriority=false only drops routes with high priority alerts.
+        JsonNode agencyNode = routeQuery.apply(septaAgency);
+        assertEquals(septaAgency.findRoutes(null, null, false).size(), agencyNode.get("routes").size());
+    }
+
+    @Test
+    public void testTransitFilter() {
+        JsonNode agencyNode = RouteQuery.parse(null, null, "bus", null).apply(septaAgency);
+
+        int busRoutes = 0;
+        for (RouteSnapshot route : septaAgency.getRoutes()) {
+            if (route.getTransitType() == TransitType.TYPE_BUS) {
+                busRoutes++;
+            }
+        }
+
+        assertTrue(busRoutes > 0);
+        assertEquals(busRoutes, agencyNode.get("routes").size());
+        for (JsonNode routeNode : agencyNode.get("routes")) {
+            assertEquals(TransitType.TYPE_BUS.name(), routeNode.get("transitType").asText());
+        }
+    }
+
+    @Test
+    public void testAlertTypeFilterAndProjection() {
+        JsonNode agencyNode = RouteQuery.parse("routeId,alertTypes,alerts.type", "DETOUR", null, null)
+                .apply(septaAgency);
+
+        assertEquals(septaAgency.findRoutes(AlertType.TYPE_DETOUR, null, null).size(),
+                agencyNode.get("routes").size());
+
+        for (JsonNode routeNode : agencyNode.get("routes")) {
+            assertEquals(3, routeNode.size());
+            assertNotNull(routeNode.get("routeId"));
+            assertTrue(routeNode.get("alertTypes").toString().contains(AlertType.TYPE_DETOUR.name()));
+
+            assertFalse(routeNode.get("alerts").size() == 0);
+            for (JsonNode alertNode : routeNode.get("alerts")) {
+                Iterator<String> alertFields = alertNode.fieldNames();
+                assertEquals("type", alertFields.next());
+                assertFalse(alertFields.hasNext());
+                assertEquals(Json.toJson(AlertType.TYPE_DETOUR), alertNode.get("type"));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownField() {
+        RouteQuery.parse("routeId,messageBody", null, null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownType() {
+        RouteQuery.parse(null, "not_a_type", null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidHighPriority() {
+        RouteQuery.parse(null, null, null, "yes");
+    }
+}
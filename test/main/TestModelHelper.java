@@ -1,5 +1,12 @@
 package main;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
@@ -17,6 +24,7 @@ import models.alerts.Alert;
 import models.alerts.Location;
 import models.alerts.Route;
 import models.devices.Device;
+import serializers.SeptaAlertsDeserializer;
 
 /**
  * GNU General Public License v3.0.
@@ -31,6 +39,7 @@ public class TestModelHelper {
     static final String TEST_DEVICE_ID = "test_id";
     static final String TEST_DEVICE_TOKEN = "test_token_123456";
     static final String ACCOUNT_API_KEY = "test_api_key";
+    static final String SEPTA_JSON_FILE_NAME = "/resources/json_septa.json";
 
     public TestModelHelper(Calendar withDate) {
         if (withDate != null) {
@@ -38,6 +47,23 @@ public class TestModelHelper {
         }
     }
 
+    /**
+     * Deserialize the SEPTA alerts fixture.
+     *
+     * @return the SEPTA agency, with its routes and alerts.
+     */
+    @Nonnull
+    static Agency loadSeptaAgency() throws IOException {
+        Path path = Paths.get(CommuteTestApplication.application.path().getCanonicalPath() + SEPTA_JSON_FILE_NAME);
+        String jsonString = new String(Files.readAllBytes(path));
+
+        final Gson gson = new GsonBuilder()
+                .registerTypeAdapter(Agency.class, new SeptaAlertsDeserializer())
+                .create();
+
+        return gson.fromJson(jsonString, Agency.class);
+    }
+
     @Nonnull
     public Location createTestLocation() {
         Location location = new Location();